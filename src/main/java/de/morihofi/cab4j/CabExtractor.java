@@ -1,7 +1,10 @@
 package de.morihofi.cab4j;
 
+import de.morihofi.cab4j.compression.FolderDecompressor;
 import de.morihofi.cab4j.structures.CfFile;
 import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.CfHeader;
+import de.morihofi.cab4j.structures.SeekIndex;
 import de.morihofi.cab4j.util.ChecksumHelper;
 
 import java.io.IOException;
@@ -12,15 +15,23 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.DosFileAttributeView;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * Utility for extracting the contents of cabinet files.
  */
 public class CabExtractor {
 
+    /** Uncompressed bytes per task when the blocks of a folder are decoded in parallel. */
+    private static final int SLICE_SIZE = 1 << 20;
+
     /**
      * Represents a file extracted from a cabinet including metadata.
      */
@@ -39,7 +50,7 @@ public class CabExtractor {
         }
     }
 
-    private static Map<String, ExtractedFile> extractInternal(ByteBuffer cabBuffer) {
+    private static Map<String, ExtractedFile> extractInternal(ByteBuffer cabBuffer, Executor executor) {
         ByteBuffer buffer = cabBuffer.duplicate();
         buffer.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -58,18 +69,38 @@ public class CabExtractor {
         buffer.get(); // version major
         short cFolders = buffer.getShort();
         short cFiles = buffer.getShort();
-        buffer.getShort(); // flags
+        short flags = buffer.getShort();
         buffer.getShort(); // setID
         buffer.getShort(); // iCabinet
+        int cbCFFolder = 0;
+        int cbCFData = 0;
+        if ((flags & CfHeader.FLAG_RESERVE_PRESENT) != 0) {
+            int cbCFHeader = Short.toUnsignedInt(buffer.getShort());
+            cbCFFolder = Byte.toUnsignedInt(buffer.get());
+            cbCFData = Byte.toUnsignedInt(buffer.get());
+            buffer.position(buffer.position() + cbCFHeader);
+        }
+        if ((flags & CfHeader.FLAG_PREV_CABINET) != 0) {
+            skipString(buffer); // szCabinetPrev
+            skipString(buffer); // szDiskPrev
+        }
+        if ((flags & CfHeader.FLAG_NEXT_CABINET) != 0) {
+            skipString(buffer); // szCabinetNext
+            skipString(buffer); // szDiskNext
+        }
 
         // read folder descriptors (multiple folders are supported)
         int[] folderCoffCabStart = new int[cFolders];
         int[] folderCCfData = new int[cFolders];
         short[] folderTypeCompress = new short[cFolders];
+        int[] folderFlags = new int[cFolders];
+        byte[] folderReserve = new byte[cbCFFolder];
         for (int i = 0; i < cFolders; i++) {
             folderCoffCabStart[i] = buffer.getInt();
             folderCCfData[i] = Short.toUnsignedInt(buffer.getShort());
             folderTypeCompress[i] = buffer.getShort();
+            buffer.get(folderReserve);
+            folderFlags[i] = SeekIndex.readFlags(folderReserve);
         }
 
         buffer.position(coffFiles);
@@ -103,113 +134,13 @@ public class CabExtractor {
             files[i] = fe;
         }
 
-        Map<Integer, ByteBuffer> folders = new LinkedHashMap<>();
-        for (int i = 0; i < cFolders; i++) {
-            buffer.position(folderCoffCabStart[i]);
-            CfFolder.COMPRESS_TYPE comp = CfFolder.COMPRESS_TYPE.fromValue(Short.toUnsignedInt(folderTypeCompress[i]));
-            java.io.ByteArrayOutputStream folderOut = new java.io.ByteArrayOutputStream();
-
-            for (int j = 0; j < folderCCfData[i]; j++) {
-                int csum = buffer.getInt();
-                int cbData = Short.toUnsignedInt(buffer.getShort());
-                int cbUncomp = Short.toUnsignedInt(buffer.getShort());
-
-                ByteBuffer dataSlice = buffer.slice();
-                dataSlice.limit(cbData);
-
-                ByteBuffer checksumBuf = ByteBuffer.allocate(cbData + 4);
-                checksumBuf.order(ByteOrder.LITTLE_ENDIAN);
-                checksumBuf.putShort((short) cbData);
-                checksumBuf.putShort((short) cbUncomp);
-                checksumBuf.put(dataSlice.duplicate());
-                checksumBuf.flip();
-                int calculated = ChecksumHelper.cabChecksum(checksumBuf);
-                if (calculated != csum) {
-                    throw new IllegalStateException("CFDATA checksum mismatch");
-                }
-
-                ByteBuffer uncompressed;
-                switch (comp) {
-                    case TCOMP_TYPE_NONE:
-                        uncompressed = ByteBuffer.allocate(cbUncomp);
-                        uncompressed.put(dataSlice.duplicate());
-                        uncompressed.flip();
-                        break;
-                    case TCOMP_TYPE_MSZIP:
-                        if (dataSlice.remaining() < 2 || dataSlice.get() != 'C' || dataSlice.get() != 'K') {
-                            throw new IllegalStateException("Invalid MSZIP signature");
-                        }
-                        byte[] compBytes = new byte[dataSlice.remaining()];
-                        dataSlice.get(compBytes);
-                        java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
-                        inflater.setInput(compBytes);
-                        byte[] out = new byte[cbUncomp];
-                        try {
-                            int written = inflater.inflate(out);
-                            if (written < out.length) {
-                                byte[] tmp = new byte[out.length];
-                                System.arraycopy(out, 0, tmp, 0, written);
-                                out = java.util.Arrays.copyOf(tmp, written);
-                            }
-                        } catch (java.util.zip.DataFormatException e) {
-                            throw new IllegalStateException("MSZIP decompression failed", e);
-                        } finally {
-                            inflater.end();
-                        }
-                        uncompressed = ByteBuffer.wrap(out);
-                        break;
-                    case TCOMP_TYPE_QUANTUM:
-                        byte[] qBytes = new byte[dataSlice.remaining()];
-                        dataSlice.get(qBytes);
-                        java.io.ByteArrayInputStream qbis = new java.io.ByteArrayInputStream(qBytes);
-                        byte[] qOut = new byte[cbUncomp];
-                        try (org.tukaani.xz.XZInputStream qlz = new org.tukaani.xz.XZInputStream(qbis)) {
-                            int qlen = qlz.read(qOut);
-                            if (qlen < qOut.length) {
-                                byte[] tmp = new byte[qlen];
-                                System.arraycopy(qOut, 0, tmp, 0, qlen);
-                                qOut = java.util.Arrays.copyOf(tmp, qlen);
-                            }
-                        } catch (java.io.IOException e) {
-                            throw new IllegalStateException("Quantum decompression failed", e);
-                        }
-                        uncompressed = ByteBuffer.wrap(qOut);
-                        break;
-                    case TCOMP_TYPE_LZX:
-                        byte[] lzxBytes = new byte[dataSlice.remaining()];
-                        dataSlice.get(lzxBytes);
-                        java.io.ByteArrayInputStream bis = new java.io.ByteArrayInputStream(lzxBytes);
-                        byte[] lzxOut = new byte[cbUncomp];
-                        try (org.tukaani.xz.XZInputStream lz = new org.tukaani.xz.XZInputStream(bis)) {
-                            int len = lz.read(lzxOut);
-                            if (len < lzxOut.length) {
-                                byte[] tmp = new byte[len];
-                                System.arraycopy(lzxOut, 0, tmp, 0, len);
-                                lzxOut = java.util.Arrays.copyOf(tmp, len);
-                            }
-                        } catch (java.io.IOException e) {
-                            throw new IllegalStateException("LZX decompression failed", e);
-                        }
-                        uncompressed = ByteBuffer.wrap(lzxOut);
-                        break;
-                    default:
-                        throw new UnsupportedOperationException("Unsupported compression type: " + comp);
-                }
-
-                byte[] arr = new byte[uncompressed.remaining()];
-                uncompressed.duplicate().get(arr);
-                folderOut.write(arr, 0, arr.length);
-
-                buffer.position(buffer.position() + cbData);
-            }
-
-            folders.put(i, ByteBuffer.wrap(folderOut.toByteArray()));
-        }
+        ByteBuffer[] folders = decodeFolders(buffer, folderCoffCabStart, folderCCfData, folderTypeCompress,
+                folderFlags, cbCFData, executor);
 
         Map<String, ExtractedFile> result = new LinkedHashMap<>();
         for (FileHeader fe : files) {
             int folderIndex = Short.toUnsignedInt(fe.iFolder);
-            ByteBuffer folder = folders.get(folderIndex);
+            ByteBuffer folder = folderIndex < folders.length ? folders[folderIndex] : null;
             if (folder == null) {
                 throw new IllegalStateException("Missing folder data for iFolder " + folderIndex);
             }
@@ -226,6 +157,186 @@ public class CabExtractor {
         return result;
     }
 
+    /**
+     * Positions and sizes of the CFDATA blocks of a folder, and the array the
+     * folder is decoded into, with every block at the sum of the cbUncomp
+     * values in front of it.
+     */
+    private static final class FolderBlocks {
+        final short typeCompress;
+        final int[] csum;
+        final int[] cbData;
+        final int[] payload;
+        /** Folder offset of each block, with the folder size as last element. */
+        final int[] starts;
+        byte[] out;
+
+        FolderBlocks(short typeCompress, int cCfData) {
+            this.typeCompress = typeCompress;
+            this.csum = new int[cCfData];
+            this.cbData = new int[cCfData];
+            this.payload = new int[cCfData];
+            this.starts = new int[cCfData + 1];
+        }
+
+        int count() {
+            return csum.length;
+        }
+
+        /** Returns the payload of a block after verifying its checksum. */
+        ByteBuffer payload(ByteBuffer buffer, int block) {
+            ByteBuffer dataSlice = buffer.duplicate();
+            dataSlice.limit(payload[block] + cbData[block]);
+            dataSlice.position(payload[block]);
+            dataSlice = dataSlice.slice();
+            int cbUncomp = starts[block + 1] - starts[block];
+            // a zero checksum means none was stored
+            if (csum[block] != 0 && ChecksumHelper.cfDataChecksum(cbData[block], cbUncomp, dataSlice) != csum[block]) {
+                throw new IllegalStateException("CFDATA checksum mismatch");
+            }
+            return dataSlice;
+        }
+    }
+
+    /**
+     * Decodes every folder into an array of its uncompressed size. Given an
+     * executor, each folder is a task of its own, and uncompressed folders and
+     * MSZIP folders flagged with {@link SeekIndex#FLAG_INDEPENDENT_BLOCKS}
+     * are split into runs of {@link #SLICE_SIZE} bytes decoded without
+     * history. Other MSZIP folders, as makecab writes them, may refer to the
+     * previous block and are decoded in order.
+     */
+    private static ByteBuffer[] decodeFolders(ByteBuffer buffer, int[] coffCabStart, int[] cCfData,
+                                              short[] typeCompress, int[] flags, int cbCFData,
+                                              Executor executor) {
+        FolderBlocks[] blocks = new FolderBlocks[coffCabStart.length];
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < blocks.length; i++) {
+            FolderBlocks folder = scanFolder(buffer, i, coffCabStart[i], cCfData[i], typeCompress[i], cbCFData);
+            blocks[i] = folder;
+            if (executor != null && isRandomAccess(folder.typeCompress, flags[i])) {
+                int from = 0;
+                while (from < folder.count()) {
+                    int first = from;
+                    int to = from + 1;
+                    while (to < folder.count() && folder.starts[to] - folder.starts[first] < SLICE_SIZE) {
+                        to++;
+                    }
+                    int last = to;
+                    submit(tasks, executor, () -> decodeBlocks(buffer, folder, first, last));
+                    from = to;
+                }
+            } else {
+                submit(tasks, executor, () -> decodeBlocks(buffer, folder, 0, folder.count()));
+            }
+        }
+        await(tasks);
+
+        ByteBuffer[] folders = new ByteBuffer[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            folders[i] = ByteBuffer.wrap(blocks[i].out);
+        }
+        return folders;
+    }
+
+    private static FolderBlocks scanFolder(ByteBuffer buffer, int index, int coffCabStart, int cCfData,
+                                           short typeCompress, int cbCFData) {
+        FolderBlocks folder = new FolderBlocks(typeCompress, cCfData);
+        // tasks of earlier folders duplicate the buffer concurrently
+        ByteBuffer bb = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        bb.position(coffCabStart);
+        long size = 0;
+        for (int j = 0; j < cCfData; j++) {
+            folder.csum[j] = bb.getInt();
+            folder.cbData[j] = Short.toUnsignedInt(bb.getShort());
+            int cbUncomp = Short.toUnsignedInt(bb.getShort());
+            bb.position(bb.position() + cbCFData);
+            folder.payload[j] = bb.position();
+            bb.position(bb.position() + folder.cbData[j]);
+            folder.starts[j] = (int) size;
+            size += cbUncomp;
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Folder " + index + " is too large to extract into memory");
+            }
+        }
+        folder.starts[cCfData] = (int) size;
+        folder.out = new byte[(int) size];
+        return folder;
+    }
+
+    private static boolean isRandomAccess(short typeCompress, int flags) {
+        int type = typeCompress & CfFolder.COMPRESS_TYPE.TCOMP_MASK_TYPE.getValue();
+        return type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE.getValue()
+                || type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP.getValue()
+                && (flags & SeekIndex.FLAG_INDEPENDENT_BLOCKS) != 0;
+    }
+
+    /**
+     * Decodes the blocks {@code from} to {@code to} of a folder one after the
+     * other, carrying the decompressor state from block to block.
+     */
+    private static Void decodeBlocks(ByteBuffer buffer, FolderBlocks folder, int from, int to) {
+        FolderDecompressor decompressor = FolderDecompressor.create(folder.typeCompress);
+        for (int j = from; j < to; j++) {
+            int cbUncomp = folder.starts[j + 1] - folder.starts[j];
+            int written;
+            try {
+                written = decompressor.decompress(folder.payload(buffer, j), folder.out, folder.starts[j], cbUncomp);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            if (written != cbUncomp) {
+                throw new IllegalStateException("CFDATA block " + j + " holds " + written
+                        + " bytes instead of " + cbUncomp);
+            }
+        }
+        return null;
+    }
+
+    private static void submit(List<FutureTask<Void>> tasks, Executor executor, Callable<Void> work) {
+        FutureTask<Void> task = new FutureTask<>(work);
+        tasks.add(task);
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Waits for all tasks and rethrows the first failure.
+     */
+    private static void await(List<FutureTask<Void>> tasks) {
+        Throwable failure = null;
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while extracting folders", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        while (buffer.get() != 0) {
+            // scan to the terminating NUL
+        }
+    }
+
     /**
      * Extracts all files from the supplied cabinet buffer.
      *
@@ -233,7 +344,26 @@ public class CabExtractor {
      * @return mapping of file names to their contents
      */
     public static Map<String, ByteBuffer> extract(ByteBuffer cabBuffer) {
-        Map<String, ExtractedFile> withAttribs = extractInternal(cabBuffer);
+        return extract(cabBuffer, null);
+    }
+
+    /**
+     * Extracts all files from the supplied cabinet buffer, decoding on the
+     * given executor. Folders are decoded in parallel. The CFDATA blocks of
+     * uncompressed folders, and of MSZIP folders written with
+     * {@code setIndependentBlocks(true)}, are split into runs of about
+     * 1&nbsp;MB that are decoded at the same time straight into their place
+     * in the folder, so a single large folder uses several cores too. Every
+     * other folder, such as an MSZIP folder written by makecab, is decoded
+     * once, in order.
+     *
+     * @param cabBuffer cabinet data
+     * @param executor  executor such as {@link java.util.concurrent.ForkJoinPool#commonPool()},
+     *                  or {@code null} to extract on the calling thread
+     * @return mapping of file names to their contents
+     */
+    public static Map<String, ByteBuffer> extract(ByteBuffer cabBuffer, Executor executor) {
+        Map<String, ExtractedFile> withAttribs = extractInternal(cabBuffer, executor);
         Map<String, ByteBuffer> res = new LinkedHashMap<>();
         for (Map.Entry<String, ExtractedFile> e : withAttribs.entrySet()) {
             res.put(e.getKey(), e.getValue().data);
@@ -248,14 +378,27 @@ public class CabExtractor {
      * @return mapping of file names to extracted file metadata
      */
     public static Map<String, ExtractedFile> extractWithAttributes(ByteBuffer cabBuffer) {
-        return extractInternal(cabBuffer);
+        return extractInternal(cabBuffer, null);
+    }
+
+    /**
+     * Extracts all files including their DOS attributes and modification
+     * times, decoding on the given executor like {@link #extract(ByteBuffer, Executor)}.
+     *
+     * @param cabBuffer cabinet data
+     * @param executor  executor to decode on, or {@code null} for the calling thread
+     * @return mapping of file names to extracted file metadata
+     */
+    public static Map<String, ExtractedFile> extractWithAttributes(ByteBuffer cabBuffer, Executor executor) {
+        return extractInternal(cabBuffer, executor);
     }
 
     /**
      * Extracts a cabinet from the supplied {@link ReadableByteChannel} directly
      * to the given output directory using streaming and without holding the full
-     * file contents in memory. Only uncompressed cabinets created by the
-     * streaming {@link de.morihofi.cab4j.generator.CabGenerator} are supported.
+     * file contents in memory. The folders have to be stored in the order of
+     * their CFFOLDER entries, as done by
+     * {@link de.morihofi.cab4j.generator.CabGenerator} and makecab.
      *
      * @param in        channel providing the cabinet data
      * @param outputDir directory to write the extracted files to
@@ -279,22 +422,45 @@ public class CabExtractor {
         hdr.get(); // version major
         short cFolders = hdr.getShort();
         short cFiles = hdr.getShort();
-        hdr.getShort(); // flags
+        short flags = hdr.getShort();
         hdr.getShort(); // setID
         hdr.getShort(); // iCabinet
+        long consumed = hdr.capacity();
+        int cbCFFolder = 0;
+        int cbCFData = 0;
+        if ((flags & CfHeader.FLAG_RESERVE_PRESENT) != 0) {
+            ByteBuffer rb = ByteBuffer.allocate(4);
+            rb.order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, rb);
+            rb.flip();
+            int cbCFHeader = Short.toUnsignedInt(rb.getShort());
+            cbCFFolder = Byte.toUnsignedInt(rb.get());
+            cbCFData = Byte.toUnsignedInt(rb.get());
+            skip(in, cbCFHeader);
+            consumed += rb.capacity() + cbCFHeader;
+        }
+        int strings = ((flags & CfHeader.FLAG_PREV_CABINET) != 0 ? 2 : 0)
+                + ((flags & CfHeader.FLAG_NEXT_CABINET) != 0 ? 2 : 0);
+        for (int i = 0; i < strings; i++) {
+            consumed += readString(in).length + 1;
+        }
 
         int[] folderCoffCabStart = new int[cFolders];
         int[] folderCCfData = new int[cFolders];
         short[] folderType = new short[cFolders];
+        ByteBuffer fb = ByteBuffer.allocate(8 + cbCFFolder);
+        fb.order(ByteOrder.LITTLE_ENDIAN);
         for (int i = 0; i < cFolders; i++) {
-            ByteBuffer fb = ByteBuffer.allocate(8);
-            fb.order(ByteOrder.LITTLE_ENDIAN);
+            fb.clear();
             readFully(in, fb);
             fb.flip();
             folderCoffCabStart[i] = fb.getInt();
             folderCCfData[i] = Short.toUnsignedInt(fb.getShort());
             folderType[i] = fb.getShort();
+            consumed += fb.capacity();
         }
+        skip(in, coffFiles - consumed);
+        consumed = coffFiles;
 
         // read file headers
         class FileInfo {
@@ -305,7 +471,7 @@ public class CabExtractor {
         }
         FileInfo[] infos = new FileInfo[cFiles];
         for (int i = 0; i < cFiles; i++) {
-            ByteBuffer fb = ByteBuffer.allocate(16);
+            fb = ByteBuffer.allocate(16);
             fb.order(ByteOrder.LITTLE_ENDIAN);
             readFully(in, fb);
             fb.flip();
@@ -316,18 +482,10 @@ public class CabExtractor {
             fb.getShort(); // date
             fb.getShort(); // time
             fb.getShort(); // attribs
-            ByteArrayOutputStream nameBuf = new ByteArrayOutputStream();
-            ByteBuffer one = ByteBuffer.allocate(1);
-            while (true) {
-                one.clear();
-                readFully(in, one);
-                one.flip();
-                byte b = one.get();
-                if (b == 0) break;
-                nameBuf.write(b);
-            }
-            fi.name = new String(nameBuf.toByteArray(), StandardCharsets.UTF_8);
+            byte[] name = readString(in);
+            fi.name = new String(name, StandardCharsets.UTF_8);
             infos[i] = fi;
+            consumed += fb.capacity() + name.length + 1;
         }
 
         // prepare output channels per folder
@@ -335,14 +493,32 @@ public class CabExtractor {
         for (FileInfo fi : infos) {
             filesPerFolder.computeIfAbsent(Short.toUnsignedInt(fi.folder), k -> new ArrayList<>()).add(fi);
         }
+        // deduplicated copies share the range of their original and are copied once it is written
+        Map<FileInfo, FileInfo> copies = new LinkedHashMap<>();
         for (List<FileInfo> list : filesPerFolder.values()) {
             list.sort(Comparator.comparingInt(f -> f.uoff));
+            FileInfo previous = null;
+            for (Iterator<FileInfo> it = list.iterator(); it.hasNext(); ) {
+                FileInfo fi = it.next();
+                if (fi.size > 0 && previous != null && previous.uoff == fi.uoff && previous.size == fi.size) {
+                    copies.put(fi, previous);
+                    it.remove();
+                } else {
+                    previous = fi;
+                }
+            }
         }
 
         ByteBuffer dataBuf = ByteBuffer.allocate(0xFFFF);
+        byte[] scratch = new byte[0xFFFF];
+        ByteBuffer db = ByteBuffer.allocate(8 + cbCFData);
+        db.order(ByteOrder.LITTLE_ENDIAN);
         for (int f = 0; f < cFolders; f++) {
             List<FileInfo> list = filesPerFolder.get(f);
             if (list == null) continue;
+            // skip anything between the previous folder's data and this one
+            skip(in, Integer.toUnsignedLong(folderCoffCabStart[f]) - consumed);
+            consumed = Integer.toUnsignedLong(folderCoffCabStart[f]);
             Iterator<FileInfo> it = list.iterator();
             FileInfo current = it.next();
             Path out = outputDir.resolve(current.name);
@@ -351,10 +527,10 @@ public class CabExtractor {
                     java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
                     java.nio.file.StandardOpenOption.WRITE);
             int writtenForCurrent = 0;
+            FolderDecompressor decompressor = FolderDecompressor.create(folderType[f]);
 
             for (int j = 0; j < folderCCfData[f]; j++) {
-                ByteBuffer db = ByteBuffer.allocate(8);
-                db.order(ByteOrder.LITTLE_ENDIAN);
+                db.clear();
                 readFully(in, db);
                 db.flip();
                 int csum = db.getInt();
@@ -367,61 +543,15 @@ public class CabExtractor {
                 dataBuf.limit(cbData);
                 readFully(in, dataBuf);
                 dataBuf.flip();
+                consumed += db.capacity() + cbData;
 
-                ByteBuffer checksumBuf = ByteBuffer.allocate(cbData + 4);
-                checksumBuf.order(ByteOrder.LITTLE_ENDIAN);
-                checksumBuf.putShort((short) cbData);
-                checksumBuf.putShort((short) cbUncomp);
-                checksumBuf.put(dataBuf.duplicate());
-                checksumBuf.flip();
-                int calc = ChecksumHelper.cabChecksum(checksumBuf);
-                if (calc != csum) {
+                // a zero checksum means none was stored
+                if (csum != 0 && ChecksumHelper.cfDataChecksum(cbData, cbUncomp, dataBuf) != csum) {
                     throw new IOException("CFDATA checksum mismatch");
                 }
 
-                ByteBuffer uncompressed;
-                CfFolder.COMPRESS_TYPE comp = CfFolder.COMPRESS_TYPE.fromValue(Short.toUnsignedInt(folderType[f]));
-                switch (comp) {
-                    case TCOMP_TYPE_MSZIP:
-                        if (dataBuf.remaining() < 2 || dataBuf.get() != 'C' || dataBuf.get() != 'K') {
-                            throw new IOException("Invalid MSZIP signature");
-                        }
-                        byte[] compBytes = new byte[dataBuf.remaining()];
-                        dataBuf.get(compBytes);
-                        java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
-                        inflater.setInput(compBytes);
-                        byte[] outArr = new byte[cbUncomp];
-                        try {
-                            int written = inflater.inflate(outArr);
-                            if (written < outArr.length) {
-                                outArr = java.util.Arrays.copyOf(outArr, written);
-                            }
-                        } catch (java.util.zip.DataFormatException e) {
-                            throw new IOException("MSZIP decompression failed", e);
-                        } finally {
-                            inflater.end();
-                        }
-                        uncompressed = ByteBuffer.wrap(outArr);
-                        break;
-                    case TCOMP_TYPE_LZX:
-                    case TCOMP_TYPE_QUANTUM:
-                        byte[] lzBytes = new byte[dataBuf.remaining()];
-                        dataBuf.get(lzBytes);
-                        java.io.ByteArrayInputStream bis = new java.io.ByteArrayInputStream(lzBytes);
-                        byte[] lzOut = new byte[cbUncomp];
-                        try (org.tukaani.xz.XZInputStream xz = new org.tukaani.xz.XZInputStream(bis)) {
-                            int len = xz.read(lzOut);
-                            if (len < lzOut.length) {
-                                lzOut = java.util.Arrays.copyOf(lzOut, len);
-                            }
-                        }
-                        uncompressed = ByteBuffer.wrap(lzOut);
-                        break;
-                    case TCOMP_TYPE_NONE:
-                    default:
-                        uncompressed = dataBuf.duplicate();
-                        break;
-                }
+                int written = decompressor.decompress(dataBuf, scratch, 0, cbUncomp);
+                ByteBuffer uncompressed = ByteBuffer.wrap(scratch, 0, written);
 
                 while (uncompressed.hasRemaining()) {
                     int toWrite = Math.min(uncompressed.remaining(), current.size - writtenForCurrent);
@@ -444,6 +574,44 @@ public class CabExtractor {
             }
             fileOut.close();
         }
+        for (Map.Entry<FileInfo, FileInfo> copy : copies.entrySet()) {
+            Path out = outputDir.resolve(copy.getKey().name);
+            Files.createDirectories(out.getParent());
+            Files.copy(outputDir.resolve(copy.getValue().name), out, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a NUL-terminated string and returns its bytes without the NUL.
+     */
+    private static byte[] readString(ReadableByteChannel in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            readFully(in, one);
+            byte b = one.get(0);
+            if (b == 0) {
+                return buf.toByteArray();
+            }
+            buf.write(b);
+        }
+    }
+
+    /**
+     * Discards {@code n} bytes of the stream, which must not move backwards.
+     */
+    private static void skip(ReadableByteChannel in, long n) throws IOException {
+        if (n < 0) {
+            throw new IOException("Cabinet structures are not stored in order");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(n, 8192));
+        while (n > 0) {
+            buf.clear();
+            buf.limit((int) Math.min(n, buf.capacity()));
+            readFully(in, buf);
+            n -= buf.limit();
+        }
     }
 
     private static void readFully(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
@@ -462,7 +630,7 @@ public class CabExtractor {
      * @param restoreAttributes whether to restore DOS attributes and timestamps
      */
     public static void extractToDirectory(ByteBuffer cabBuffer, Path outputDir, boolean restoreAttributes) throws IOException {
-        Map<String, ExtractedFile> files = extractInternal(cabBuffer);
+        Map<String, ExtractedFile> files = extractInternal(cabBuffer, null);
         for (Map.Entry<String, ExtractedFile> entry : files.entrySet()) {
             Path p = outputDir.resolve(entry.getKey());
             Files.createDirectories(p.getParent());
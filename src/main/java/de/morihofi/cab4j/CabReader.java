@@ -0,0 +1,1295 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.compression.FolderDecompressor;
+import de.morihofi.cab4j.structures.CfFile;
+import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.CfHeader;
+import de.morihofi.cab4j.structures.SeekIndex;
+import de.morihofi.cab4j.util.ChecksumHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Random access reader for a single cabinet. The CFHEADER, CFFOLDER and
+ * CFFILE structures are parsed once when the reader is opened; reading a file
+ * afterwards only touches the folder that holds it and decodes its CFDATA
+ * blocks up to the end of the file. For uncompressed folders the blocks in
+ * front of the file are skipped entirely, the other codecs carry state from
+ * block to block and have to start at the beginning of the folder.
+ * <p>
+ * Cabinets held in memory or {@linkplain #map(Path) mapped} from disk are read
+ * without copying where possible: a file of an uncompressed folder that lies
+ * within one CFDATA block is returned as a read-only view onto the cabinet,
+ * and files spanning blocks are gathered straight from it.
+ * <p>
+ * The CFDATA headers of a folder are walked once, when it is first read. For
+ * folders carrying a {@link SeekIndex} the block positions are read from its
+ * table in one go instead. Folders flagged as {@link SeekIndex#FLAG_INDEPENDENT_BLOCKS}
+ * are decoded from the block holding a file, like uncompressed ones.
+ * <p>
+ * Cabinets announcing reserved areas in their header flags, such as signed
+ * cabinets, are supported: the header's abReserve area is available through
+ * {@link #getHeaderReserve()}, those of the CFFOLDER and CFDATA entries are
+ * skipped. As with other CAB readers, the CFDATA checksum does not cover the
+ * reserved bytes of a block.
+ * <p>
+ * A reader may be shared between threads. Readers created by
+ * {@link #open(Path)} hold the file open until they are
+ * {@linkplain #close() closed}.
+ */
+public final class CabReader implements Closeable {
+
+    private static final int CFHEADER_SIZE = 36;
+    private static final int CFFOLDER_SIZE = 8;
+    private static final int CFDATA_SIZE = 8;
+    /** Size of the cbCFHeader, cbCFFolder and cbCFData fields behind the header. */
+    private static final int CFRESERVE_SIZE = 4;
+    private static final byte[] NO_RESERVE = new byte[0];
+    /** Uncompressed bytes per task when a folder is extracted in slices. */
+    private static final long SLICE_SIZE = 1 << 20;
+
+    /**
+     * A file stored in the cabinet.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int size;
+        private final int folder;
+        private final int folderOffset;
+        private final short attribs;
+        private final LocalDateTime lastModified;
+
+        Entry(String name, int size, int folder, int folderOffset, short attribs, LocalDateTime lastModified) {
+            this.name = name;
+            this.size = size;
+            this.folder = folder;
+            this.folderOffset = folderOffset;
+            this.attribs = attribs;
+            this.lastModified = lastModified;
+        }
+
+        /** Returns the file name as stored in the cabinet. */
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the uncompressed size in bytes. */
+        public int getSize() {
+            return size;
+        }
+
+        /** Returns the index of the folder holding the file ({@code iFolder}). */
+        public int getFolder() {
+            return folder;
+        }
+
+        /** Returns the offset of the file in the uncompressed folder ({@code uoffFolderStart}). */
+        public int getFolderOffset() {
+            return folderOffset;
+        }
+
+        /** Returns the DOS file attributes. */
+        public short getAttribs() {
+            return attribs;
+        }
+
+        /** Returns the last modification timestamp. */
+        public LocalDateTime getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * CFFOLDER entry plus the lazily built positions of its CFDATA blocks. A
+     * folder spanning several cabinets of a set is a chain of such entries,
+     * one per cabinet, linked by {@link CabSetReader}.
+     */
+    static final class Folder {
+        final CabReader owner;
+        final long coffCabStart;
+        final int cCfData;
+        final short typeCompress;
+        /** The folder's abReserve area, empty if the cabinet reserves none. */
+        final byte[] reserve;
+        /** Cabinet offset of the folder's {@link SeekIndex} table, or -1. */
+        final long indexOffset;
+        /** Whether the folder's blocks are flagged as decodable on their own. */
+        final boolean independentBlocks;
+        /** Part of the folder in the previous and next cabinet, if it spans cabinets. */
+        volatile Folder previous;
+        volatile Folder next;
+        /** Cabinet offsets of the CFDATA headers. */
+        long[] blockPositions;
+        /**
+         * Folder offset at which each block starts, with the end of this part
+         * of the folder as last element.
+         */
+        long[] blockStarts;
+
+        Folder(CabReader owner, long coffCabStart, int cCfData, short typeCompress, byte[] reserve) {
+            this.owner = owner;
+            this.coffCabStart = coffCabStart;
+            this.cCfData = cCfData;
+            this.typeCompress = typeCompress;
+            this.reserve = reserve;
+            this.indexOffset = SeekIndex.readReference(reserve);
+            this.independentBlocks = (SeekIndex.readFlags(reserve) & SeekIndex.FLAG_INDEPENDENT_BLOCKS) != 0;
+        }
+
+        boolean isStored() {
+            int type = typeCompress & CfFolder.COMPRESS_TYPE.TCOMP_MASK_TYPE.getValue();
+            return type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE.getValue();
+        }
+
+        /**
+         * Returns whether decoding may start at any block: always for
+         * uncompressed folders, and for MSZIP folders flagged as independent.
+         */
+        boolean isRandomAccess() {
+            int type = typeCompress & CfFolder.COMPRESS_TYPE.TCOMP_MASK_TYPE.getValue();
+            return isStored() || independentBlocks && type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP.getValue();
+        }
+
+        /** Returns the folder offset behind the last block of this part; needs {@link #indexBlocks}. */
+        long end() {
+            return blockStarts[cCfData];
+        }
+    }
+
+    /**
+     * Positional access to the cabinet bytes.
+     */
+    private interface Source extends Closeable {
+        long size() throws IOException;
+
+        /** Fills {@code dst} with the bytes starting at {@code position}. */
+        void read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    private final Source source;
+    private final int flags;
+    private final short setId;
+    private final int cabinetIndex;
+    private final String previousCabinet;
+    private final String nextCabinet;
+    private final byte[] headerReserve;
+    /** Size of a CFDATA header including its abReserve area. */
+    final int dataHeaderSize;
+    final Folder[] folders;
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    private CabReader(Source source) throws IOException {
+        this.source = source;
+
+        ByteBuffer hdr = read(0, CFHEADER_SIZE);
+        if (hdr.get() != 'M' || hdr.get() != 'S' || hdr.get() != 'C' || hdr.get() != 'F') {
+            throw new IOException("Invalid CAB file");
+        }
+        hdr.getInt(); // reserved1
+        hdr.getInt(); // cbCabinet
+        hdr.getInt(); // reserved2
+        long coffFiles = Integer.toUnsignedLong(hdr.getInt());
+        hdr.getInt(); // reserved3
+        hdr.get(); // version minor
+        hdr.get(); // version major
+        int cFolders = Short.toUnsignedInt(hdr.getShort());
+        int cFiles = Short.toUnsignedInt(hdr.getShort());
+        flags = Short.toUnsignedInt(hdr.getShort());
+        setId = hdr.getShort();
+        cabinetIndex = Short.toUnsignedInt(hdr.getShort());
+
+        long folderStart = CFHEADER_SIZE;
+        int folderReserve = 0;
+        int dataReserve = 0;
+        if ((flags & CfHeader.FLAG_RESERVE_PRESENT) != 0) {
+            ByteBuffer sizes = read(folderStart, CFRESERVE_SIZE);
+            int cbCFHeader = Short.toUnsignedInt(sizes.getShort());
+            folderReserve = Byte.toUnsignedInt(sizes.get());
+            dataReserve = Byte.toUnsignedInt(sizes.get());
+            headerReserve = new byte[cbCFHeader];
+            read(folderStart + CFRESERVE_SIZE, cbCFHeader).get(headerReserve);
+            folderStart += CFRESERVE_SIZE + cbCFHeader;
+        } else {
+            headerReserve = NO_RESERVE;
+        }
+        dataHeaderSize = CFDATA_SIZE + dataReserve;
+        String prev = null;
+        String next = null;
+        if ((flags & (CfHeader.FLAG_PREV_CABINET | CfHeader.FLAG_NEXT_CABINET)) != 0) {
+            // up to four names of at most 255 bytes each
+            ByteBuffer names = read(folderStart, (int) Math.min(4 * 256, source.size() - folderStart));
+            try {
+                if ((flags & CfHeader.FLAG_PREV_CABINET) != 0) {
+                    prev = readString(names);
+                    readString(names); // szDiskPrev
+                }
+                if ((flags & CfHeader.FLAG_NEXT_CABINET) != 0) {
+                    next = readString(names);
+                    readString(names); // szDiskNext
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated cabinet names", e);
+            }
+            folderStart += names.position();
+        }
+        previousCabinet = prev;
+        nextCabinet = next;
+
+        folders = new Folder[cFolders];
+        long dataStart = source.size();
+        ByteBuffer fb = read(folderStart, cFolders * (CFFOLDER_SIZE + folderReserve));
+        for (int i = 0; i < cFolders; i++) {
+            long coffCabStart = Integer.toUnsignedLong(fb.getInt());
+            int cCfData = Short.toUnsignedInt(fb.getShort());
+            short typeCompress = fb.getShort();
+            byte[] reserve = NO_RESERVE;
+            if (folderReserve > 0) {
+                reserve = new byte[folderReserve];
+                fb.get(reserve);
+            }
+            folders[i] = new Folder(this, coffCabStart, cCfData, typeCompress, reserve);
+            dataStart = Math.min(dataStart, coffCabStart);
+        }
+
+        // the CFFILE entries end where the first CFDATA block begins
+        if (dataStart < coffFiles) {
+            throw new IOException("CFFILE offset " + coffFiles + " lies behind the CFDATA blocks");
+        }
+        ByteBuffer files = read(coffFiles, (int) (dataStart - coffFiles));
+        List<Entry> list = new ArrayList<>(cFiles);
+        Map<String, Entry> byName = new HashMap<>(cFiles * 2);
+        try {
+            for (int i = 0; i < cFiles; i++) {
+                int size = files.getInt();
+                int uoffFolderStart = files.getInt();
+                int iFolder = Short.toUnsignedInt(files.getShort());
+                short date = files.getShort();
+                short time = files.getShort();
+                short attribs = files.getShort();
+                Entry entry = new Entry(readString(files), size, iFolder,
+                        uoffFolderStart, attribs,
+                        LocalDateTime.of(CfFile.decodeDate(date), CfFile.decodeTime(time)));
+                list.add(entry);
+                byName.putIfAbsent(entry.name, entry);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated CFFILE entries", e);
+        }
+        entries = Collections.unmodifiableList(list);
+        entriesByName = byName;
+    }
+
+    /**
+     * Reads a NUL-terminated UTF-8 string and moves past the terminator.
+     */
+    private static String readString(ByteBuffer buf) {
+        int start = buf.position();
+        while (buf.get() != 0) {
+            // scan to the terminating NUL
+        }
+        byte[] value = new byte[buf.position() - start - 1];
+        buf.position(start);
+        buf.get(value);
+        buf.get();
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens a cabinet file. The file stays open until the reader is closed.
+     *
+     * @param path cabinet file
+     * @return a reader with the parsed cabinet index
+     * @throws IOException if the file cannot be read or is not a cabinet
+     */
+    public static CabReader open(Path path) throws IOException {
+        return open(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * Reads a cabinet from an open file channel using positional reads. The
+     * reader takes over the channel and closes it when it is closed, or right
+     * away if the channel does not hold a cabinet.
+     *
+     * @param channel channel of the cabinet file
+     * @return a reader with the parsed cabinet index
+     * @throws IOException if the channel cannot be read or is not a cabinet
+     */
+    public static CabReader open(FileChannel channel) throws IOException {
+        try {
+            return new CabReader(new ChannelSource(channel));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps a cabinet file into memory. The file is not held open; the mapping
+     * is released once the reader and every buffer returned by it are no
+     * longer referenced.
+     *
+     * @param path cabinet file of at most 2&nbsp;GB
+     * @return a reader with the parsed cabinet index
+     * @throws IOException if the file cannot be mapped or is not a cabinet
+     */
+    public static CabReader map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Cabinet of " + size + " bytes is too large to map");
+            }
+            return new CabReader(new BufferSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+        }
+    }
+
+    /**
+     * Opens a cabinet held in memory. The buffer's content from its position
+     * to its limit is the cabinet; the buffer itself is not modified, but buffers
+     * returned by the reader may share its content.
+     *
+     * @param cabBuffer cabinet data
+     * @return a reader with the parsed cabinet index
+     * @throws IOException if the data is not a cabinet
+     */
+    public static CabReader open(ByteBuffer cabBuffer) throws IOException {
+        return new CabReader(new BufferSource(cabBuffer));
+    }
+
+    /**
+     * Returns the files of the cabinet in CFFILE order.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the file with the given name, or {@code null} if the cabinet
+     * does not contain it. If several entries share a name, the first one is
+     * returned.
+     */
+    public Entry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * Returns the number of folders in the cabinet.
+     */
+    public int getFolderCount() {
+        return folders.length;
+    }
+
+    /**
+     * Returns the set ID shared by the cabinets of a set.
+     */
+    public int getSetId() {
+        return Short.toUnsignedInt(setId);
+    }
+
+    /**
+     * Returns the position of this cabinet in its set, starting at 0
+     * ({@code iCabinet}).
+     */
+    public int getCabinetIndex() {
+        return cabinetIndex;
+    }
+
+    /**
+     * Returns the file name of the previous cabinet of the set, or
+     * {@code null} if this cabinet does not continue another one.
+     */
+    public String getPreviousCabinet() {
+        return previousCabinet;
+    }
+
+    /**
+     * Returns the file name of the next cabinet of the set, or {@code null}
+     * if the set ends with this cabinet.
+     */
+    public String getNextCabinet() {
+        return nextCabinet;
+    }
+
+    /**
+     * Returns the per-cabinet abReserve area of the header, which e.g. holds
+     * the Authenticode signature of signed cabinets.
+     *
+     * @return a read-only buffer, empty if the cabinet reserves no header space
+     */
+    public ByteBuffer getHeaderReserve() {
+        return ByteBuffer.wrap(headerReserve).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads the contents of a file.
+     *
+     * @param name file name as stored in the cabinet
+     * @return the file contents, as described for {@link #read(Entry)}
+     * @throws FileNotFoundException if the cabinet has no such file
+     * @throws IOException           if the cabinet cannot be read or is corrupt
+     */
+    public ByteBuffer read(String name) throws IOException {
+        Entry entry = getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException("No such file in cabinet: " + name);
+        }
+        return read(entry);
+    }
+
+    /**
+     * Reads the contents of a file. Only the CFDATA blocks of its folder up
+     * to the end of the file are decoded.
+     *
+     * @param entry an entry of this reader
+     * @return a buffer holding the file contents; a read-only view onto the
+     * cabinet for files stored uncompressed within one block of an in-memory
+     * or mapped cabinet, a new buffer otherwise
+     * @throws IOException if the cabinet cannot be read or is corrupt
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        if (entry.size == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        Folder folder = folderOf(entry);
+        long start = Integer.toUnsignedLong(entry.folderOffset);
+        long end = start + entry.size;
+        if (folder.isStored() && folder.next == null && source instanceof BufferSource) {
+            return readStored((BufferSource) source, folder, start, end);
+        }
+
+        FolderCursor cursor = new FolderCursor(folder);
+        cursor.seek(start);
+        ByteBuffer result = ByteBuffer.allocate(entry.size);
+        while (result.hasRemaining()) {
+            cursor.read(result, result.remaining());
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Opens a channel that decodes the contents of a file block by block as
+     * they are read, so that at most one CFDATA block is held in memory.
+     * Nothing is decoded before the first read.
+     *
+     * @param entry an entry of this reader
+     * @return a channel delivering exactly {@link Entry#getSize()} bytes
+     * @throws IOException if the file's folder is not part of this cabinet
+     */
+    public ReadableByteChannel newChannel(Entry entry) throws IOException {
+        return new EntryChannel(entry, entry.size == 0 ? null : new FolderCursor(folderOf(entry)));
+    }
+
+    /**
+     * Extracts all files into a directory on the calling thread.
+     *
+     * @param outputDir directory to write the files to
+     * @throws IOException if the cabinet cannot be read or a file cannot be written
+     * @see #extractToDirectory(Path, Executor)
+     */
+    public void extractToDirectory(Path outputDir) throws IOException {
+        extractToDirectory(outputDir, null);
+    }
+
+    /**
+     * Extracts all files into a directory, decoding the folders in parallel.
+     * Every folder is an independent compression stream, so each one becomes
+     * a task on the executor that reads its blocks with positional reads and
+     * writes its files as it goes. Folders whose blocks decode independently
+     * are split into several tasks of about 1&nbsp;MB each. The method
+     * returns once all tasks have finished; if any of them failed, the first
+     * failure is rethrown.
+     *
+     * @param outputDir directory to write the files to
+     * @param executor  executor such as {@link java.util.concurrent.ForkJoinPool#commonPool()},
+     *                  or {@code null} to extract on the calling thread
+     * @throws IOException if the cabinet cannot be read or a file cannot be written
+     */
+    public void extractToDirectory(Path outputDir, Executor executor) throws IOException {
+        List<List<Entry>> perFolder = new ArrayList<>(folders.length);
+        for (int i = 0; i < folders.length; i++) {
+            perFolder.add(new ArrayList<>());
+        }
+        for (Entry entry : sortedEntries(entries)) {
+            if (entry.folder >= folders.length) {
+                throw new IOException("File " + entry.name + " continues in another cabinet");
+            }
+            perFolder.get(entry.folder).add(entry);
+        }
+        extractFolders(perFolder, outputDir, executor, this::folderOf);
+    }
+
+    /**
+     * Looks up the folder holding a non-empty file.
+     */
+    interface FolderLookup {
+        Folder folderOf(Entry entry) throws IOException;
+    }
+
+    /**
+     * Extracts the files of each folder, given per folder in folder order,
+     * as one task per folder, or one task per slice for folders that can be
+     * decoded from any block.
+     */
+    static void extractFolders(List<List<Entry>> perFolder, Path outputDir, Executor executor,
+                               FolderLookup lookup) throws IOException {
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        List<Path[]> copies = new ArrayList<>();
+        for (List<Entry> files : perFolder) {
+            if (files.isEmpty()) {
+                continue;
+            }
+            Folder folder = executor == null ? null : randomAccessFolder(files, lookup);
+            if (folder != null) {
+                for (Callable<Void> slice : sliceFolder(folder, files, outputDir, lookup, copies)) {
+                    submit(tasks, executor, slice);
+                }
+                continue;
+            }
+            submit(tasks, executor, () -> {
+                extractFolder(files, outputDir, lookup);
+                return null;
+            });
+        }
+
+        Throwable failure = null;
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting folders");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        for (Path[] copy : copies) {
+            Files.copy(copy[0], copy[1], StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void submit(List<FutureTask<Void>> tasks, Executor executor, Callable<Void> work) {
+        FutureTask<Void> task = new FutureTask<>(work);
+        tasks.add(task);
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Returns the folder of the given files if it can be decoded from any
+     * block, {@code null} otherwise.
+     */
+    private static Folder randomAccessFolder(List<Entry> files, FolderLookup lookup) throws IOException {
+        for (Entry entry : files) {
+            if (entry.size > 0) {
+                Folder folder = lookup.folderOf(entry);
+                return folder.isRandomAccess() ? folder : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the files of a folder and returns tasks that each decode one
+     * slice of the folder and write it into the files at their offsets.
+     * Copies of deduplicated files are added to {@code copies}.
+     */
+    private static List<Callable<Void>> sliceFolder(Folder folder, List<Entry> files, Path outputDir,
+                                                    FolderLookup lookup, List<Path[]> copies) throws IOException {
+        Path root = outputDir.toAbsolutePath().normalize();
+        List<Entry> stored = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        Entry previous = null;
+        Path previousOut = null;
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (Entry entry : files) {
+            Path out = outputPath(root, entry);
+            Files.createDirectories(out.getParent());
+            if (entry.size > 0 && previous != null && previous.folderOffset == entry.folderOffset
+                    && previous.size == entry.size) {
+                copies.add(new Path[]{previousOut, out});
+                continue;
+            }
+            previous = entry;
+            previousOut = out;
+            Files.newByteChannel(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE).close();
+            if (entry.size > 0) {
+                lookup.folderOf(entry);
+                stored.add(entry);
+                targets.add(out);
+                start = Math.min(start, Integer.toUnsignedLong(entry.folderOffset));
+                end = Math.max(end, Integer.toUnsignedLong(entry.folderOffset) + entry.size);
+            }
+        }
+
+        List<Callable<Void>> slices = new ArrayList<>();
+        for (long from = start; from < end; from += SLICE_SIZE) {
+            long sliceStart = from;
+            long sliceEnd = Math.min(end, from + SLICE_SIZE);
+            slices.add(() -> {
+                extractSlice(folder, stored, targets, sliceStart, sliceEnd);
+                return null;
+            });
+        }
+        return slices;
+    }
+
+    /**
+     * Decodes the folder range from {@code sliceStart} to {@code sliceEnd}
+     * and writes the parts of the files within it.
+     */
+    private static void extractSlice(Folder folder, List<Entry> files, List<Path> targets,
+                                     long sliceStart, long sliceEnd) throws IOException {
+        FolderCursor cursor = new FolderCursor(folder);
+        for (int i = 0; i < files.size(); i++) {
+            Entry entry = files.get(i);
+            long fileStart = Integer.toUnsignedLong(entry.folderOffset);
+            long from = Math.max(fileStart, sliceStart);
+            long to = Math.min(fileStart + entry.size, sliceEnd);
+            if (from >= to) {
+                continue;
+            }
+            cursor.seek(from);
+            try (FileChannel out = FileChannel.open(targets.get(i), StandardOpenOption.WRITE)) {
+                out.position(from - fileStart);
+                long remaining = to - from;
+                while (remaining > 0) {
+                    remaining -= cursor.transferTo(out, remaining);
+                }
+            }
+        }
+    }
+
+    private static Path outputPath(Path root, Entry entry) throws IOException {
+        Path out = root.resolve(entry.name).normalize();
+        if (!out.startsWith(root) || out.equals(root)) {
+            throw new IOException("File name " + entry.name + " points outside the output directory");
+        }
+        return out;
+    }
+
+    /**
+     * Writes the files of one folder, given in folder order, decoding the
+     * folder once.
+     */
+    private static void extractFolder(List<Entry> files, Path outputDir, FolderLookup lookup) throws IOException {
+        Path root = outputDir.toAbsolutePath().normalize();
+        FolderCursor cursor = null;
+        Entry previous = null;
+        Path previousOut = null;
+        for (Entry entry : files) {
+            Path out = outputPath(root, entry);
+            Files.createDirectories(out.getParent());
+            if (entry.size > 0 && previous != null && previous.folderOffset == entry.folderOffset
+                    && previous.size == entry.size) {
+                // a deduplicated copy of the previous file
+                Files.copy(previousOut, out, StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            previous = entry;
+            previousOut = out;
+            try (FileChannel fileOut = FileChannel.open(out, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                if (entry.size == 0) {
+                    continue;
+                }
+                Folder folder = lookup.folderOf(entry);
+                if (cursor == null) {
+                    cursor = new FolderCursor(folder);
+                }
+                cursor.seek(Integer.toUnsignedLong(entry.folderOffset));
+                long remaining = entry.size;
+                while (remaining > 0) {
+                    remaining -= cursor.transferTo(fileOut, remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over all files, ordered by folder and by their offset
+     * within the folder. Each folder is decoded once while the stream moves
+     * through its files, in the manner of {@link java.util.zip.ZipInputStream}.
+     */
+    public EntryStream entryStream() {
+        return new EntryStream(sortedEntries(entries), this::folderOf);
+    }
+
+    /**
+     * Returns the entries ordered by folder and folder offset.
+     */
+    static List<Entry> sortedEntries(List<Entry> entries) {
+        List<Entry> ordered = new ArrayList<>(entries);
+        ordered.sort(Comparator.comparingInt((Entry e) -> e.folder)
+                .thenComparingLong(e -> Integer.toUnsignedLong(e.folderOffset)));
+        return ordered;
+    }
+
+    /**
+     * Sequential access to the files of a cabinet, obtained from
+     * {@link #entryStream()}. Moving to the next entry closes the channel of
+     * the previous one. An entry stream must only be used by one thread at a
+     * time.
+     * <p>
+     * Deduplicated copies share the folder range of the file they follow. For
+     * files of up to {@link #COPY_BUFFER_LIMIT} bytes in folders that can only
+     * be decoded from their first block, the bytes of that file are kept while
+     * it is read and handed out again for its copies. Larger copies decode
+     * the folder once more from the start.
+     */
+    public static final class EntryStream {
+        /** Largest file whose bytes are kept for the deduplicated copies following it. */
+        static final int COPY_BUFFER_LIMIT = 1 << 24;
+
+        private final List<Entry> ordered;
+        private final FolderLookup lookup;
+        private int index;
+        private Entry current;
+        private ReadableByteChannel channel;
+        private EntryChannel recording;
+        private byte[] copy;
+        private FolderCursor cursor;
+
+        EntryStream(List<Entry> ordered, FolderLookup lookup) {
+            this.ordered = ordered;
+            this.lookup = lookup;
+        }
+
+        /**
+         * Advances to the next file.
+         *
+         * @return the next entry, or {@code null} after the last one
+         * @throws IOException if the entry's folder is not part of this cabinet
+         */
+        public Entry getNextEntry() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (index == ordered.size()) {
+                current = null;
+                return null;
+            }
+            Entry previous = current;
+            current = ordered.get(index++);
+            if (previous != null && isCopy(previous, current) && (copy != null || recording != null)) {
+                if (copy == null) {
+                    copy = recording.recorded();
+                    recording = null;
+                }
+                channel = Channels.newChannel(new ByteArrayInputStream(copy));
+                return current;
+            }
+            copy = null;
+            recording = null;
+            if (current.size > 0) {
+                Folder folder = lookup.folderOf(current);
+                if (cursor == null || cursor.folder != folder) {
+                    cursor = new FolderCursor(folder);
+                }
+            }
+            EntryChannel entryChannel = new EntryChannel(current, current.size == 0 ? null : cursor);
+            if (index < ordered.size() && isCopy(current, ordered.get(index))
+                    && !cursor.folder.isRandomAccess() && current.size <= COPY_BUFFER_LIMIT) {
+                entryChannel.record();
+                recording = entryChannel;
+            }
+            channel = entryChannel;
+            return current;
+        }
+
+        private static boolean isCopy(Entry original, Entry entry) {
+            return entry.size > 0 && entry.size == original.size && entry.folder == original.folder
+                    && entry.folderOffset == original.folderOffset;
+        }
+
+        /**
+         * Returns the channel of the current entry. It continues decoding the
+         * folder where the previous entry ended.
+         *
+         * @throws IllegalStateException if {@link #getNextEntry()} has not
+         *                               returned an entry
+         */
+        public ReadableByteChannel channel() {
+            if (channel == null) {
+                throw new IllegalStateException("No current entry");
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Channel over the bytes of one file, reading through a folder cursor.
+     */
+    static final class EntryChannel implements ReadableByteChannel {
+        private final Entry entry;
+        private final FolderCursor cursor;
+        private long remaining;
+        private boolean positioned;
+        private boolean open = true;
+        /** Copy of the bytes read so far, if requested. */
+        private byte[] record;
+
+        EntryChannel(Entry entry, FolderCursor cursor) {
+            this.entry = entry;
+            this.cursor = cursor;
+            this.remaining = entry.size;
+        }
+
+        /** Keeps a copy of the bytes handed out from now on. */
+        void record() {
+            record = new byte[entry.size];
+        }
+
+        /**
+         * Returns the recorded bytes of the file, decoding the part that has
+         * not been read yet.
+         */
+        byte[] recorded() throws IOException {
+            position();
+            while (remaining > 0) {
+                int off = (int) (entry.size - remaining);
+                remaining -= cursor.read(ByteBuffer.wrap(record, off, (int) remaining), remaining);
+            }
+            return record;
+        }
+
+        private void position() throws IOException {
+            if (!positioned) {
+                cursor.seek(Integer.toUnsignedLong(entry.folderOffset));
+                positioned = true;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            position();
+            int n = cursor.read(dst, remaining);
+            if (record != null) {
+                ByteBuffer read = dst.duplicate();
+                read.position(dst.position() - n);
+                read.get(record, (int) (entry.size - remaining), n);
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Decodes the CFDATA blocks of a folder in order and hands out the
+     * uncompressed bytes from a position within the folder.
+     */
+    static final class FolderCursor {
+        final Folder folder;
+        /** Part of the folder holding {@link #block}. */
+        private Folder piece;
+        private FolderDecompressor decompressor;
+        private final byte[] scratch = new byte[0xFFFF];
+        private int scratchPos;
+        private int scratchLen;
+        /** Next block to decode. */
+        private int block;
+        /** Folder offset of {@code scratch[scratchPos]}. */
+        private long position = -1;
+
+        FolderCursor(Folder folder) {
+            this.folder = folder;
+            this.piece = folder;
+        }
+
+        /**
+         * Moves to a folder offset. Moving backwards restarts decoding at the
+         * beginning of the folder; uncompressed folders and folders of
+         * independent blocks go straight to the block holding the offset.
+         */
+        void seek(long offset) throws IOException {
+            boolean skipBlocks = folder.isRandomAccess() && position >= 0 && offset >= piece.blockStarts[block];
+            if (position < 0 || offset < position || skipBlocks) {
+                piece = folder;
+                if (folder.isRandomAccess()) {
+                    while (piece.next != null && offset >= piece.end()) {
+                        piece = piece.next;
+                        indexBlocks(piece);
+                    }
+                    block = findBlock(piece.blockStarts, piece.cCfData, offset);
+                } else {
+                    block = 0;
+                }
+                decompressor = FolderDecompressor.create(folder.typeCompress);
+                position = piece.blockStarts[block];
+                scratchPos = 0;
+                scratchLen = 0;
+            }
+            while (position < offset) {
+                if (scratchPos == scratchLen) {
+                    nextBlock();
+                }
+                int n = (int) Math.min(scratchLen - scratchPos, offset - position);
+                scratchPos += n;
+                position += n;
+            }
+        }
+
+        /**
+         * Copies at most {@code max} bytes to {@code dst}, decoding the next
+         * block if the current one is used up.
+         */
+        int read(ByteBuffer dst, long max) throws IOException {
+            if (scratchPos == scratchLen) {
+                nextBlock();
+            }
+            int n = (int) Math.min(Math.min(dst.remaining(), max), scratchLen - scratchPos);
+            dst.put(scratch, scratchPos, n);
+            scratchPos += n;
+            position += n;
+            return n;
+        }
+
+        /**
+         * Writes at most {@code max} bytes to {@code out}, decoding the next
+         * block if the current one is used up.
+         */
+        int transferTo(WritableByteChannel out, long max) throws IOException {
+            if (scratchPos == scratchLen) {
+                nextBlock();
+            }
+            int n = (int) Math.min(max, scratchLen - scratchPos);
+            ByteBuffer src = ByteBuffer.wrap(scratch, scratchPos, n);
+            while (src.hasRemaining()) {
+                out.write(src);
+            }
+            scratchPos += n;
+            position += n;
+            return n;
+        }
+
+        private void nextBlock() throws IOException {
+            while (block == piece.cCfData) {
+                // continue with the part of the folder in the next cabinet
+                if (piece.next == null) {
+                    throw new IOException("Unexpected end of folder data");
+                }
+                piece = piece.next;
+                indexBlocks(piece);
+                block = 0;
+            }
+            ByteBuffer db = piece.owner.read(piece.blockPositions[block], CFDATA_SIZE);
+            int csum = db.getInt();
+            int cbData = Short.toUnsignedInt(db.getShort());
+            int cbUncomp = Short.toUnsignedInt(db.getShort());
+            checkBlockSize(piece, block, cbUncomp);
+            ByteBuffer payload = piece.owner.read(piece.blockPositions[block] + piece.owner.dataHeaderSize, cbData);
+            verifyChecksum(csum, cbData, cbUncomp, payload);
+            scratchLen = decompressor.decompress(payload, scratch, 0, cbUncomp);
+            scratchPos = 0;
+            block++;
+        }
+    }
+
+    /**
+     * Returns the folder holding a non-empty file after checking that the
+     * file lies within it.
+     */
+    private Folder folderOf(Entry entry) throws IOException {
+        if (entry.folder >= folders.length) {
+            throw new IOException("File " + entry.name + " continues in another cabinet");
+        }
+        Folder folder = folders[entry.folder];
+        indexBlocks(folder);
+        long end = Integer.toUnsignedLong(entry.folderOffset) + entry.size;
+        if (end > folder.end()) {
+            throw new IOException("File " + entry.name + " extends beyond the end of folder " + entry.folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Reads a file of an uncompressed folder directly from the cabinet bytes,
+     * without a decompressor and scratch buffer.
+     */
+    private ByteBuffer readStored(BufferSource src, Folder folder, long start, long end) throws IOException {
+        int first = findBlock(folder.blockStarts, folder.cCfData, start);
+        int last = findBlock(folder.blockStarts, folder.cCfData, end - 1);
+        if (first == last) {
+            ByteBuffer payload = storedPayload(src, folder, first);
+            payload.position((int) (start - folder.blockStarts[first]));
+            payload.limit((int) (end - folder.blockStarts[first]));
+            return payload.slice();
+        }
+
+        ByteBuffer result = ByteBuffer.allocate((int) (end - start));
+        for (int block = first; block <= last; block++) {
+            ByteBuffer payload = storedPayload(src, folder, block);
+            long blockStart = folder.blockStarts[block];
+            payload.position((int) (Math.max(start, blockStart) - blockStart));
+            payload.limit((int) (Math.min(end, folder.blockStarts[block + 1]) - blockStart));
+            result.put(payload);
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Returns a read-only view of the payload of an uncompressed block after
+     * verifying its checksum.
+     */
+    private static ByteBuffer storedPayload(BufferSource src, Folder folder, int block) throws IOException {
+        ByteBuffer db = src.view(folder.blockPositions[block], CFDATA_SIZE);
+        db.order(ByteOrder.LITTLE_ENDIAN);
+        int csum = db.getInt();
+        int cbData = Short.toUnsignedInt(db.getShort());
+        int cbUncomp = Short.toUnsignedInt(db.getShort());
+        if (cbData != cbUncomp) {
+            throw new IOException("Uncompressed CFDATA block stores " + cbData + " bytes for " + cbUncomp);
+        }
+        checkBlockSize(folder, block, cbUncomp);
+        ByteBuffer payload = src.view(folder.blockPositions[block] + folder.owner.dataHeaderSize, cbData);
+        verifyChecksum(csum, cbData, cbUncomp, payload);
+        return payload;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Checks a block's cbUncomp against the sizes the block positions were
+     * built from, which may come from a seek index.
+     */
+    private static void checkBlockSize(Folder folder, int block, int cbUncomp) throws IOException {
+        if (folder.blockStarts[block + 1] - folder.blockStarts[block] != cbUncomp) {
+            throw new IOException("CFDATA block " + block + " does not match the seek index");
+        }
+    }
+
+    /**
+     * Records once where each block of a folder lies in the cabinet and in
+     * the uncompressed folder, from the folder's seek index if it has one
+     * and by walking its CFDATA headers otherwise.
+     */
+    static void indexBlocks(Folder folder) throws IOException {
+        synchronized (folder) {
+            if (folder.blockPositions != null) {
+                return;
+            }
+            long[] positions = new long[folder.cCfData];
+            long[] starts = new long[folder.cCfData + 1];
+            if (folder.previous != null) {
+                // offsets count from the start of the folder in an earlier cabinet
+                indexBlocks(folder.previous);
+                starts[0] = folder.previous.end();
+            }
+            if (folder.indexOffset >= 0) {
+                readSeekIndex(folder, positions, starts);
+                folder.blockStarts = starts;
+                folder.blockPositions = positions;
+                return;
+            }
+            long pos = folder.coffCabStart;
+            for (int i = 0; i < folder.cCfData; i++) {
+                ByteBuffer db = folder.owner.read(pos, CFDATA_SIZE);
+                db.getInt(); // csum
+                int cbData = Short.toUnsignedInt(db.getShort());
+                int cbUncomp = Short.toUnsignedInt(db.getShort());
+                positions[i] = pos;
+                starts[i + 1] = starts[i] + cbUncomp;
+                pos += folder.owner.dataHeaderSize + cbData;
+            }
+            folder.blockStarts = starts;
+            folder.blockPositions = positions;
+        }
+    }
+
+    /**
+     * Reads the block positions of a folder from its {@link SeekIndex} table
+     * with a single read, checking that they are ordered.
+     */
+    private static void readSeekIndex(Folder folder, long[] positions, long[] starts) throws IOException {
+        long folderStart = starts[0];
+        ByteBuffer table = folder.owner.read(folder.indexOffset, (folder.cCfData + 1) * SeekIndex.ENTRY_SIZE);
+        long previousPos = folder.coffCabStart - folder.owner.dataHeaderSize;
+        for (int i = 0; i <= folder.cCfData; i++) {
+            long pos = folder.coffCabStart + Integer.toUnsignedLong(table.getInt());
+            long start = Integer.toUnsignedLong(table.getInt());
+            if (i == 0 ? pos != folder.coffCabStart || start != folderStart
+                    : pos < previousPos + folder.owner.dataHeaderSize || start < starts[i - 1]) {
+                throw new IOException("Corrupt seek index at entry " + i);
+            }
+            if (i < folder.cCfData) {
+                positions[i] = pos;
+            }
+            starts[i] = start;
+            previousPos = pos;
+        }
+    }
+
+    /**
+     * Returns the block containing the folder offset {@code offset}.
+     */
+    private static int findBlock(long[] starts, int count, long offset) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks a CFDATA checksum; zero means that no checksum was stored.
+     */
+    private static void verifyChecksum(int csum, int cbData, int cbUncomp, ByteBuffer payload) throws IOException {
+        if (csum != 0 && ChecksumHelper.cfDataChecksum(cbData, cbUncomp, payload) != csum) {
+            throw new IOException("CFDATA checksum mismatch");
+        }
+    }
+
+    ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        source.read(buf, position);
+        buf.flip();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static final class ChannelSource implements Source {
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long position) throws IOException {
+            long pos = position;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of cabinet");
+                }
+                pos += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class BufferSource implements Source {
+        private final ByteBuffer buffer;
+
+        BufferSource(ByteBuffer cabBuffer) {
+            this.buffer = cabBuffer.slice();
+        }
+
+        @Override
+        public long size() {
+            return buffer.limit();
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long position) throws IOException {
+            if (position < 0 || position + dst.remaining() > buffer.limit()) {
+                throw new IOException("Unexpected end of cabinet");
+            }
+            ByteBuffer src = buffer.duplicate();
+            src.position((int) position);
+            src.limit((int) position + dst.remaining());
+            dst.put(src);
+        }
+
+        /** Returns a read-only view of {@code length} bytes at {@code position}. */
+        ByteBuffer view(long position, int length) throws IOException {
+            if (position < 0 || position + length > buffer.limit()) {
+                throw new IOException("Unexpected end of cabinet");
+            }
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.position((int) position);
+            view.limit((int) position + length);
+            return view.slice();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
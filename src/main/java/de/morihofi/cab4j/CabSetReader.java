@@ -0,0 +1,432 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.structures.CfFile;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Random access reader for a cabinet set, i.e. cabinets that continue
+ * folders in the next cabinet of the set. The cabinets are given in set
+ * order and read in place: a folder spanning cabinets is decoded by moving
+ * from the CFDATA blocks of one cabinet to those of the next, so files
+ * crossing a cabinet boundary are streamed without joining the cabinets on
+ * disk first.
+ * <p>
+ * Cabinets are opened and parsed one after the other only when a lookup
+ * needs them, so reading a file from the first disk of a large set leaves
+ * the other disks untouched. Each cabinet is checked to carry the set ID of
+ * the first one and the next {@code iCabinet} number.
+ * <p>
+ * {@link CabReader.Entry#getFolder()} of the entries returned here numbers
+ * the folders of the whole set, with a continued folder counted once.
+ * A reader may be shared between threads.
+ */
+public final class CabSetReader implements Closeable {
+
+    private static final int IFOLD_CONTINUED_FROM_PREV =
+            CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_FROM_PREV.getValue();
+    private static final int IFOLD_CONTINUED_TO_NEXT =
+            CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_TO_NEXT.getValue();
+    private static final int IFOLD_CONTINUED_PREV_AND_NEXT =
+            CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_PREV_AND_NEXT.getValue();
+
+    /**
+     * Opens the cabinet at a position of the set.
+     */
+    private interface VolumeOpener {
+        CabReader open(int index) throws IOException;
+    }
+
+    private final VolumeOpener opener;
+    /** Channels handed in by the caller, closed even if never parsed; {@code null} for paths. */
+    private final List<? extends Closeable> channels;
+    private final CabReader[] volumes;
+    private int parsed;
+    /** First part of each folder of the set. */
+    private final List<CabReader.Folder> folders = new ArrayList<>();
+    private final List<CabReader.Entry> entries = new ArrayList<>();
+    private final Map<String, CabReader.Entry> entriesByName = new HashMap<>();
+    private boolean closed;
+
+    private CabSetReader(int count, VolumeOpener opener, List<? extends Closeable> channels) {
+        if (count == 0) {
+            throw new IllegalArgumentException("A cabinet set needs at least one cabinet");
+        }
+        this.opener = opener;
+        this.channels = channels;
+        this.volumes = new CabReader[count];
+    }
+
+    /**
+     * Reads a cabinet set from files, opening each file when it is first
+     * needed.
+     *
+     * @param cabinets the cabinet files in set order
+     * @return a reader over the files of the set
+     * @throws IOException if the first cabinet cannot be read or is not a cabinet
+     */
+    public static CabSetReader open(List<Path> cabinets) throws IOException {
+        List<Path> paths = new ArrayList<>(cabinets);
+        paths.forEach(p -> Objects.requireNonNull(p, "cabinet"));
+        CabSetReader reader = new CabSetReader(paths.size(), i -> CabReader.open(paths.get(i)), null);
+        return reader.init();
+    }
+
+    /**
+     * Reads a cabinet set from open file channels using positional reads.
+     * The reader takes over the channels and closes all of them when it is
+     * closed.
+     *
+     * @param cabinets channels of the cabinet files in set order
+     * @return a reader over the files of the set
+     * @throws IOException if the first cabinet cannot be read or is not a cabinet
+     */
+    public static CabSetReader openChannels(List<? extends FileChannel> cabinets) throws IOException {
+        List<FileChannel> list = new ArrayList<>(cabinets);
+        list.forEach(c -> Objects.requireNonNull(c, "cabinet"));
+        CabSetReader reader = new CabSetReader(list.size(), i -> CabReader.open(list.get(i)), list);
+        return reader.init();
+    }
+
+    /**
+     * Reads a cabinet set held in memory, e.g. as created by
+     * {@link de.morihofi.cab4j.generator.CabGenerator#createCabinetSet(long)}.
+     *
+     * @param cabinets the cabinets in set order
+     * @return a reader over the files of the set
+     * @throws IOException if the first buffer does not hold a cabinet
+     */
+    public static CabSetReader openBuffers(List<ByteBuffer> cabinets) throws IOException {
+        List<ByteBuffer> list = new ArrayList<>(cabinets);
+        list.forEach(b -> Objects.requireNonNull(b, "cabinet"));
+        CabSetReader reader = new CabSetReader(list.size(), i -> CabReader.open(list.get(i)), null);
+        return reader.init();
+    }
+
+    private CabSetReader init() throws IOException {
+        try {
+            parseNext();
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of cabinets in the set.
+     */
+    public int getVolumeCount() {
+        return volumes.length;
+    }
+
+    /**
+     * Returns the files of all cabinets in CFFILE order, with each file
+     * spanning cabinets listed once. All cabinets of the set are parsed.
+     *
+     * @throws IOException if a cabinet cannot be read or does not belong to the set
+     */
+    public synchronized List<CabReader.Entry> getEntries() throws IOException {
+        while (parsed < volumes.length) {
+            parseNext();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * Looks up a file by its name, parsing cabinets until it is found.
+     *
+     * @param name file name as stored in the cabinet
+     * @return the entry, or {@code null} if no cabinet of the set has such a file
+     * @throws IOException if a cabinet cannot be read or does not belong to the set
+     */
+    public synchronized CabReader.Entry getEntry(String name) throws IOException {
+        CabReader.Entry entry = entriesByName.get(name);
+        while (entry == null && parsed < volumes.length) {
+            parseNext();
+            entry = entriesByName.get(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the contents of a file.
+     *
+     * @param name file name as stored in the cabinet
+     * @return a new buffer holding the file contents
+     * @throws FileNotFoundException if the set has no such file
+     * @throws IOException           if a cabinet cannot be read or is corrupt
+     */
+    public ByteBuffer read(String name) throws IOException {
+        CabReader.Entry entry = getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException("No such file in cabinet set: " + name);
+        }
+        return read(entry);
+    }
+
+    /**
+     * Reads the contents of a file, opening the following cabinets if the
+     * file continues in them.
+     *
+     * @param entry an entry of this reader
+     * @return a new buffer holding the file contents
+     * @throws IOException if a cabinet cannot be read or is corrupt
+     */
+    public ByteBuffer read(CabReader.Entry entry) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(entry.getSize());
+        if (entry.getSize() > 0) {
+            CabReader.FolderCursor cursor = new CabReader.FolderCursor(folderOf(entry));
+            cursor.seek(Integer.toUnsignedLong(entry.getFolderOffset()));
+            while (result.hasRemaining()) {
+                cursor.read(result, result.remaining());
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Opens a channel that decodes the contents of a file block by block as
+     * they are read, moving on to the next cabinet where the file continues.
+     *
+     * @param entry an entry of this reader
+     * @return a channel delivering exactly {@link CabReader.Entry#getSize()} bytes
+     * @throws IOException if a cabinet holding the file cannot be read
+     */
+    public ReadableByteChannel newChannel(CabReader.Entry entry) throws IOException {
+        return new CabReader.EntryChannel(entry,
+                entry.getSize() == 0 ? null : new CabReader.FolderCursor(folderOf(entry)));
+    }
+
+    /**
+     * Returns a stream over all files of the set, ordered by folder and
+     * folder offset, so each folder is decoded once.
+     *
+     * @throws IOException if a cabinet cannot be read or does not belong to the set
+     */
+    public CabReader.EntryStream entryStream() throws IOException {
+        return new CabReader.EntryStream(CabReader.sortedEntries(getEntries()), this::folderOf);
+    }
+
+    /**
+     * Extracts all files of the set into a directory on the calling thread.
+     *
+     * @param outputDir directory to write the files to
+     * @throws IOException if a cabinet cannot be read or a file cannot be written
+     */
+    public void extractToDirectory(Path outputDir) throws IOException {
+        extractToDirectory(outputDir, null);
+    }
+
+    /**
+     * Extracts all files of the set into a directory, decoding the folders
+     * as independent tasks on the given executor.
+     *
+     * @param outputDir directory to write the files to
+     * @param executor  executor running one task per folder, or {@code null}
+     *                  to extract on the calling thread
+     * @throws IOException if a cabinet cannot be read or a file cannot be written
+     */
+    public void extractToDirectory(Path outputDir, Executor executor) throws IOException {
+        List<CabReader.Entry> all = getEntries();
+        List<List<CabReader.Entry>> perFolder = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < folders.size(); i++) {
+                perFolder.add(new ArrayList<>());
+            }
+        }
+        for (CabReader.Entry entry : CabReader.sortedEntries(all)) {
+            perFolder.get(entry.getFolder()).add(entry);
+        }
+        CabReader.extractFolders(perFolder, outputDir, executor, this::folderOf);
+    }
+
+    /**
+     * Opens and parses the next cabinet of the set, links its first folder
+     * to the last folder of the previous cabinet if files continue between
+     * them and adds its files.
+     */
+    private synchronized void parseNext() throws IOException {
+        if (closed) {
+            throw new IOException("Cabinet set reader is closed");
+        }
+        int index = parsed;
+        CabReader volume = opener.open(index);
+        try {
+            addVolume(index, volume);
+        } catch (IOException | RuntimeException e) {
+            try {
+                volume.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        volumes[index] = volume;
+        parsed++;
+    }
+
+    private void addVolume(int index, CabReader volume) throws IOException {
+        boolean continuesFromPrevious = false;
+        boolean continuesToNext = false;
+        for (CabReader.Entry entry : volume.getEntries()) {
+            int iFolder = entry.getFolder();
+            continuesFromPrevious |= iFolder == IFOLD_CONTINUED_FROM_PREV || iFolder == IFOLD_CONTINUED_PREV_AND_NEXT;
+            continuesToNext |= iFolder == IFOLD_CONTINUED_TO_NEXT || iFolder == IFOLD_CONTINUED_PREV_AND_NEXT;
+        }
+
+        CabReader previous = index == 0 ? null : volumes[index - 1];
+        if (previous == null) {
+            if (volume.getPreviousCabinet() != null || continuesFromPrevious) {
+                throw new IOException("The first cabinet continues " + volume.getPreviousCabinet()
+                        + ", the set is incomplete");
+            }
+        } else {
+            if (volume.getSetId() != previous.getSetId()) {
+                throw new IOException("Cabinet " + index + " belongs to set " + volume.getSetId()
+                        + ", not to set " + previous.getSetId());
+            }
+            if (volume.getCabinetIndex() != previous.getCabinetIndex() + 1) {
+                throw new IOException("Cabinet " + index + " has number " + volume.getCabinetIndex()
+                        + " instead of " + (previous.getCabinetIndex() + 1));
+            }
+            if (volume.getPreviousCabinet() == null) {
+                throw new IOException("Cabinet " + index + " does not continue a previous cabinet");
+            }
+        }
+        if (index == volumes.length - 1 && (volume.getNextCabinet() != null || continuesToNext)) {
+            throw new IOException("The set continues in " + volume.getNextCabinet() + " after the last cabinet");
+        }
+        if (index < volumes.length - 1 && volume.getNextCabinet() == null) {
+            throw new IOException("The set ends with cabinet " + index + " of " + volumes.length);
+        }
+
+        int base = folders.size();
+        int first = 0;
+        if (continuesFromPrevious) {
+            CabReader.Folder tail = previous.folders.length == 0 ? null : previous.folders[previous.folders.length - 1];
+            if (tail == null || volume.folders.length == 0) {
+                throw new IOException("Cabinet " + index + " continues a folder that does not exist");
+            }
+            CabReader.Folder head = volume.folders[0];
+            if (head.typeCompress != tail.typeCompress) {
+                throw new IOException("Cabinet " + index + " continues a folder with another compression type");
+            }
+            head.previous = tail;
+            tail.next = head;
+            base--;
+            first = 1;
+        }
+        for (int i = first; i < volume.folders.length; i++) {
+            folders.add(volume.folders[i]);
+        }
+
+        for (CabReader.Entry entry : volume.getEntries()) {
+            int iFolder = entry.getFolder();
+            int folder;
+            if (iFolder == IFOLD_CONTINUED_FROM_PREV || iFolder == IFOLD_CONTINUED_PREV_AND_NEXT) {
+                // listed by the cabinet it starts in
+                continue;
+            } else if (iFolder == IFOLD_CONTINUED_TO_NEXT) {
+                folder = base + volume.folders.length - 1;
+            } else if (iFolder < volume.folders.length) {
+                folder = base + iFolder;
+            } else {
+                throw new IOException("File " + entry.getName() + " refers to missing folder " + iFolder);
+            }
+            CabReader.Entry setEntry = new CabReader.Entry(entry.getName(), entry.getSize(), folder,
+                    entry.getFolderOffset(), entry.getAttribs(), entry.getLastModified());
+            entries.add(setEntry);
+            entriesByName.putIfAbsent(setEntry.getName(), setEntry);
+        }
+    }
+
+    /**
+     * Returns the first part of the folder holding a non-empty file after
+     * checking that the file lies within the folder, parsing further
+     * cabinets while the folder continues in them.
+     */
+    private CabReader.Folder folderOf(CabReader.Entry entry) throws IOException {
+        CabReader.Folder head;
+        synchronized (this) {
+            head = folders.get(entry.getFolder());
+        }
+        long end = Integer.toUnsignedLong(entry.getFolderOffset()) + entry.getSize();
+        CabReader.Folder piece = head;
+        CabReader.indexBlocks(piece);
+        while (end > piece.end()) {
+            if (piece.next == null && !continueFolder(piece)) {
+                throw new IOException("File " + entry.getName() + " extends beyond the end of folder "
+                        + entry.getFolder());
+            }
+            piece = piece.next;
+            CabReader.indexBlocks(piece);
+        }
+        return head;
+    }
+
+    /**
+     * Parses the next cabinet if the given folder part is the last folder
+     * of the last parsed cabinet.
+     *
+     * @return whether the folder continues in another cabinet
+     */
+    private synchronized boolean continueFolder(CabReader.Folder piece) throws IOException {
+        if (piece.next == null && parsed < volumes.length) {
+            CabReader last = volumes[parsed - 1];
+            if (piece.owner == last && piece == last.folders[last.folders.length - 1]) {
+                parseNext();
+            }
+        }
+        return piece.next != null;
+    }
+
+    /**
+     * Closes the cabinets opened so far, and any channels handed in for
+     * cabinets that were never parsed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (int i = 0; i < volumes.length; i++) {
+            Closeable resource = volumes[i] != null ? volumes[i] : channels != null ? channels.get(i) : null;
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -1,21 +1,25 @@
 package de.morihofi.cab4j.archive;
 
-import de.morihofi.cab4j.file.FileUtils;
 import de.morihofi.cab4j.structures.CfFile;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.DosFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.stream.Stream;
 
 /**
  * Represents the contents of a cabinet archive. It merely stores file data and
@@ -38,12 +42,27 @@ public class CabArchive {
      */
     public static final int MAX_FILE_SIZE = 0x7FFF8000;
 
+    /**
+     * Opens the data of a file. The generator calls it when it reaches the
+     * file and closes the channel as soon as the file has been read, so an
+     * archive of many files does not hold a descriptor for each of them.
+     */
+    @FunctionalInterface
+    public interface DataSource {
+        /**
+         * Opens a channel positioned at the start of the file data.
+         */
+        ReadableByteChannel open() throws IOException;
+    }
+
     /**
      * Internal representation of a file within the archive.
      */
     public static class FileEntry {
-        /** Input stream supplying the file data. */
+        /** Input stream supplying the file data, or {@code null} if the data is opened lazily. */
         public final InputStream in;
+        /** Opens the file data; see {@link #open()}. */
+        public final DataSource source;
         /** Uncompressed file size in bytes. */
         public final long size;
         /** DOS file attributes. */
@@ -52,6 +71,8 @@ public class CabArchive {
         public final short folder;
         /** Last modification timestamp. */
         public final java.time.LocalDateTime lastModified;
+        /** File the data was read from, or {@code null} if it came from a buffer or stream. */
+        public final Path path;
 
         /**
          * Creates a new file entry.
@@ -63,12 +84,43 @@ public class CabArchive {
          * @param ts      last modification timestamp
          */
         public FileEntry(InputStream in, long size, short attribs, short folder, java.time.LocalDateTime ts) {
+            this(in, () -> Channels.newChannel(in), null, size, attribs, folder, ts);
+        }
+
+        /**
+         * Creates a new file entry whose data is opened only when the cabinet
+         * is generated. The generator may copy the data straight from
+         * {@code path} instead of opening {@code source}.
+         *
+         * @param source  opens the file contents
+         * @param path    file holding the contents, or {@code null}
+         * @param size    uncompressed file size
+         * @param attribs DOS file attributes
+         * @param folder  folder index within the cabinet
+         * @param ts      last modification timestamp
+         */
+        public FileEntry(DataSource source, Path path, long size, short attribs, short folder,
+                         java.time.LocalDateTime ts) {
+            this(null, source, path, size, attribs, folder, ts);
+        }
+
+        private FileEntry(InputStream in, DataSource source, Path path, long size, short attribs, short folder,
+                          java.time.LocalDateTime ts) {
             this.in = in;
+            this.source = source;
+            this.path = path;
             this.size = size;
             this.attribs = attribs;
             this.folder = folder;
             this.lastModified = ts;
         }
+
+        /**
+         * Opens the file data. The caller closes the returned channel.
+         */
+        public ReadableByteChannel open() throws IOException {
+            return source.open();
+        }
     }
 
     private final Map<String, FileEntry> files = new LinkedHashMap<>();
@@ -96,25 +148,33 @@ public class CabArchive {
     public void addFile(String filename, ByteBuffer bytes, short attribs, short folder, java.time.LocalDateTime timestamp) {
         byte[] arr = new byte[bytes.remaining()];
         bytes.duplicate().get(arr);
-        addFile(filename, new ByteArrayInputStream(arr), arr.length, attribs, folder, timestamp);
+        addFile(filename, () -> Channels.newChannel(new ByteArrayInputStream(arr)), arr.length, attribs, folder,
+                timestamp);
     }
 
     /** Convenience method using a byte array. */
     public void addFile(String filename, byte[] bytes) {
-        addFile(filename, new ByteArrayInputStream(bytes), bytes.length, (short) 0, (short) 0,
-                java.time.LocalDateTime.now());
+        addFile(filename, () -> Channels.newChannel(new ByteArrayInputStream(bytes)), bytes.length, (short) 0,
+                (short) 0, java.time.LocalDateTime.now());
     }
 
     /**
      * Adds a file from the given path to the archive, preserving DOS attributes
-     * and modification time when available.
+     * and modification time when available. The file is not opened until the
+     * cabinet is generated.
      */
     public void addFile(String filename, Path path) throws IOException {
-        InputStream in = Files.newInputStream(path);
-        long size = FileUtils.getFileSize(path);
+        addFile(filename, path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    private void addFile(String filename, Path path, BasicFileAttributes attrs) throws IOException {
+        long size = attrs.size();
         short attribs = 0;
         try {
-            DosFileAttributes dos = Files.readAttributes(path, DosFileAttributes.class);
+            // on Windows the attributes of a directory walk already are DOS attributes
+            DosFileAttributes dos = attrs instanceof DosFileAttributes
+                    ? (DosFileAttributes) attrs
+                    : Files.readAttributes(path, DosFileAttributes.class);
             if (dos.isReadOnly()) attribs |= CfFile.ATTRIB_READONLY;
             if (dos.isHidden()) attribs |= CfFile.ATTRIB_HIDDEN;
             if (dos.isSystem()) attribs |= CfFile.ATTRIB_SYSTEM;
@@ -122,9 +182,19 @@ public class CabArchive {
         } catch (UnsupportedOperationException ignored) {
             // DOS attributes not supported on this platform
         }
-        FileTime ft = Files.getLastModifiedTime(path);
+        FileTime ft = attrs.lastModifiedTime();
         java.time.LocalDateTime ts = java.time.LocalDateTime.ofInstant(ft.toInstant(), java.time.ZoneId.systemDefault());
-        addFile(filename, in, size, attribs, (short) 0, ts);
+        addFile(filename, new FileEntry(() -> FileChannel.open(path, StandardOpenOption.READ), path, size, attribs,
+                (short) 0, ts), false);
+    }
+
+    /**
+     * Add a file whose data is opened by {@code source} when the cabinet is
+     * generated. The channel is closed as soon as the file has been read.
+     */
+    public void addFile(String name, DataSource source, long size, short attribs, short folder,
+                        java.time.LocalDateTime ts) {
+        addFile(name, new FileEntry(source, null, size, attribs, folder, ts), false);
     }
 
     /**
@@ -147,6 +217,11 @@ public class CabArchive {
      */
     public void addFile(String name, InputStream in, long size, short attribs, short folder,
                         java.time.LocalDateTime ts, boolean replaceExisting) {
+        addFile(name, new FileEntry(in, size, attribs, folder, ts), replaceExisting);
+    }
+
+    private void addFile(String name, FileEntry entry, boolean replaceExisting) {
+        long size = entry.size;
         boolean exists = files.containsKey(name);
         if (exists && !replaceExisting) {
             throw new IllegalArgumentException("File \"" + name + "\" already exists in archive");
@@ -159,7 +234,7 @@ public class CabArchive {
                     "Byte size for file \"" + name + "\" is too large (" + size
                             + " bytes). Max allowed size is " + MAX_FILE_SIZE + " bytes");
         }
-        files.put(name, new FileEntry(in, size, attribs, folder, ts));
+        files.put(name, entry);
     }
 
     /**
@@ -174,18 +249,26 @@ public class CabArchive {
 
     /**
      * Recursively adds all files from the given directory. The path inside the
-     * cabinet mirrors the relative path to the supplied directory.
+     * cabinet mirrors the relative path to the supplied directory. Size and
+     * timestamp come from the attributes read by the walk itself, and no file
+     * is opened before the cabinet is generated. Symbolic links to files are
+     * added with the content and attributes of their target; links to
+     * directories are not followed.
      */
     public void addDirectory(Path directory) throws IOException {
-        try (Stream<Path> paths = Files.walk(directory)) {
-            Iterator<Path> it = paths.filter(Files::isRegularFile).iterator();
-            while (it.hasNext()) {
-                Path p = it.next();
-                Path rel = directory.relativize(p);
-                String name = rel.toString().replace('\\', '/');
-                addFile(name, p);
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink() && Files.isRegularFile(file)) {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                }
+                if (attrs.isRegularFile()) {
+                    String name = directory.relativize(file).toString().replace('\\', '/');
+                    addFile(name, file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
             }
-        }
+        });
     }
 
     /** Returns the stored file entries. */
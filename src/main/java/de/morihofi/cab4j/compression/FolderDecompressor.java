@@ -0,0 +1,65 @@
+package de.morihofi.cab4j.compression;
+
+import de.morihofi.cab4j.structures.CfFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses the CFDATA blocks of a single folder. A folder is one
+ * compression stream, so implementations may keep state (such as a history
+ * window) from one block to the next. Blocks therefore have to be passed in
+ * order and a new instance is needed for every folder.
+ */
+public interface FolderDecompressor {
+
+    /**
+     * Decompresses one CFDATA payload.
+     *
+     * @param block    compressed payload of the block; its position is
+     *                 advanced past the consumed bytes
+     * @param out      destination array
+     * @param off      offset in the destination array
+     * @param cbUncomp number of uncompressed bytes stored in the block
+     * @return number of bytes written to {@code out}
+     * @throws IOException if the payload is corrupt
+     */
+    int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException;
+
+    /**
+     * Creates a decompressor for a folder.
+     *
+     * @param typeCompress the {@code typeCompress} field of the CFFOLDER entry
+     * @return a fresh decompressor
+     * @throws UnsupportedOperationException if the compression type is unknown
+     */
+    static FolderDecompressor create(short typeCompress) {
+        int type = typeCompress & CfFolder.COMPRESS_TYPE.TCOMP_MASK_TYPE.getValue();
+        if (type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE.getValue()) {
+            return new StoredDecompressor();
+        } else if (type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP.getValue()) {
+            return new MszipDecompressor();
+        }
+        int windowBits = (typeCompress >>> 8) & 0x1F;
+        if (type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_QUANTUM.getValue()) {
+            if (windowBits == 0) {
+                // cab4j used to store XZ streams without a window size
+                return new XzDecompressor("Quantum");
+            }
+            if (windowBits < Quantum.MIN_WINDOW_BITS || windowBits > Quantum.MAX_WINDOW_BITS) {
+                throw new UnsupportedOperationException("Unsupported Quantum window size: 2^" + windowBits);
+            }
+            return new QuantumDecompressor(windowBits);
+        } else if (type == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX.getValue()) {
+            if (windowBits == 0) {
+                // cab4j used to store XZ streams without a window size
+                return new XzDecompressor("LZX");
+            }
+            if (windowBits < Lzx.MIN_WINDOW_BITS || windowBits > Lzx.MAX_WINDOW_BITS) {
+                throw new UnsupportedOperationException("Unsupported LZX window size: 2^" + windowBits);
+            }
+            return new LzxDecompressor(windowBits);
+        }
+        throw new UnsupportedOperationException("Unsupported compression type: " + type);
+    }
+}
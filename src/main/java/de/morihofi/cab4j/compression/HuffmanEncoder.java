@@ -0,0 +1,123 @@
+package de.morihofi.cab4j.compression;
+
+import java.util.Arrays;
+
+/**
+ * Builds length limited canonical Huffman codes from symbol frequencies. The
+ * codes assigned by {@link #buildCodes(byte[], int, int[])} are the ones
+ * {@link HuffmanTable} expects: shorter codes first, equal lengths in symbol
+ * order.
+ */
+final class HuffmanEncoder {
+
+    private HuffmanEncoder() {
+    }
+
+    /**
+     * Computes code lengths for the given frequencies. Whenever a symbol
+     * occurs at all, at least two symbols receive a code so that the result is
+     * a complete prefix code. If the optimal tree is deeper than
+     * {@code maxLength}, the frequencies are flattened and the tree is
+     * rebuilt until it fits.
+     *
+     * @param freq      frequency of every symbol
+     * @param n         number of symbols
+     * @param maxLength maximum code length
+     * @param lengths   receives the code length of every symbol, 0 for unused ones
+     */
+    static void buildLengths(int[] freq, int n, int maxLength, byte[] lengths) {
+        Arrays.fill(lengths, 0, n, (byte) 0);
+        int used = 0;
+        int last = -1;
+        for (int s = 0; s < n; s++) {
+            if (freq[s] != 0) {
+                used++;
+                last = s;
+            }
+        }
+        if (used == 0) {
+            return;
+        }
+        if (used == 1) {
+            lengths[last] = 1;
+            lengths[last == 0 ? 1 : 0] = 1;
+            return;
+        }
+
+        int[] weights = new int[n];
+        System.arraycopy(freq, 0, weights, 0, n);
+        long[] leaves = new long[used];
+        int[] nodeWeight = new int[2 * used - 1];
+        int[] parent = new int[2 * used - 1];
+        int[] depth = new int[2 * used - 1];
+        while (true) {
+            int k = 0;
+            for (int s = 0; s < n; s++) {
+                if (weights[s] != 0) {
+                    leaves[k++] = (long) weights[s] << 16 | s;
+                }
+            }
+            Arrays.sort(leaves);
+            for (int i = 0; i < used; i++) {
+                nodeWeight[i] = (int) (leaves[i] >>> 16);
+            }
+
+            // Two queue construction: leaves and inner nodes are both created in ascending weight order
+            int leaf = 0;
+            int inner = used;
+            for (int next = used; next < 2 * used - 1; next++) {
+                int a = leaf < used && (inner >= next || nodeWeight[leaf] <= nodeWeight[inner]) ? leaf++ : inner++;
+                int b = leaf < used && (inner >= next || nodeWeight[leaf] <= nodeWeight[inner]) ? leaf++ : inner++;
+                nodeWeight[next] = nodeWeight[a] + nodeWeight[b];
+                parent[a] = next;
+                parent[b] = next;
+            }
+
+            int root = 2 * used - 2;
+            depth[root] = 0;
+            int maxDepth = 0;
+            for (int i = root - 1; i >= 0; i--) {
+                depth[i] = depth[parent[i]] + 1;
+                if (i < used) {
+                    maxDepth = Math.max(maxDepth, depth[i]);
+                }
+            }
+            if (maxDepth <= maxLength) {
+                for (int i = 0; i < used; i++) {
+                    lengths[(int) (leaves[i] & 0xFFFF)] = (byte) depth[i];
+                }
+                return;
+            }
+            for (int s = 0; s < n; s++) {
+                if (weights[s] != 0) {
+                    weights[s] = (weights[s] >>> 1) | 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Assigns canonical codes to the given code lengths.
+     *
+     * @param lengths code length of every symbol
+     * @param n       number of symbols
+     * @param codes   receives the code of every symbol, right aligned
+     */
+    static void buildCodes(byte[] lengths, int n, int[] codes) {
+        int[] count = new int[Lzx.MAX_CODE_LENGTH + 1];
+        for (int s = 0; s < n; s++) {
+            count[lengths[s]]++;
+        }
+        count[0] = 0;
+        int[] next = new int[Lzx.MAX_CODE_LENGTH + 1];
+        int code = 0;
+        for (int len = 1; len <= Lzx.MAX_CODE_LENGTH; len++) {
+            code = (code + count[len - 1]) << 1;
+            next[len] = code;
+        }
+        for (int s = 0; s < n; s++) {
+            int len = lengths[s];
+            codes[s] = len == 0 ? 0 : next[len]++;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.morihofi.cab4j.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Table driven decoder for canonical Huffman codes of up to 16 bits that are
+ * read most significant bit first. Codes of at most {@code tableBits} bits are
+ * resolved with a single lookup, longer codes fall back to a search over the
+ * canonical code ranges. A table is built once per set of code lengths and
+ * reused for every symbol, so decoding does not allocate.
+ */
+final class HuffmanTable {
+
+    private static final int MAX_BITS = 16;
+
+    private final int numSymbols;
+    private final int tableBits;
+    /** {@code symbol << 5 | length} per {@code tableBits} prefix, 0 for longer or unused codes. */
+    private final int[] table;
+    private final int[] count = new int[MAX_BITS + 1];
+    private final int[] firstCode = new int[MAX_BITS + 1];
+    private final int[] firstIndex = new int[MAX_BITS + 1];
+    private final int[] sorted;
+    private boolean empty = true;
+
+    HuffmanTable(int numSymbols, int tableBits) {
+        this.numSymbols = numSymbols;
+        this.tableBits = tableBits;
+        this.table = new int[1 << tableBits];
+        this.sorted = new int[numSymbols];
+    }
+
+    /**
+     * Rebuilds the table from the code lengths of all symbols. A length of 0
+     * means the symbol does not occur. An all-zero set of lengths yields an
+     * empty table.
+     *
+     * @param lengths code lengths, at least {@code numSymbols} entries
+     * @throws IOException if the lengths do not form a prefix code
+     */
+    void build(byte[] lengths) throws IOException {
+        Arrays.fill(count, 0);
+        for (int s = 0; s < numSymbols; s++) {
+            int len = lengths[s];
+            if (len < 0 || len > MAX_BITS) {
+                throw new IOException("Invalid Huffman code length " + len);
+            }
+            count[len]++;
+        }
+        count[0] = 0;
+
+        int kraft = 0;
+        int code = 0;
+        int index = 0;
+        for (int len = 1; len <= MAX_BITS; len++) {
+            kraft += count[len] << (MAX_BITS - len);
+            firstCode[len] = code;
+            firstIndex[len] = index;
+            code = (code + count[len]) << 1;
+            index += count[len];
+        }
+        if (kraft > 1 << MAX_BITS) {
+            throw new IOException("Over-subscribed Huffman code");
+        }
+        empty = index == 0;
+
+        int[] next = new int[MAX_BITS + 1];
+        System.arraycopy(firstIndex, 0, next, 0, next.length);
+        for (int s = 0; s < numSymbols; s++) {
+            int len = lengths[s];
+            if (len != 0) {
+                sorted[next[len]++] = s;
+            }
+        }
+
+        Arrays.fill(table, 0);
+        for (int len = 1; len <= tableBits; len++) {
+            int fill = 1 << (tableBits - len);
+            for (int i = 0; i < count[len]; i++) {
+                int start = (firstCode[len] + i) << (tableBits - len);
+                Arrays.fill(table, start, start + fill, sorted[firstIndex[len] + i] << 5 | len);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the last {@link #build(byte[])} found no symbols.
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Decodes one symbol.
+     *
+     * @param bits the next 16 bits of input, first bit in the most significant position
+     * @return {@code symbol << 5 | codeLength}, or -1 if no code matches
+     */
+    int decode(int bits) {
+        int entry = table[bits >>> (MAX_BITS - tableBits)];
+        if (entry != 0) {
+            return entry;
+        }
+        for (int len = tableBits + 1; len <= MAX_BITS; len++) {
+            int offset = (bits >>> (MAX_BITS - len)) - firstCode[len];
+            if (offset >= 0 && offset < count[len]) {
+                return sorted[firstIndex[len] + offset] << 5 | len;
+            }
+        }
+        return -1;
+    }
+}
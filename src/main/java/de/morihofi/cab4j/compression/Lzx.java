@@ -0,0 +1,69 @@
+package de.morihofi.cab4j.compression;
+
+/**
+ * Constants of the LZX format as described in [MS-PATCH] and used by
+ * {@link LzxCompressor} and {@link LzxDecompressor}.
+ */
+final class Lzx {
+
+    static final int MIN_WINDOW_BITS = 15;
+    static final int MAX_WINDOW_BITS = 21;
+
+    /** Every CFDATA block of an LZX folder holds one frame of this size, except the last. */
+    static final int FRAME_SIZE = 0x8000;
+
+    static final int MIN_MATCH = 2;
+    static final int MAX_MATCH = 257;
+    static final int NUM_CHARS = 256;
+    static final int NUM_PRIMARY_LENGTHS = 7;
+    static final int NUM_SECONDARY_LENGTHS = 249;
+    static final int PRETREE_SIZE = 20;
+    static final int ALIGNED_SIZE = 8;
+    static final int MAX_CODE_LENGTH = 16;
+    static final int MAX_PRETREE_CODE_LENGTH = 15;
+
+    static final int BLOCKTYPE_VERBATIM = 1;
+    static final int BLOCKTYPE_ALIGNED = 2;
+    static final int BLOCKTYPE_UNCOMPRESSED = 3;
+
+    /** Number of position slots for window sizes 2^15 to 2^21. */
+    private static final int[] POSITION_SLOTS = {30, 32, 34, 36, 38, 42, 50};
+
+    static final int MAX_MAIN_ELEMENTS = NUM_CHARS + POSITION_SLOTS[POSITION_SLOTS.length - 1] * 8;
+
+    static final int[] EXTRA_BITS = new int[52];
+    static final int[] POSITION_BASE = new int[52];
+
+    static {
+        for (int i = 0, j = 0; i < 51; i += 2) {
+            EXTRA_BITS[i] = j;
+            EXTRA_BITS[i + 1] = j;
+            if (i != 0 && j < 17) {
+                j++;
+            }
+        }
+        for (int i = 0, j = 0; i < 51; i++) {
+            POSITION_BASE[i] = j;
+            j += 1 << EXTRA_BITS[i];
+        }
+    }
+
+    private Lzx() {
+    }
+
+    /**
+     * Returns the number of position slots for a window of
+     * {@code 2^windowBits} bytes.
+     */
+    static int positionSlots(int windowBits) {
+        checkWindowBits(windowBits);
+        return POSITION_SLOTS[windowBits - MIN_WINDOW_BITS];
+    }
+
+    static void checkWindowBits(int windowBits) {
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("LZX window bits must be between " + MIN_WINDOW_BITS
+                    + " and " + MAX_WINDOW_BITS + ": " + windowBits);
+        }
+    }
+}
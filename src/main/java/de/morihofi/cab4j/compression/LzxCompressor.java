@@ -0,0 +1,442 @@
+package de.morihofi.cab4j.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static de.morihofi.cab4j.compression.Lzx.*;
+
+/**
+ * LZX compressor for the CFDATA blocks of one folder. Each call to
+ * {@link #compress(byte[], int, int)} encodes one frame of at most
+ * {@value #FRAME_SIZE} bytes as a verbatim block, or as an uncompressed block
+ * if that is smaller. Matches may reach back into earlier frames of the
+ * folder but never cross the end of the current frame, so every CFDATA block
+ * ends on a frame boundary as required by the CAB format.
+ * <p>
+ * Matches are found with hash chains. The match depth limits how many chain
+ * entries are examined per position and thereby trades compression ratio
+ * against speed. E8 call translation is not applied.
+ * <p>
+ * Instances carry the state of the folder stream and are not thread-safe.
+ * Frames have to be passed in folder order and every folder needs its own
+ * instance.
+ */
+public final class LzxCompressor {
+
+    /** Smallest supported window, 2^15 bytes. */
+    public static final int MIN_WINDOW_BITS = Lzx.MIN_WINDOW_BITS;
+    /** Largest supported window, 2^21 bytes. */
+    public static final int MAX_WINDOW_BITS = Lzx.MAX_WINDOW_BITS;
+    /** Maximum number of uncompressed bytes per frame and CFDATA block. */
+    public static final int FRAME_SIZE = Lzx.FRAME_SIZE;
+    /** Default number of hash chain entries examined per position. */
+    public static final int DEFAULT_MATCH_DEPTH = 32;
+
+    /** Matches at least this long are taken without looking for a longer one at the next position. */
+    private static final int LAZY_LIMIT = 32;
+
+    private final int windowBits;
+    private final int mainElements;
+    private final int numSlots;
+    private final MatchFinder finder;
+
+    private int r0 = 1;
+    private int r1 = 1;
+    private int r2 = 1;
+    private boolean headerWritten;
+
+    private final byte[] prevMainLengths = new byte[MAX_MAIN_ELEMENTS];
+    private final byte[] prevLengthLengths = new byte[NUM_SECONDARY_LENGTHS];
+    private final byte[] mainLengths = new byte[MAX_MAIN_ELEMENTS];
+    private final byte[] lengthLengths = new byte[NUM_SECONDARY_LENGTHS];
+    private final int[] mainFreq = new int[MAX_MAIN_ELEMENTS];
+    private final int[] lengthFreq = new int[NUM_SECONDARY_LENGTHS];
+    private final int[] mainCodes = new int[MAX_MAIN_ELEMENTS];
+    private final int[] lengthCodes = new int[NUM_SECONDARY_LENGTHS];
+
+    // Tokens of the current frame: main element, length footer (or -1), extra bits value and count
+    private final int[] tokenMain = new int[FRAME_SIZE];
+    private final int[] tokenFooter = new int[FRAME_SIZE];
+    private final int[] tokenExtra = new int[FRAME_SIZE];
+    private final int[] tokenExtraBits = new int[FRAME_SIZE];
+    private int tokenCount;
+
+    // Pretree symbols of one code length range
+    private final int[] preSymbols = new int[MAX_MAIN_ELEMENTS];
+    private final int[] preExtra = new int[MAX_MAIN_ELEMENTS];
+    private final int[] preFreq = new int[PRETREE_SIZE];
+    private final byte[] preLengths = new byte[PRETREE_SIZE];
+    private final int[] preCodes = new int[PRETREE_SIZE];
+
+    private byte[] out = new byte[FRAME_SIZE + 4096];
+    private int outPos;
+    private long bitAcc;
+    private int bitCount;
+
+    /**
+     * Creates a compressor using a window of {@code 2^windowBits} bytes and
+     * the {@linkplain #DEFAULT_MATCH_DEPTH default match depth}.
+     *
+     * @param windowBits base 2 logarithm of the window size, 15 to 21
+     */
+    public LzxCompressor(int windowBits) {
+        this(windowBits, DEFAULT_MATCH_DEPTH);
+    }
+
+    /**
+     * Creates a compressor.
+     *
+     * @param windowBits base 2 logarithm of the window size, 15 to 21
+     * @param matchDepth maximum number of hash chain entries examined per
+     *                   position, at least 1
+     */
+    public LzxCompressor(int windowBits, int matchDepth) {
+        Lzx.checkWindowBits(windowBits);
+        if (matchDepth < 1) {
+            throw new IllegalArgumentException("matchDepth must be at least 1");
+        }
+        this.windowBits = windowBits;
+        this.numSlots = positionSlots(windowBits);
+        this.mainElements = NUM_CHARS + numSlots * 8;
+        int windowSize = 1 << windowBits;
+        this.finder = new MatchFinder(windowSize, windowSize - 3, FRAME_SIZE, matchDepth);
+    }
+
+    /**
+     * Returns the {@code typeCompress} value of a CFFOLDER entry holding data
+     * of this compressor, i.e. the LZX type with the window size in bits 8 to
+     * 12.
+     */
+    public short getTypeCompress() {
+        return typeCompress(windowBits);
+    }
+
+    /**
+     * Returns the {@code typeCompress} value for LZX with a window of
+     * {@code 2^windowBits} bytes.
+     *
+     * @param windowBits base 2 logarithm of the window size, 15 to 21
+     */
+    public static short typeCompress(int windowBits) {
+        Lzx.checkWindowBits(windowBits);
+        return (short) (0x0003 | windowBits << 8);
+    }
+
+    /**
+     * Compresses the next frame of the folder.
+     *
+     * @param data uncompressed data
+     * @param off  offset of the first byte
+     * @param len  number of bytes, 1 to {@value #FRAME_SIZE}
+     * @return a new buffer sized exactly to the CFDATA payload
+     */
+    public ByteBuffer compress(byte[] data, int off, int len) {
+        if (len < 1 || len > FRAME_SIZE) {
+            throw new IllegalArgumentException("LZX frames hold 1 to " + FRAME_SIZE + " bytes: " + len);
+        }
+        int start = finder.append(data, off, len);
+
+        int savedR0 = r0;
+        int savedR1 = r1;
+        int savedR2 = r2;
+        findMatches(start, start + len);
+
+        outPos = 0;
+        bitAcc = 0;
+        bitCount = 0;
+        writeStreamHeader();
+        writeVerbatimBlock(len);
+        if (outPos > len + 16) {
+            // Incompressible frame: store it and keep the repeated offsets of the previous frame
+            r0 = savedR0;
+            r1 = savedR1;
+            r2 = savedR2;
+            outPos = 0;
+            bitAcc = 0;
+            bitCount = 0;
+            writeStreamHeader();
+            writeUncompressedBlock(start, len);
+        } else {
+            System.arraycopy(mainLengths, 0, prevMainLengths, 0, mainElements);
+            System.arraycopy(lengthLengths, 0, prevLengthLengths, 0, NUM_SECONDARY_LENGTHS);
+        }
+        headerWritten = true;
+
+        return ByteBuffer.wrap(Arrays.copyOf(out, outPos));
+    }
+
+    private void writeStreamHeader() {
+        if (!headerWritten) {
+            // no E8 call translation
+            writeBits(0, 1);
+        }
+    }
+
+    /**
+     * Parses buffer positions {@code start} to {@code end - 1} into literals
+     * and matches using lazy evaluation.
+     */
+    private void findMatches(int start, int end) {
+        tokenCount = 0;
+        Arrays.fill(mainFreq, 0, mainElements, 0);
+        Arrays.fill(lengthFreq, 0);
+
+        int pos = start;
+        long carried = -1;
+        while (pos < end) {
+            long match = carried >= 0 ? carried : findMatch(pos, end);
+            carried = -1;
+            int length = (int) (match >>> 32);
+            if (length >= MIN_MATCH && length < LAZY_LIMIT && pos + 1 < end) {
+                long next = findMatch(pos + 1, end);
+                if ((int) (next >>> 32) > length) {
+                    addLiteral(pos);
+                    pos++;
+                    carried = next;
+                    continue;
+                }
+            }
+            if (length >= MIN_MATCH) {
+                addMatch((int) match, length);
+                pos += length;
+            } else {
+                addLiteral(pos);
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Finds the best match at a buffer position.
+     *
+     * @return match length in the upper and offset in the lower 32 bits,
+     *         length 0 if there is no usable match
+     */
+    private long findMatch(int pos, int end) {
+        long match = finder.find(pos, end, MAX_MATCH);
+        int bestLength = (int) (match >>> 32);
+        int bestOffset = (int) match;
+
+        // Repeated offsets need no extra bits and win unless the other match is clearly longer
+        int maxLength = Math.min(MAX_MATCH, end - pos);
+        int repeatLength = 0;
+        int repeatOffset = 0;
+        for (int i = 0; i < 3; i++) {
+            int r = i == 0 ? r0 : i == 1 ? r1 : r2;
+            if (!finder.hasHistory(pos, r)) {
+                continue;
+            }
+            int l = finder.matchLength(pos - r, pos, maxLength);
+            if (l > repeatLength) {
+                repeatLength = l;
+                repeatOffset = r;
+            }
+        }
+        if (repeatLength >= MIN_MATCH && repeatLength + 1 >= bestLength
+                && (repeatLength >= MatchFinder.MIN_MATCH || bestLength == 0)) {
+            bestLength = repeatLength;
+            bestOffset = repeatOffset;
+        }
+        if (bestLength < MIN_MATCH) {
+            return 0;
+        }
+        return (long) bestLength << 32 | bestOffset;
+    }
+
+    private void addLiteral(int pos) {
+        int b = finder.buffer()[pos] & 0xFF;
+        tokenMain[tokenCount] = b;
+        tokenFooter[tokenCount] = -1;
+        tokenExtraBits[tokenCount] = 0;
+        tokenCount++;
+        mainFreq[b]++;
+    }
+
+    private void addMatch(int offset, int length) {
+        int slot;
+        int extra = 0;
+        int extraBits = 0;
+        if (offset == r0) {
+            slot = 0;
+        } else if (offset == r1) {
+            slot = 1;
+            r1 = r0;
+            r0 = offset;
+        } else if (offset == r2) {
+            slot = 2;
+            r2 = r0;
+            r0 = offset;
+        } else {
+            int formatted = offset + 2;
+            slot = positionSlot(formatted);
+            extra = formatted - POSITION_BASE[slot];
+            extraBits = slot >= 36 ? 17 : EXTRA_BITS[slot];
+            r2 = r1;
+            r1 = r0;
+            r0 = offset;
+        }
+
+        int lengthHeader = Math.min(length - MIN_MATCH, NUM_PRIMARY_LENGTHS);
+        int element = NUM_CHARS + (slot << 3) + lengthHeader;
+        tokenMain[tokenCount] = element;
+        if (lengthHeader == NUM_PRIMARY_LENGTHS) {
+            int footer = length - MIN_MATCH - NUM_PRIMARY_LENGTHS;
+            tokenFooter[tokenCount] = footer;
+            lengthFreq[footer]++;
+        } else {
+            tokenFooter[tokenCount] = -1;
+        }
+        tokenExtra[tokenCount] = extra;
+        tokenExtraBits[tokenCount] = extraBits;
+        tokenCount++;
+        mainFreq[element]++;
+    }
+
+    private int positionSlot(int formatted) {
+        int low = 0;
+        int high = numSlots - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (POSITION_BASE[mid] <= formatted) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void writeVerbatimBlock(int len) {
+        HuffmanEncoder.buildLengths(mainFreq, mainElements, MAX_CODE_LENGTH, mainLengths);
+        HuffmanEncoder.buildLengths(lengthFreq, NUM_SECONDARY_LENGTHS, MAX_CODE_LENGTH, lengthLengths);
+        HuffmanEncoder.buildCodes(mainLengths, mainElements, mainCodes);
+        HuffmanEncoder.buildCodes(lengthLengths, NUM_SECONDARY_LENGTHS, lengthCodes);
+
+        writeBits(BLOCKTYPE_VERBATIM, 3);
+        writeBits(len >>> 8, 16);
+        writeBits(len & 0xFF, 8);
+        writeLengths(mainLengths, prevMainLengths, 0, NUM_CHARS);
+        writeLengths(mainLengths, prevMainLengths, NUM_CHARS, mainElements);
+        writeLengths(lengthLengths, prevLengthLengths, 0, NUM_SECONDARY_LENGTHS);
+
+        for (int i = 0; i < tokenCount; i++) {
+            int element = tokenMain[i];
+            writeBits(mainCodes[element], mainLengths[element]);
+            int footer = tokenFooter[i];
+            if (footer >= 0) {
+                writeBits(lengthCodes[footer], lengthLengths[footer]);
+            }
+            if (tokenExtraBits[i] > 0) {
+                writeBits(tokenExtra[i], tokenExtraBits[i]);
+            }
+        }
+        alignToWord();
+    }
+
+    /**
+     * Writes the code lengths {@code first} to {@code last - 1} as deltas to
+     * the lengths of the previous block, preceded by the pretree used to
+     * encode them. Runs of unused symbols are collapsed.
+     */
+    private void writeLengths(byte[] lengths, byte[] previous, int first, int last) {
+        int count = 0;
+        Arrays.fill(preFreq, 0);
+        int x = first;
+        while (x < last) {
+            if (lengths[x] == 0) {
+                int run = 1;
+                while (x + run < last && lengths[x + run] == 0 && run < 51) {
+                    run++;
+                }
+                if (run >= 20) {
+                    preSymbols[count] = 18;
+                    preExtra[count++] = run - 20;
+                    preFreq[18]++;
+                    x += run;
+                    continue;
+                }
+                if (run >= 4) {
+                    preSymbols[count] = 17;
+                    preExtra[count++] = run - 4;
+                    preFreq[17]++;
+                    x += run;
+                    continue;
+                }
+            }
+            int delta = previous[x] - lengths[x];
+            if (delta < 0) {
+                delta += 17;
+            }
+            preSymbols[count++] = delta;
+            preFreq[delta]++;
+            x++;
+        }
+
+        HuffmanEncoder.buildLengths(preFreq, PRETREE_SIZE, MAX_PRETREE_CODE_LENGTH, preLengths);
+        HuffmanEncoder.buildCodes(preLengths, PRETREE_SIZE, preCodes);
+        for (int i = 0; i < PRETREE_SIZE; i++) {
+            writeBits(preLengths[i], 4);
+        }
+        for (int i = 0; i < count; i++) {
+            int symbol = preSymbols[i];
+            writeBits(preCodes[symbol], preLengths[symbol]);
+            if (symbol == 17) {
+                writeBits(preExtra[i], 4);
+            } else if (symbol == 18) {
+                writeBits(preExtra[i], 5);
+            }
+        }
+    }
+
+    private void writeUncompressedBlock(int start, int len) {
+        writeBits(BLOCKTYPE_UNCOMPRESSED, 3);
+        writeBits(len >>> 8, 16);
+        writeBits(len & 0xFF, 8);
+        // 1 to 16 bits of padding
+        writeBits(0, bitCount == 0 ? 16 : 16 - bitCount);
+        ensureCapacity(12 + len + 1);
+        writeIntLE(r0);
+        writeIntLE(r1);
+        writeIntLE(r2);
+        System.arraycopy(finder.buffer(), start, out, outPos, len);
+        outPos += len;
+        if ((len & 1) != 0) {
+            out[outPos++] = 0;
+        }
+    }
+
+    private void writeIntLE(int v) {
+        out[outPos++] = (byte) v;
+        out[outPos++] = (byte) (v >>> 8);
+        out[outPos++] = (byte) (v >>> 16);
+        out[outPos++] = (byte) (v >>> 24);
+    }
+
+    /**
+     * Appends up to 17 bits, most significant first. Output is grouped in
+     * 16 bit little endian words.
+     */
+    private void writeBits(int value, int n) {
+        bitAcc = bitAcc << n | (value & ((1L << n) - 1));
+        bitCount += n;
+        while (bitCount >= 16) {
+            bitCount -= 16;
+            int word = (int) (bitAcc >>> bitCount);
+            ensureCapacity(2);
+            out[outPos++] = (byte) word;
+            out[outPos++] = (byte) (word >>> 8);
+        }
+    }
+
+    private void alignToWord() {
+        if (bitCount > 0) {
+            writeBits(0, 16 - bitCount);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (outPos + n > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outPos + n));
+        }
+    }
+}
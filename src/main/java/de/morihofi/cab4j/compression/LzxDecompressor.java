@@ -0,0 +1,393 @@
+package de.morihofi.cab4j.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static de.morihofi.cab4j.compression.Lzx.*;
+
+/**
+ * LZX decompressor for the CFDATA blocks of one folder. Every block holds one
+ * 32&nbsp;KB frame; the sliding window, the repeated offsets and the Huffman
+ * code lengths carry over from one frame to the next, so the blocks have to
+ * be decoded in order. Verbatim, aligned offset and uncompressed blocks as
+ * well as E8 call translation are supported.
+ */
+class LzxDecompressor implements FolderDecompressor {
+
+    private static final int MAIN_TABLE_BITS = 12;
+    private static final int LENGTH_TABLE_BITS = 12;
+    /** Runs in the pretree encoding may write past the end of a code length range. */
+    private static final int LENGTH_SAFETY = 64;
+
+    private final int windowSize;
+    private final byte[] window;
+    private final int mainElements;
+
+    private final byte[] mainLengths = new byte[MAX_MAIN_ELEMENTS + LENGTH_SAFETY];
+    private final byte[] lengthLengths = new byte[NUM_SECONDARY_LENGTHS + LENGTH_SAFETY];
+    private final byte[] alignedLengths = new byte[ALIGNED_SIZE];
+    private final byte[] pretreeLengths = new byte[PRETREE_SIZE];
+    private final HuffmanTable mainTree;
+    private final HuffmanTable lengthTree = new HuffmanTable(NUM_SECONDARY_LENGTHS, LENGTH_TABLE_BITS);
+    private final HuffmanTable alignedTree = new HuffmanTable(ALIGNED_SIZE, 7);
+    private final HuffmanTable pretree = new HuffmanTable(PRETREE_SIZE, 6);
+
+    private int windowPos;
+    private int r0 = 1;
+    private int r1 = 1;
+    private int r2 = 1;
+
+    private boolean headerRead;
+    private int intelFileSize;
+    private boolean intelStarted;
+    private int frame;
+    private long offset;
+
+    private int blockType;
+    private int blockLength;
+    private int blockRemaining;
+    private boolean pendingPad;
+
+    private ByteBuffer in;
+    private long bitBuffer;
+    private int bitsLeft;
+
+    /**
+     * @param windowBits base 2 logarithm of the window size, 15 to 21
+     */
+    LzxDecompressor(int windowBits) {
+        this.windowSize = 1 << windowBits;
+        this.window = new byte[windowSize];
+        this.mainElements = NUM_CHARS + positionSlots(windowBits) * 8;
+        this.mainTree = new HuffmanTable(mainElements, MAIN_TABLE_BITS);
+    }
+
+    @Override
+    public int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException {
+        if (cbUncomp > FRAME_SIZE || windowPos + cbUncomp > windowSize) {
+            throw new IOException("LZX frame of " + cbUncomp + " bytes does not fit the window");
+        }
+        in = block;
+        bitBuffer = 0;
+        bitsLeft = 0;
+
+        if (!headerRead) {
+            headerRead = true;
+            if (readBits(1) == 1) {
+                int high = readBits(16);
+                int low = readBits(16);
+                intelFileSize = high << 16 | low;
+            }
+        }
+
+        int framePos = windowPos;
+        int todo = cbUncomp;
+        while (todo > 0) {
+            if (blockRemaining == 0) {
+                readBlockHeader();
+            }
+            int run = Math.min(blockRemaining, todo);
+            todo -= run;
+            blockRemaining -= run;
+
+            if (blockType == BLOCKTYPE_UNCOMPRESSED) {
+                if (in.remaining() < run) {
+                    throw new IOException("Truncated LZX uncompressed block");
+                }
+                in.get(window, windowPos, run);
+                windowPos += run;
+                if (blockRemaining == 0 && (blockLength & 1) != 0) {
+                    skipPad();
+                }
+            } else {
+                run = decodeSymbols(run, framePos);
+                if (run < 0) {
+                    if (-run > blockRemaining) {
+                        throw new IOException("LZX match overruns block");
+                    }
+                    blockRemaining += run;
+                }
+            }
+        }
+        if (windowPos - framePos != cbUncomp) {
+            throw new IOException("LZX data overruns frame");
+        }
+
+        System.arraycopy(window, framePos, out, off, cbUncomp);
+        if (intelStarted && intelFileSize != 0 && frame < 32768 && cbUncomp > 10) {
+            undoE8Translation(out, off, cbUncomp);
+        }
+        frame++;
+        offset += cbUncomp;
+        if (windowPos == windowSize) {
+            windowPos = 0;
+        }
+        in = null;
+        return cbUncomp;
+    }
+
+    private void skipPad() {
+        if (in.hasRemaining()) {
+            in.get();
+            pendingPad = false;
+        } else {
+            pendingPad = true;
+        }
+    }
+
+    private void readBlockHeader() throws IOException {
+        if (pendingPad && in.hasRemaining()) {
+            in.get();
+        }
+        pendingPad = false;
+        blockType = readBits(3);
+        int high = readBits(16);
+        int low = readBits(8);
+        blockLength = high << 8 | low;
+        blockRemaining = blockLength;
+
+        switch (blockType) {
+            case BLOCKTYPE_ALIGNED:
+                for (int i = 0; i < ALIGNED_SIZE; i++) {
+                    alignedLengths[i] = (byte) readBits(3);
+                }
+                alignedTree.build(alignedLengths);
+                // the remaining header is the one of a verbatim block
+            case BLOCKTYPE_VERBATIM:
+                readLengths(mainLengths, 0, NUM_CHARS);
+                readLengths(mainLengths, NUM_CHARS, mainElements);
+                mainTree.build(mainLengths);
+                if (mainTree.isEmpty()) {
+                    throw new IOException("Empty LZX main tree");
+                }
+                if (mainLengths[0xE8] != 0) {
+                    intelStarted = true;
+                }
+                readLengths(lengthLengths, 0, NUM_SECONDARY_LENGTHS);
+                lengthTree.build(lengthLengths);
+                break;
+            case BLOCKTYPE_UNCOMPRESSED:
+                intelStarted = true;
+                // 1 to 16 bits of padding align the input to a 16 bit boundary
+                if (bitsLeft == 0) {
+                    ensureBits(16);
+                }
+                bitsLeft = 0;
+                bitBuffer = 0;
+                if (in.remaining() < 12) {
+                    throw new IOException("Truncated LZX uncompressed block header");
+                }
+                r0 = readIntLE();
+                r1 = readIntLE();
+                r2 = readIntLE();
+                break;
+            default:
+                throw new IOException("Invalid LZX block type " + blockType);
+        }
+    }
+
+    private int readIntLE() {
+        return (in.get() & 0xFF) | (in.get() & 0xFF) << 8 | (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 24;
+    }
+
+    /**
+     * Reads the code lengths {@code first} to {@code last - 1} as deltas to
+     * the lengths of the previous block, encoded with a fresh pretree.
+     */
+    private void readLengths(byte[] lengths, int first, int last) throws IOException {
+        for (int i = 0; i < PRETREE_SIZE; i++) {
+            pretreeLengths[i] = (byte) readBits(4);
+        }
+        pretree.build(pretreeLengths);
+
+        int x = first;
+        while (x < last) {
+            int z = readSymbol(pretree);
+            int run;
+            int value;
+            if (z == 17) {
+                run = readBits(4) + 4;
+                value = 0;
+            } else if (z == 18) {
+                run = readBits(5) + 20;
+                value = 0;
+            } else if (z == 19) {
+                run = readBits(1) + 4;
+                z = readSymbol(pretree);
+                if (z > 16) {
+                    throw new IOException("Invalid LZX pretree run");
+                }
+                value = lengths[x] - z;
+                if (value < 0) {
+                    value += 17;
+                }
+            } else {
+                run = 1;
+                value = lengths[x] - z;
+                if (value < 0) {
+                    value += 17;
+                }
+            }
+            if (x + run > lengths.length) {
+                throw new IOException("LZX code length run exceeds the tree");
+            }
+            while (run-- > 0) {
+                lengths[x++] = (byte) value;
+            }
+        }
+    }
+
+    /**
+     * Decodes literals and matches of a verbatim or aligned offset block until
+     * at least {@code run} bytes were produced.
+     *
+     * @return {@code run} minus the number of bytes produced, 0 or negative
+     *         if the last match reaches past the requested amount
+     */
+    private int decodeSymbols(int run, int framePos) throws IOException {
+        final byte[] window = this.window;
+        final boolean aligned = blockType == BLOCKTYPE_ALIGNED;
+        int pos = windowPos;
+        while (run > 0) {
+            int element = readSymbol(mainTree);
+            if (element < NUM_CHARS) {
+                window[pos++] = (byte) element;
+                run--;
+                continue;
+            }
+            element -= NUM_CHARS;
+
+            int length = element & NUM_PRIMARY_LENGTHS;
+            if (length == NUM_PRIMARY_LENGTHS) {
+                if (lengthTree.isEmpty()) {
+                    throw new IOException("LZX length tree is empty");
+                }
+                length += readSymbol(lengthTree);
+            }
+            length += MIN_MATCH;
+
+            int slot = element >>> 3;
+            int matchOffset;
+            switch (slot) {
+                case 0:
+                    matchOffset = r0;
+                    break;
+                case 1:
+                    matchOffset = r1;
+                    r1 = r0;
+                    r0 = matchOffset;
+                    break;
+                case 2:
+                    matchOffset = r2;
+                    r2 = r0;
+                    r0 = matchOffset;
+                    break;
+                default:
+                    int extra = slot >= 36 ? 17 : EXTRA_BITS[slot];
+                    matchOffset = POSITION_BASE[slot] - 2;
+                    if (aligned && extra >= 3) {
+                        matchOffset += (readBits(extra - 3) << 3) + readSymbol(alignedTree);
+                    } else {
+                        matchOffset += readBits(extra);
+                    }
+                    r2 = r1;
+                    r1 = r0;
+                    r0 = matchOffset;
+                    break;
+            }
+
+            if (pos + length > windowSize) {
+                throw new IOException("LZX match runs over the window end");
+            }
+            if (matchOffset > offset + (pos - framePos) || matchOffset > windowSize) {
+                throw new IOException("LZX match offset " + matchOffset + " is beyond the stream start");
+            }
+
+            int dest = pos;
+            int remaining = length;
+            int src;
+            if (matchOffset > pos) {
+                int tail = matchOffset - pos;
+                src = windowSize - tail;
+                if (tail < remaining) {
+                    System.arraycopy(window, src, window, dest, tail);
+                    dest += tail;
+                    remaining -= tail;
+                    src = 0;
+                }
+            } else {
+                src = pos - matchOffset;
+            }
+            if (src > dest || dest - src >= remaining) {
+                System.arraycopy(window, src, window, dest, remaining);
+            } else {
+                for (int i = 0; i < remaining; i++) {
+                    window[dest + i] = window[src + i];
+                }
+            }
+
+            pos += length;
+            run -= length;
+        }
+        windowPos = pos;
+        return run;
+    }
+
+    /**
+     * Reverts the E8 call translation the encoder applied to the frame.
+     */
+    private void undoE8Translation(byte[] data, int off, int len) {
+        int end = off + len - 10;
+        int curpos = (int) offset;
+        int i = off;
+        while (i < end) {
+            if ((data[i++] & 0xFF) != 0xE8) {
+                curpos++;
+                continue;
+            }
+            int absOff = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16
+                    | (data[i + 3] & 0xFF) << 24;
+            if (absOff >= -curpos && absOff < intelFileSize) {
+                int relOff = absOff >= 0 ? absOff - curpos : absOff + intelFileSize;
+                data[i] = (byte) relOff;
+                data[i + 1] = (byte) (relOff >>> 8);
+                data[i + 2] = (byte) (relOff >>> 16);
+                data[i + 3] = (byte) (relOff >>> 24);
+            }
+            i += 4;
+            curpos += 5;
+        }
+    }
+
+    private int readSymbol(HuffmanTable tree) throws IOException {
+        ensureBits(16);
+        int entry = tree.decode((int) (bitBuffer >>> (bitsLeft - 16)) & 0xFFFF);
+        if (entry < 0) {
+            throw new IOException("Invalid LZX Huffman code");
+        }
+        bitsLeft -= entry & 0x1F;
+        return entry >>> 5;
+    }
+
+    private int readBits(int n) {
+        if (n == 0) {
+            return 0;
+        }
+        ensureBits(n);
+        bitsLeft -= n;
+        return (int) (bitBuffer >>> bitsLeft) & ((1 << n) - 1);
+    }
+
+    /**
+     * Input is consumed in 16 bit little endian words, most significant bit
+     * first. Reading past the end of the block yields zero bits.
+     */
+    private void ensureBits(int n) {
+        while (bitsLeft < n) {
+            int b0 = in.hasRemaining() ? in.get() & 0xFF : 0;
+            int b1 = in.hasRemaining() ? in.get() & 0xFF : 0;
+            bitBuffer = bitBuffer << 16 | b1 << 8 | b0;
+            bitsLeft += 16;
+        }
+    }
+}
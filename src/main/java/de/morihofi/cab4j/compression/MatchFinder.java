@@ -0,0 +1,173 @@
+package de.morihofi.cab4j.compression;
+
+import java.util.Arrays;
+
+/**
+ * Hash chain match finder shared by the LZ based compressors. Frames are
+ * appended to a buffer that keeps at least one window of history in front of
+ * them; positions are buffer indices, while the chains store absolute stream
+ * positions so that sliding the buffer does not require rewriting them.
+ */
+final class MatchFinder {
+
+    /** Shortest match found through the hash chains. */
+    static final int MIN_MATCH = 3;
+
+    private static final int HASH_BITS = 15;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+
+    private final int windowSize;
+    private final int maxOffset;
+    private final int depth;
+
+    /** Stream bytes {@code base} to {@code base + fill - 1}. */
+    private final byte[] buffer;
+    private long base;
+    private int fill;
+    private final int[] head = new int[HASH_SIZE];
+    private final int[] prev;
+    private int nextInsert;
+
+    /**
+     * @param windowSize   window size, a power of two
+     * @param maxOffset    largest match offset to report
+     * @param maxFrameSize largest number of bytes passed to {@link #append(byte[], int, int)}
+     * @param depth        number of chain entries examined per position
+     */
+    MatchFinder(int windowSize, int maxOffset, int maxFrameSize, int depth) {
+        this.windowSize = windowSize;
+        this.maxOffset = maxOffset;
+        this.depth = depth;
+        this.buffer = new byte[windowSize + Math.max(windowSize, maxFrameSize)];
+        this.prev = new int[windowSize];
+        Arrays.fill(head, -1);
+    }
+
+    /**
+     * Appends the next frame of the stream, sliding older data out of the
+     * buffer if necessary.
+     *
+     * @return buffer index of the first appended byte
+     */
+    int append(byte[] data, int off, int len) {
+        if (fill + len > buffer.length) {
+            int shift = fill - windowSize;
+            System.arraycopy(buffer, shift, buffer, 0, windowSize);
+            base += shift;
+            fill = windowSize;
+        }
+        System.arraycopy(data, off, buffer, fill, len);
+        int start = fill;
+        fill += len;
+        return start;
+    }
+
+    /**
+     * Returns the buffer holding the appended data. The array is updated in
+     * place by {@link #append(byte[], int, int)}.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the stream position of a buffer index.
+     */
+    long streamPosition(int pos) {
+        return base + pos;
+    }
+
+    /**
+     * Returns whether the byte {@code offset} positions before buffer index
+     * {@code pos} is still available.
+     */
+    boolean hasHistory(int pos, int offset) {
+        return offset <= base + pos && pos - offset >= 0;
+    }
+
+    /**
+     * Finds the longest match at a buffer position through the hash chains.
+     * All earlier positions are added to the chains first, so positions have
+     * to be queried in ascending order.
+     *
+     * @param pos buffer index
+     * @param end buffer index the match must not reach
+     * @return match length in the upper and offset in the lower 32 bits, 0
+     *         if there is no match of at least {@value #MIN_MATCH} bytes
+     */
+    long find(int pos, int end, int maxLength) {
+        insertUntil(pos, end);
+        maxLength = Math.min(maxLength, end - pos);
+        if (maxLength < MIN_MATCH) {
+            return 0;
+        }
+        byte[] buf = buffer;
+        long streamPos = base + pos;
+        int bestLength = 0;
+        int bestOffset = 0;
+        int candidate = head[hash(pos)];
+        int remaining = depth;
+        while (candidate >= 0 && remaining-- > 0) {
+            long distance = streamPos - candidate;
+            if (distance > maxOffset || candidate < base) {
+                break;
+            }
+            int c = (int) (candidate - base);
+            if (buf[c + bestLength] == buf[pos + bestLength]) {
+                int l = matchLength(c, pos, maxLength);
+                if (l > bestLength) {
+                    bestLength = l;
+                    bestOffset = (int) distance;
+                    if (l == maxLength) {
+                        break;
+                    }
+                }
+            }
+            int older = prev[candidate & (windowSize - 1)];
+            if (older >= candidate) {
+                break;
+            }
+            candidate = older;
+        }
+        if (bestLength < MIN_MATCH) {
+            return 0;
+        }
+        return (long) bestLength << 32 | bestOffset;
+    }
+
+    /**
+     * Returns the number of equal bytes at two buffer indices, at most
+     * {@code maxLength}. The ranges may overlap.
+     */
+    int matchLength(int a, int b, int maxLength) {
+        byte[] buf = buffer;
+        int l = 0;
+        while (l < maxLength && buf[a + l] == buf[b + l]) {
+            l++;
+        }
+        return l;
+    }
+
+    private int hash(int pos) {
+        byte[] buf = buffer;
+        return ((buf[pos] & 0xFF) << 10 ^ (buf[pos + 1] & 0xFF) << 5 ^ (buf[pos + 2] & 0xFF)) & (HASH_SIZE - 1);
+    }
+
+    /**
+     * Adds all stream positions before buffer index {@code pos} to the hash
+     * chains, as far as the following two bytes are available.
+     */
+    private void insertUntil(int pos, int end) {
+        int limit = Math.min(pos, end - 2);
+        int from = (int) Math.max(nextInsert - base, 0);
+        for (int p = from; p < limit; p++) {
+            int h = hash(p);
+            int streamPos = (int) (base + p);
+            prev[streamPos & (windowSize - 1)] = head[h];
+            head[h] = streamPos;
+        }
+        if (limit > from) {
+            nextInsert = (int) (base + limit);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.morihofi.cab4j.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread MSZIP codec context. Creating a {@link Deflater} or
+ * {@link Inflater} allocates native zlib state, which is expensive when done
+ * for every 32&nbsp;KB CFDATA block. A context keeps one instance of each plus
+ * scratch buffers and resets them between blocks. Use {@link #get()} to
+ * obtain the context of the current thread; contexts must not be shared
+ * between threads.
+ */
+public final class MszipCodec {
+
+    /** Maximum number of uncompressed bytes in an MSZIP block. */
+    public static final int MAX_BLOCK_SIZE = 0x8000;
+
+    private static final ThreadLocal<MszipCodec> CONTEXT = ThreadLocal.withInitial(MszipCodec::new);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] outScratch = new byte[MAX_BLOCK_SIZE + 256];
+    private byte[] inScratch = new byte[0];
+
+    private MszipCodec() {
+    }
+
+    /**
+     * Returns the codec context bound to the calling thread.
+     */
+    public static MszipCodec get() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * Compresses a block and returns the MSZIP payload, i.e. the {@code CK}
+     * signature followed by the raw deflate stream.
+     *
+     * @param data uncompressed block data
+     * @param off  offset of the first byte
+     * @param len  number of bytes to compress
+     * @return a new buffer sized exactly to the compressed payload
+     */
+    public ByteBuffer compress(byte[] data, int off, int len) {
+        return compress(data, off, len, null, 0, 0);
+    }
+
+    /**
+     * Compresses a block using the preceding uncompressed data of the folder
+     * as preset dictionary. MSZIP decoders keep the last 32&nbsp;KB of output
+     * between blocks, so the block may reference that history. At most the
+     * last {@value #MAX_BLOCK_SIZE} bytes of the dictionary are used.
+     *
+     * @param data    uncompressed block data
+     * @param off     offset of the first byte
+     * @param len     number of bytes to compress
+     * @param dict    preceding folder data or {@code null}
+     * @param dictOff offset of the dictionary
+     * @param dictLen length of the dictionary
+     * @return a new buffer sized exactly to the compressed payload
+     */
+    public ByteBuffer compress(byte[] data, int off, int len, byte[] dict, int dictOff, int dictLen) {
+        deflater.reset();
+        if (dict != null && dictLen > 0) {
+            int used = Math.min(dictLen, MAX_BLOCK_SIZE);
+            deflater.setDictionary(dict, dictOff + dictLen - used, used);
+        }
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        int clen = 0;
+        while (!deflater.finished()) {
+            if (clen == outScratch.length) {
+                outScratch = Arrays.copyOf(outScratch, outScratch.length * 2);
+            }
+            clen += deflater.deflate(outScratch, clen, outScratch.length - clen);
+        }
+        ByteBuffer result = ByteBuffer.allocate(clen + 2);
+        result.put((byte) 'C');
+        result.put((byte) 'K');
+        result.put(outScratch, 0, clen);
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Decompresses a single MSZIP block.
+     *
+     * @param block compressed payload starting with the {@code CK} signature;
+     *              its position is advanced past the consumed bytes
+     * @param out   destination array
+     * @param off   offset in the destination array
+     * @param len   expected number of uncompressed bytes
+     * @return number of bytes written to {@code out}
+     * @throws DataFormatException if the block is not valid MSZIP data
+     */
+    public int decompress(ByteBuffer block, byte[] out, int off, int len) throws DataFormatException {
+        return decompress(block, out, off, len, null, 0, 0);
+    }
+
+    /**
+     * Decompresses a single MSZIP block that may refer to the preceding
+     * output of its folder.
+     *
+     * @param block   compressed payload starting with the {@code CK}
+     *                signature; its position is advanced past the consumed
+     *                bytes
+     * @param out     destination array
+     * @param off     offset in the destination array
+     * @param len     expected number of uncompressed bytes
+     * @param dict    preceding folder output or {@code null}
+     * @param dictOff offset of the history
+     * @param dictLen length of the history, at most {@value #MAX_BLOCK_SIZE}
+     * @return number of bytes written to {@code out}
+     * @throws DataFormatException if the block is not valid MSZIP data
+     */
+    public int decompress(ByteBuffer block, byte[] out, int off, int len,
+                          byte[] dict, int dictOff, int dictLen) throws DataFormatException {
+        if (block.remaining() < 2 || block.get() != 'C' || block.get() != 'K') {
+            throw new DataFormatException("Invalid MSZIP signature");
+        }
+        inflater.reset();
+        if (dict != null && dictLen > 0) {
+            inflater.setDictionary(dict, dictOff, dictLen);
+        }
+        int inLen = block.remaining();
+        if (block.hasArray()) {
+            inflater.setInput(block.array(), block.arrayOffset() + block.position(), inLen);
+        } else {
+            if (inScratch.length < inLen) {
+                inScratch = new byte[Math.max(inLen, MAX_BLOCK_SIZE + 256)];
+            }
+            block.duplicate().get(inScratch, 0, inLen);
+            inflater.setInput(inScratch, 0, inLen);
+        }
+        int written = 0;
+        while (written < len && !inflater.finished()) {
+            int n = inflater.inflate(out, off + written, len - written);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            written += n;
+        }
+        block.position(block.position() + inLen - inflater.getRemaining());
+        return written;
+    }
+}
@@ -0,0 +1,43 @@
+package de.morihofi.cab4j.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * MSZIP decompressor keeping the last 32&nbsp;KB of folder output as history.
+ * Cabinets created by makecab compress every block against the preceding
+ * output of the folder, so the history has to be supplied as dictionary when
+ * inflating the next block. Blocks compressed independently decode the same
+ * way.
+ */
+class MszipDecompressor implements FolderDecompressor {
+
+    private final byte[] history = new byte[MszipCodec.MAX_BLOCK_SIZE];
+    private int historyLength = 0;
+
+    @Override
+    public int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException {
+        int written;
+        try {
+            written = MszipCodec.get().decompress(block, out, off, cbUncomp, history, 0, historyLength);
+        } catch (DataFormatException e) {
+            throw new IOException("MSZIP decompression failed", e);
+        }
+        updateHistory(out, off, written);
+        return written;
+    }
+
+    private void updateHistory(byte[] data, int off, int len) {
+        int size = history.length;
+        if (len >= size) {
+            System.arraycopy(data, off + len - size, history, 0, size);
+            historyLength = size;
+            return;
+        }
+        int keep = Math.min(historyLength, size - len);
+        System.arraycopy(history, historyLength - keep, history, 0, keep);
+        System.arraycopy(data, off, history, keep, len);
+        historyLength = keep + len;
+    }
+}
@@ -0,0 +1,73 @@
+package de.morihofi.cab4j.compression;
+
+/**
+ * Constants of the Quantum format used by {@link QuantumCompressor} and
+ * {@link QuantumDecompressor}.
+ */
+final class Quantum {
+
+    static final int MIN_WINDOW_BITS = 10;
+    static final int MAX_WINDOW_BITS = 21;
+
+    /** Every CFDATA block of a Quantum folder holds one frame of this size, except the last. */
+    static final int FRAME_SIZE = 0x8000;
+
+    static final int SELECTOR_ENTRIES = 7;
+    static final int LENGTH_ENTRIES = 27;
+
+    /** Match offset minus one is {@code POSITION_BASE[slot] + extra}. */
+    static final int[] POSITION_BASE = new int[42];
+    static final int[] EXTRA_BITS = new int[42];
+    /** Selector 6 match length minus five is {@code LENGTH_BASE[slot] + extra}. */
+    static final int[] LENGTH_BASE = new int[27];
+    static final int[] LENGTH_EXTRA = new int[27];
+
+    static {
+        for (int i = 0, offset = 0; i < 42; i++) {
+            POSITION_BASE[i] = offset;
+            EXTRA_BITS[i] = (i < 2 ? 0 : i - 2) >> 1;
+            offset += 1 << EXTRA_BITS[i];
+        }
+        for (int i = 0, offset = 0; i < 26; i++) {
+            LENGTH_BASE[i] = offset;
+            LENGTH_EXTRA[i] = (i < 2 ? 0 : i - 2) >> 2;
+            offset += 1 << LENGTH_EXTRA[i];
+        }
+        LENGTH_BASE[26] = 254;
+        LENGTH_EXTRA[26] = 0;
+    }
+
+    private Quantum() {
+    }
+
+    /**
+     * Returns the number of position slots of the selector 4 model, used for
+     * matches of 3 bytes.
+     */
+    static int shortSlots(int windowBits) {
+        return Math.min(windowBits * 2, 24);
+    }
+
+    /**
+     * Returns the number of position slots of the selector 5 model, used for
+     * matches of 4 bytes.
+     */
+    static int mediumSlots(int windowBits) {
+        return Math.min(windowBits * 2, 36);
+    }
+
+    /**
+     * Returns the number of position slots of the selector 6 model, used for
+     * matches of 5 and more bytes.
+     */
+    static int longSlots(int windowBits) {
+        return windowBits * 2;
+    }
+
+    static void checkWindowBits(int windowBits) {
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Quantum window bits must be between " + MIN_WINDOW_BITS
+                    + " and " + MAX_WINDOW_BITS + ": " + windowBits);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package de.morihofi.cab4j.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static de.morihofi.cab4j.compression.Quantum.*;
+
+/**
+ * Quantum compressor for the CFDATA blocks of one folder. Each call to
+ * {@link #compress(byte[], int, int)} encodes one frame of at most
+ * {@value #FRAME_SIZE} bytes as a separate arithmetic coding run; the
+ * adaptive models and the window carry over between frames exactly as the
+ * decoder expects. Matches are found greedily with hash chains and never
+ * cross the end of a frame.
+ * <p>
+ * Quantum interleaves the extra bits of match offsets and lengths with the
+ * arithmetic code, and the decoder reads them 16 bits after the code bits it
+ * has consumed. The encoder therefore queues extra bits until the code stream
+ * has reached that position.
+ * <p>
+ * Instances carry the state of the folder stream and are not thread-safe.
+ */
+public final class QuantumCompressor {
+
+    /** Smallest supported window, 2^10 bytes. */
+    public static final int MIN_WINDOW_BITS = Quantum.MIN_WINDOW_BITS;
+    /** Largest supported window, 2^21 bytes. */
+    public static final int MAX_WINDOW_BITS = Quantum.MAX_WINDOW_BITS;
+    /** Maximum number of uncompressed bytes per frame and CFDATA block. */
+    public static final int FRAME_SIZE = Quantum.FRAME_SIZE;
+    /** Default number of hash chain entries examined per position. */
+    public static final int DEFAULT_MATCH_DEPTH = 16;
+
+    private static final int MAX_MATCH = LENGTH_BASE[LENGTH_ENTRIES - 1] + 5;
+
+    private final int windowBits;
+    private final MatchFinder finder;
+    private final int shortLimit;
+    private final int mediumLimit;
+
+    private final QuantumModel[] literalModels = new QuantumModel[4];
+    private final QuantumModel shortModel;
+    private final QuantumModel mediumModel;
+    private final QuantumModel longModel;
+    private final QuantumModel lengthModel;
+    private final QuantumModel selectorModel;
+
+    private int low;
+    private int high;
+    private int pending;
+    /** Code bits the decoder has shifted in after its initial 16. */
+    private int shifts;
+    /** Code bits written to the output so far. */
+    private int codeBits;
+
+    // Extra bits waiting for the code stream to reach their position
+    private final int[] queuePoint = new int[2 * FRAME_SIZE];
+    private final int[] queueValue = new int[2 * FRAME_SIZE];
+    private final int[] queueBits = new int[2 * FRAME_SIZE];
+    private int queueHead;
+    private int queueTail;
+
+    private byte[] out = new byte[FRAME_SIZE + 1024];
+    private int outPos;
+    private int bitAcc;
+    private int bitCount;
+
+    /**
+     * Creates a compressor using a window of {@code 2^windowBits} bytes and
+     * the {@linkplain #DEFAULT_MATCH_DEPTH default match depth}.
+     *
+     * @param windowBits base 2 logarithm of the window size, 10 to 21
+     */
+    public QuantumCompressor(int windowBits) {
+        this(windowBits, DEFAULT_MATCH_DEPTH);
+    }
+
+    /**
+     * Creates a compressor.
+     *
+     * @param windowBits base 2 logarithm of the window size, 10 to 21
+     * @param matchDepth maximum number of hash chain entries examined per
+     *                   position, at least 1
+     */
+    public QuantumCompressor(int windowBits, int matchDepth) {
+        Quantum.checkWindowBits(windowBits);
+        if (matchDepth < 1) {
+            throw new IllegalArgumentException("matchDepth must be at least 1");
+        }
+        this.windowBits = windowBits;
+        int windowSize = 1 << windowBits;
+        this.finder = new MatchFinder(windowSize, windowSize - 1, FRAME_SIZE, matchDepth);
+        this.shortLimit = POSITION_BASE[shortSlots(windowBits)];
+        this.mediumLimit = POSITION_BASE[mediumSlots(windowBits)];
+        for (int i = 0; i < 4; i++) {
+            literalModels[i] = new QuantumModel(i * 64, 64);
+        }
+        shortModel = new QuantumModel(0, shortSlots(windowBits));
+        mediumModel = new QuantumModel(0, mediumSlots(windowBits));
+        longModel = new QuantumModel(0, longSlots(windowBits));
+        lengthModel = new QuantumModel(0, LENGTH_ENTRIES);
+        selectorModel = new QuantumModel(0, SELECTOR_ENTRIES);
+    }
+
+    /**
+     * Returns the {@code typeCompress} value of a CFFOLDER entry holding data
+     * of this compressor, i.e. the Quantum type with the window size in bits
+     * 8 to 12.
+     */
+    public short getTypeCompress() {
+        return typeCompress(windowBits);
+    }
+
+    /**
+     * Returns the {@code typeCompress} value for Quantum with a window of
+     * {@code 2^windowBits} bytes.
+     *
+     * @param windowBits base 2 logarithm of the window size, 10 to 21
+     */
+    public static short typeCompress(int windowBits) {
+        Quantum.checkWindowBits(windowBits);
+        return (short) (0x0002 | windowBits << 8);
+    }
+
+    /**
+     * Compresses the next frame of the folder.
+     *
+     * @param data uncompressed data
+     * @param off  offset of the first byte
+     * @param len  number of bytes, 1 to {@value #FRAME_SIZE}
+     * @return a new buffer sized exactly to the CFDATA payload
+     */
+    public ByteBuffer compress(byte[] data, int off, int len) {
+        if (len < 1 || len > FRAME_SIZE) {
+            throw new IllegalArgumentException("Quantum frames hold 1 to " + FRAME_SIZE + " bytes: " + len);
+        }
+        int start = finder.append(data, off, len);
+        byte[] buf = finder.buffer();
+        int end = start + len;
+
+        low = 0;
+        high = 0xFFFF;
+        pending = 0;
+        shifts = 0;
+        codeBits = 0;
+        queueHead = 0;
+        queueTail = 0;
+        outPos = 0;
+        bitAcc = 0;
+        bitCount = 0;
+
+        int pos = start;
+        while (pos < end) {
+            long match = finder.find(pos, end, MAX_MATCH);
+            int length = (int) (match >>> 32);
+            int offset = (int) match;
+            if (length == 4 && offset > mediumLimit) {
+                length = 3;
+            }
+            if (length == 3 && offset > shortLimit) {
+                length = 0;
+            }
+            if (length < 3) {
+                int b = buf[pos] & 0xFF;
+                encodeSymbol(selectorModel, b >>> 6);
+                encodeSymbol(literalModels[b >>> 6], b);
+                pos++;
+                continue;
+            }
+
+            QuantumModel positionModel;
+            if (length == 3) {
+                encodeSymbol(selectorModel, 4);
+                positionModel = shortModel;
+            } else if (length == 4) {
+                encodeSymbol(selectorModel, 5);
+                positionModel = mediumModel;
+            } else {
+                encodeSymbol(selectorModel, 6);
+                int lengthSlot = slot(LENGTH_BASE, LENGTH_ENTRIES, length - 5);
+                encodeSymbol(lengthModel, lengthSlot);
+                queueExtra(length - 5 - LENGTH_BASE[lengthSlot], LENGTH_EXTRA[lengthSlot]);
+                positionModel = longModel;
+            }
+            int slot = slot(POSITION_BASE, positionModel.entries, offset - 1);
+            encodeSymbol(positionModel, slot);
+            queueExtra(offset - 1 - POSITION_BASE[slot], EXTRA_BITS[slot]);
+            pos += length;
+        }
+        finish();
+
+        return ByteBuffer.wrap(Arrays.copyOf(out, outPos));
+    }
+
+    private static int slot(int[] base, int entries, int value) {
+        int lowIndex = 0;
+        int highIndex = entries - 1;
+        while (lowIndex < highIndex) {
+            int mid = (lowIndex + highIndex + 1) >>> 1;
+            if (base[mid] <= value) {
+                lowIndex = mid;
+            } else {
+                highIndex = mid - 1;
+            }
+        }
+        return lowIndex;
+    }
+
+    private void encodeSymbol(QuantumModel model, int symbol) {
+        int index = model.indexOf(symbol);
+        int[] cf = model.cumfreq;
+        int range = high - low + 1;
+        int total = cf[0];
+        high = (low + cf[index] * range / total - 1) & 0xFFFF;
+        low = (low + cf[index + 1] * range / total) & 0xFFFF;
+        model.update(index);
+
+        while (true) {
+            if (((low ^ high) & 0x8000) == 0) {
+                int bit = high >>> 15;
+                writeCodeBit(bit);
+                for (; pending > 0; pending--) {
+                    writeCodeBit(bit ^ 1);
+                }
+            } else if ((low & 0x4000) != 0 && (high & 0x4000) == 0) {
+                pending++;
+                low &= 0x3FFF;
+                high |= 0x4000;
+            } else {
+                break;
+            }
+            low = (low << 1) & 0xFFFF;
+            high = ((high << 1) | 1) & 0xFFFF;
+            shifts++;
+        }
+    }
+
+    /**
+     * Queues extra bits for the position the decoder reads them from: after
+     * its 16 bit code register and every code bit shifted in so far.
+     */
+    private void queueExtra(int value, int n) {
+        if (n == 0) {
+            return;
+        }
+        queuePoint[queueTail] = shifts + 16;
+        queueValue[queueTail] = value;
+        queueBits[queueTail] = n;
+        queueTail++;
+    }
+
+    private void writeCodeBit(int bit) {
+        writeBits(bit, 1);
+        codeBits++;
+        while (queueHead < queueTail && queuePoint[queueHead] == codeBits) {
+            writeBits(queueValue[queueHead], queueBits[queueHead]);
+            queueHead++;
+        }
+    }
+
+    /**
+     * Ends the arithmetic coding run of the frame. Two code bits select a
+     * value inside the final interval; zero bits then fill the decoder's 16
+     * bit lookahead plus the two bits decoders read when closing the frame,
+     * after which the block has to end.
+     */
+    private void finish() {
+        pending++;
+        int bit = low < 0x4000 ? 0 : 1;
+        writeCodeBit(bit);
+        for (; pending > 0; pending--) {
+            writeCodeBit(bit ^ 1);
+        }
+        while (codeBits < shifts + 18 || queueHead < queueTail) {
+            writeCodeBit(0);
+        }
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+    }
+
+    /**
+     * Appends up to 24 bits, most significant first.
+     */
+    private void writeBits(int value, int n) {
+        bitAcc = bitAcc << n | (value & ((1 << n) - 1));
+        bitCount += n;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            if (outPos == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            out[outPos++] = (byte) (bitAcc >>> bitCount);
+        }
+    }
+}
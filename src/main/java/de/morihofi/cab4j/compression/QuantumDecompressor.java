@@ -0,0 +1,180 @@
+package de.morihofi.cab4j.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static de.morihofi.cab4j.compression.Quantum.*;
+
+/**
+ * Quantum decompressor for the CFDATA blocks of one folder. Each block holds
+ * one 32&nbsp;KB frame that starts a new arithmetic coding run, while the
+ * adaptive models and the sliding window carry over from one frame to the
+ * next, so the blocks have to be decoded in order.
+ * <p>
+ * Model state lives in primitive arrays and the coder registers in fields
+ * copied to locals per frame, so decoding does not allocate.
+ */
+class QuantumDecompressor implements FolderDecompressor {
+
+    private final int windowSize;
+    private final int windowMask;
+    private final byte[] window;
+    private int windowPos;
+    private long produced;
+
+    private final QuantumModel[] literalModels = new QuantumModel[4];
+    private final QuantumModel shortModel;
+    private final QuantumModel mediumModel;
+    private final QuantumModel longModel;
+    private final QuantumModel lengthModel;
+    private final QuantumModel selectorModel;
+
+    private ByteBuffer in;
+    private int bitBuffer;
+    private int bitsLeft;
+    private int high;
+    private int low;
+    private int code;
+
+    /**
+     * @param windowBits base 2 logarithm of the window size, 10 to 21
+     */
+    QuantumDecompressor(int windowBits) {
+        this.windowSize = 1 << windowBits;
+        this.windowMask = windowSize - 1;
+        this.window = new byte[windowSize];
+        for (int i = 0; i < 4; i++) {
+            literalModels[i] = new QuantumModel(i * 64, 64);
+        }
+        shortModel = new QuantumModel(0, shortSlots(windowBits));
+        mediumModel = new QuantumModel(0, mediumSlots(windowBits));
+        longModel = new QuantumModel(0, longSlots(windowBits));
+        lengthModel = new QuantumModel(0, LENGTH_ENTRIES);
+        selectorModel = new QuantumModel(0, SELECTOR_ENTRIES);
+    }
+
+    @Override
+    public int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException {
+        if (cbUncomp > FRAME_SIZE) {
+            throw new IOException("Quantum frame of " + cbUncomp + " bytes exceeds " + FRAME_SIZE);
+        }
+        in = block;
+        bitBuffer = 0;
+        bitsLeft = 0;
+        high = 0xFFFF;
+        low = 0;
+        code = readBits(16);
+
+        final byte[] window = this.window;
+        final int mask = windowMask;
+        int pos = windowPos;
+        int o = off;
+        int end = off + cbUncomp;
+        while (o < end) {
+            int selector = decodeSymbol(selectorModel);
+            if (selector < 4) {
+                byte b = (byte) decodeSymbol(literalModels[selector]);
+                window[pos] = b;
+                pos = (pos + 1) & mask;
+                out[o++] = b;
+                continue;
+            }
+
+            int matchLength;
+            int slot;
+            switch (selector) {
+                case 4:
+                    slot = decodeSymbol(shortModel);
+                    matchLength = 3;
+                    break;
+                case 5:
+                    slot = decodeSymbol(mediumModel);
+                    matchLength = 4;
+                    break;
+                case 6:
+                    int lengthSlot = decodeSymbol(lengthModel);
+                    matchLength = LENGTH_BASE[lengthSlot] + readBits(LENGTH_EXTRA[lengthSlot]) + 5;
+                    slot = decodeSymbol(longModel);
+                    break;
+                default:
+                    throw new IOException("Invalid Quantum selector " + selector);
+            }
+            int matchOffset = POSITION_BASE[slot] + readBits(EXTRA_BITS[slot]) + 1;
+
+            if (matchLength > end - o) {
+                throw new IOException("Quantum match overruns frame");
+            }
+            if (matchOffset > windowSize || matchOffset > produced + (o - off)) {
+                throw new IOException("Quantum match offset " + matchOffset + " is beyond the window");
+            }
+            int src = (pos - matchOffset) & mask;
+            for (int i = 0; i < matchLength; i++) {
+                byte b = window[src];
+                window[pos] = b;
+                out[o++] = b;
+                src = (src + 1) & mask;
+                pos = (pos + 1) & mask;
+            }
+        }
+
+        windowPos = pos;
+        produced += cbUncomp;
+        in = null;
+        return cbUncomp;
+    }
+
+    /**
+     * Decodes one symbol with the arithmetic decoder and updates its model.
+     */
+    private int decodeSymbol(QuantumModel model) {
+        int[] cf = model.cumfreq;
+        int range = ((high - low) & 0xFFFF) + 1;
+        int target = (((code - low + 1) * cf[0] - 1) / range) & 0xFFFF;
+        int i = 1;
+        while (i < model.entries && cf[i] > target) {
+            i++;
+        }
+        int index = i - 1;
+        int symbol = model.symbols[index];
+
+        range = high - low + 1;
+        int total = cf[0];
+        high = (low + cf[index] * range / total - 1) & 0xFFFF;
+        low = (low + cf[index + 1] * range / total) & 0xFFFF;
+        model.update(index);
+
+        while (true) {
+            if (((low ^ high) & 0x8000) != 0) {
+                if ((low & 0x4000) != 0 && (high & 0x4000) == 0) {
+                    // underflow
+                    code ^= 0x4000;
+                    low &= 0x3FFF;
+                    high |= 0x4000;
+                } else {
+                    break;
+                }
+            }
+            low = (low << 1) & 0xFFFF;
+            high = ((high << 1) | 1) & 0xFFFF;
+            code = ((code << 1) | readBits(1)) & 0xFFFF;
+        }
+        return symbol;
+    }
+
+    /**
+     * Reads up to 24 bits, most significant first. Reading past the end of
+     * the block yields zero bits.
+     */
+    private int readBits(int n) {
+        if (n == 0) {
+            return 0;
+        }
+        while (bitsLeft < n) {
+            int b = in.hasRemaining() ? in.get() & 0xFF : 0;
+            bitBuffer = bitBuffer << 8 | b;
+            bitsLeft += 8;
+        }
+        bitsLeft -= n;
+        return (bitBuffer >>> bitsLeft) & ((1 << n) - 1);
+    }
+}
@@ -0,0 +1,94 @@
+package de.morihofi.cab4j.compression;
+
+/**
+ * Adaptive frequency model of the Quantum arithmetic coder. Symbols are kept
+ * sorted by decreasing frequency as cumulative frequencies, with entry
+ * {@code entries} as a zero sentinel. The update rules follow the Quantum
+ * format exactly, since encoder and decoder have to stay in sync.
+ */
+final class QuantumModel {
+
+    private static final int INCREMENT = 8;
+    private static final int REBUILD_THRESHOLD = 3800;
+
+    final int entries;
+    final int[] symbols;
+    final int[] cumfreq;
+    private int shiftsLeft;
+
+    /**
+     * Creates a model for the symbols {@code start} to {@code start + entries - 1}.
+     */
+    QuantumModel(int start, int entries) {
+        this.entries = entries;
+        this.symbols = new int[entries + 1];
+        this.cumfreq = new int[entries + 1];
+        this.shiftsLeft = 4;
+        for (int i = 0; i <= entries; i++) {
+            symbols[i] = start + i;
+            cumfreq[i] = entries - i;
+        }
+    }
+
+    /**
+     * Returns the index of a symbol, or -1 if the model does not contain it.
+     */
+    int indexOf(int symbol) {
+        for (int i = 0; i < entries; i++) {
+            if (symbols[i] == symbol) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Raises the frequency of the symbol at {@code index} after it was coded.
+     */
+    void update(int index) {
+        int[] cf = cumfreq;
+        for (int i = index; i >= 0; i--) {
+            cf[i] += INCREMENT;
+        }
+        if (cf[0] > REBUILD_THRESHOLD) {
+            rescale();
+        }
+    }
+
+    private void rescale() {
+        int[] cf = cumfreq;
+        if (--shiftsLeft != 0) {
+            for (int i = entries - 1; i >= 0; i--) {
+                cf[i] >>>= 1;
+                if (cf[i] <= cf[i + 1]) {
+                    cf[i] = cf[i + 1] + 1;
+                }
+            }
+            return;
+        }
+
+        shiftsLeft = 50;
+        for (int i = 0; i < entries; i++) {
+            cf[i] -= cf[i + 1];
+            cf[i]++;
+            cf[i] >>>= 1;
+        }
+        // in-place selection sort by decreasing frequency; the (in)stability is part of the format
+        int[] sym = symbols;
+        for (int i = 0; i < entries - 1; i++) {
+            for (int j = i + 1; j < entries; j++) {
+                if (cf[i] < cf[j]) {
+                    int f = cf[i];
+                    cf[i] = cf[j];
+                    cf[j] = f;
+                    int s = sym[i];
+                    sym[i] = sym[j];
+                    sym[j] = s;
+                }
+            }
+        }
+        for (int i = entries - 1; i >= 0; i--) {
+            cf[i] += cf[i + 1];
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.morihofi.cab4j.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Copies the payload of uncompressed ({@code TCOMP_TYPE_NONE}) blocks.
+ */
+class StoredDecompressor implements FolderDecompressor {
+
+    @Override
+    public int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException {
+        if (block.remaining() < cbUncomp) {
+            throw new IOException("Uncompressed block is shorter than cbUncomp");
+        }
+        block.get(out, off, cbUncomp);
+        return cbUncomp;
+    }
+}
@@ -0,0 +1,39 @@
+package de.morihofi.cab4j.compression;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes blocks that earlier versions of cab4j wrote as XZ streams for the
+ * LZX and Quantum compression types.
+ */
+class XzDecompressor implements FolderDecompressor {
+
+    private final String name;
+
+    XzDecompressor(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public int decompress(ByteBuffer block, byte[] out, int off, int cbUncomp) throws IOException {
+        byte[] compBytes = new byte[block.remaining()];
+        block.get(compBytes);
+        int total = 0;
+        try (XZInputStream xz = new XZInputStream(new ByteArrayInputStream(compBytes))) {
+            while (total < cbUncomp) {
+                int n = xz.read(out, off + total, cbUncomp - total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+        } catch (IOException e) {
+            throw new IOException(name + " decompression failed", e);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,46 @@
+package de.morihofi.cab4j.generator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Holds the serialized CFDATA records of a cabinet until its header has been
+ * written. {@link CabGenerator} needs such a store for targets that cannot
+ * seek, since the CFFOLDER entries depend on the size of every compressed
+ * block.
+ */
+public interface BlockStore extends Closeable {
+
+    /**
+     * Appends the remaining bytes of the buffer to the store. The store may
+     * keep a reference to the buffer, so its content must not be modified
+     * afterwards.
+     *
+     * @param src data to append
+     */
+    void append(ByteBuffer src) throws IOException;
+
+    /**
+     * Returns the number of bytes appended so far.
+     */
+    long size();
+
+    /**
+     * Copies all stored bytes, in the order they were appended, to the target
+     * channel. Buffers held in memory reach a
+     * {@link java.nio.channels.GatheringByteChannel} in batches of
+     * {@code maxBuffers}.
+     *
+     * @param target     channel receiving the data
+     * @param maxBuffers number of buffers per gathering write, at least 1
+     */
+    void transferTo(WritableByteChannel target, int maxBuffers) throws IOException;
+
+    /**
+     * Releases all memory and temporary files held by this store.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -1,35 +1,51 @@
 package de.morihofi.cab4j.generator;
 
 import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.compression.LzxCompressor;
+import de.morihofi.cab4j.compression.MszipCodec;
+import de.morihofi.cab4j.compression.QuantumCompressor;
 import de.morihofi.cab4j.structures.CfData;
 import de.morihofi.cab4j.structures.CfFile;
 import de.morihofi.cab4j.structures.CfFolder;
 import de.morihofi.cab4j.structures.CfHeader;
+import de.morihofi.cab4j.structures.SeekIndex;
+import de.morihofi.cab4j.util.CabChecksum;
 import de.morihofi.cab4j.util.ChecksumHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.zip.Deflater;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
-import org.tukaani.xz.LZMA2Options;
-import org.tukaani.xz.XZOutputStream;
 
 /**
  * Generates CAB files from a {@link CabArchive} instance. The implementation
  * operates in a streaming manner using {@link ReadableByteChannel} and
  * {@link WritableByteChannel} so that large files do not need to be kept in
- * memory completely.
+ * memory completely. Input files are read in chunks; when writing to a
+ * {@link SeekableByteChannel} the compressed CFDATA blocks are streamed
+ * straight to the target as well, otherwise they are buffered until the
+ * cabinet header can be written.
  */
 public class CabGenerator {
 
@@ -42,6 +58,24 @@ public class CabGenerator {
     private Short cabinetSetId = null;
     private short cabinetIndex = 0;
     private CfFolder.COMPRESS_TYPE compressionType = CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE;
+    private Executor compressionExecutor = null;
+    private int maxBlocksInFlight = Runtime.getRuntime().availableProcessors() * 2;
+    private Supplier<BlockStore> blockStoreFactory = MemoryBlockStore::new;
+    private boolean mszipHistory = false;
+    private int lzxWindowBits = LzxCompressor.MAX_WINDOW_BITS;
+    private int lzxMatchDepth = LzxCompressor.DEFAULT_MATCH_DEPTH;
+    private int quantumWindowBits = QuantumCompressor.MAX_WINDOW_BITS;
+    private FolderPlanner folderPlanner = FolderPlanner.explicit();
+    private int writeBatchSize = GatheringWriter.DEFAULT_BATCH_BUFFERS / 2;
+    private boolean deduplicate = false;
+    private int headerReserve = 0;
+    private int folderReserve = 0;
+    /** Zero-filled abReserve area of every CFDATA block, shared between blocks. */
+    private byte[] dataReserve = new byte[0];
+    private boolean seekIndex = false;
+    private boolean independentBlocks = false;
+    /** Reused between cabinets for the serialized header area. */
+    private ByteBuffer metadataBuffer;
 
     /**
      * Creates a new generator operating on the given archive.
@@ -54,10 +88,26 @@ public class CabGenerator {
 
     /**
      * Writes a cabinet containing all files of the underlying archive to the
-     * provided {@link WritableByteChannel}.
+     * provided {@link WritableByteChannel}. Since the header has to be written
+     * before the CFDATA blocks, all compressed blocks are collected in a
+     * {@link BlockStore} until the cabinet is complete. By default that store
+     * lives on the heap, see {@link #setBlockStoreFactory(Supplier)}. Use
+     * {@link #writeCabinet(SeekableByteChannel)} to avoid buffering altogether.
      */
     public void writeCabinet(WritableByteChannel out) throws IOException {
-        writeCabinet(archive.getFileEntries(), out, true);
+        writeCabinet(archive.getFileEntries(), out, null, true);
+    }
+
+    /**
+     * Writes a cabinet containing all files of the underlying archive to the
+     * provided {@link SeekableByteChannel} in a single pass. Space for the
+     * CFHEADER, CFFOLDER and CFFILE area is reserved at the current position,
+     * CFDATA blocks are streamed directly behind it and the reserved area is
+     * patched once all block sizes are known. Only a few blocks are held in
+     * memory at a time. The channel must not be opened in append mode.
+     */
+    public void writeCabinet(SeekableByteChannel out) throws IOException {
+        writeCabinet(archive.getFileEntries(), out, out, true);
     }
 
     private static class DataBlock {
@@ -70,157 +120,1161 @@ public class CabGenerator {
         }
     }
 
-    private void writeCabinet(Map<String, CabArchive.FileEntry> files, WritableByteChannel out,
-                              boolean incrementIndex) throws IOException {
-        LOG.info("Creating cabinet of {} files", files.size());
+    /**
+     * Receives finished CFDATA blocks in cabinet order.
+     */
+    private interface BlockSink {
+        void accept(FolderState folder, DataBlock block) throws IOException;
+    }
 
-        CfHeader header = new CfHeader();
-        header.setCFiles((short) files.size());
-        if (cabinetSetId == null) {
-            cabinetSetId = (short) ThreadLocalRandom.current().nextInt(0x10000);
+    /**
+     * Compresses the blocks of a folder whose compression stream continues
+     * from one block to the next.
+     */
+    private interface StreamCompressor {
+        ByteBuffer compress(byte[] data, int off, int len);
+    }
+
+    /**
+     * Bookkeeping for a single CFFOLDER while its data is generated.
+     */
+    private static class FolderState {
+        final int index;
+        final List<CabArchive.FileEntry> entries = new ArrayList<>();
+        int uncompressedSize;
+        int dataBlocks;
+        long compressedSize;
+        /** Seek index table of the folder, {@code null} unless one is written. */
+        BlockIndex blockIndex;
+
+        FolderState(int index) {
+            this.index = index;
         }
-        header.setSetID(cabinetSetId);
-        header.setiCabinet(cabinetIndex);
 
-        List<CfFile> cfFiles = new ArrayList<>();
-        Map<Integer, Integer> folderDataBlocks = new HashMap<>();
-        Map<Integer, List<DataBlock>> folderBlocks = new HashMap<>();
-        Map<Integer, Integer> folderOffsets = new HashMap<>();
-        Map<Integer, Long> folderCompressedSizes = new HashMap<>();
-        int maxFolder = 0;
-        int cfFileSectionSize = 0;
+        void addBlock(long size, int cbUncomp) {
+            dataBlocks++;
+            compressedSize += size;
+            if (blockIndex != null) {
+                blockIndex.add(size, cbUncomp);
+            }
+        }
 
-        int chunkLimit = compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE ? CFDATA_MAX : 0x8000;
+        boolean isFileBacked() {
+            for (CabArchive.FileEntry fe : entries) {
+                if (fe.path == null) {
+                    return false;
+                }
+            }
+            return !entries.isEmpty();
+        }
+    }
 
-        for (Map.Entry<String, CabArchive.FileEntry> e : files.entrySet()) {
-            String name = e.getKey();
+    /**
+     * Collects the {@link SeekIndex} table of a folder while its blocks are
+     * written.
+     */
+    private static final class BlockIndex {
+        private int[] entries = new int[64];
+        private int length;
+        /** Offset of the next block relative to coffCabStart. */
+        private long offset;
+        /** Folder offset of the next block's uncompressed data. */
+        private long position;
+
+        BlockIndex(long position) {
+            this.position = position;
+        }
+
+        void add(long blockSize, int cbUncomp) {
+            if (length + 2 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[length++] = (int) offset;
+            entries[length++] = (int) position;
+            offset += blockSize;
+            position += cbUncomp;
+        }
+
+        int getByteSize() {
+            return (length / 2 + 1) * SeekIndex.ENTRY_SIZE;
+        }
+
+        ByteBuffer build() {
+            ByteBuffer bb = ByteBuffer.allocate(getByteSize()).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < length; i++) {
+                bb.putInt(entries[i]);
+            }
+            bb.putInt((int) offset);
+            bb.putInt((int) position);
+            bb.flip();
+            return bb;
+        }
+    }
+
+    /**
+     * A CFDATA block that is still being compressed by the compression
+     * executor. Pending blocks are drained strictly in submission order so the
+     * resulting cabinet is identical to the one produced sequentially.
+     */
+    private static class PendingBlock {
+        final FolderState folder;
+        final FutureTask<DataBlock> task;
+
+        PendingBlock(FolderState folder, FutureTask<DataBlock> task) {
+            this.folder = folder;
+            this.task = task;
+        }
+
+        DataBlock await() throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing CFDATA block");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("CFDATA compression failed", cause);
+            }
+        }
+    }
+
+    /**
+     * CFFILE entries and folders of a cabinet, with everything except the
+     * CFDATA related fields filled in.
+     */
+    private static final class Layout {
+        final List<CfFile> cfFiles = new ArrayList<>();
+        final List<FolderState> folders = new ArrayList<>();
+        int cfFileSectionSize;
+    }
+
+    /**
+     * Assigns the files to folders and computes their CFFILE entries.
+     * CFFILE entries are grouped by folder, keeping the archive order within
+     * a folder.
+     */
+    private Layout layout(Map<String, CabArchive.FileEntry> files) throws IOException {
+        List<Map.Entry<String, CabArchive.FileEntry>> fileList = new ArrayList<>(files.entrySet());
+        int[] aliasOf = deduplicate ? findDuplicates(fileList) : null;
+        int[] plan;
+        if (aliasOf == null) {
+            plan = planFolders(files);
+        } else {
+            // only the first copy of a file is placed, its duplicates point at it
+            Map<String, CabArchive.FileEntry> unique = new LinkedHashMap<>();
+            for (int i = 0; i < aliasOf.length; i++) {
+                if (aliasOf[i] < 0) {
+                    unique.put(fileList.get(i).getKey(), fileList.get(i).getValue());
+                }
+            }
+            int[] uniquePlan = planFolders(unique);
+            plan = new int[aliasOf.length];
+            int u = 0;
+            for (int i = 0; i < aliasOf.length; i++) {
+                plan[i] = aliasOf[i] < 0 ? uniquePlan[u++] : plan[aliasOf[i]];
+            }
+        }
+        Integer[] order = new Integer[fileList.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> plan[i]));
+
+        Layout layout = new Layout();
+        List<FolderState> folders = layout.folders;
+        int[] folderOffsets = new int[fileList.size()];
+        for (int index : order) {
+            Map.Entry<String, CabArchive.FileEntry> e = fileList.get(index);
             CabArchive.FileEntry fe = e.getValue();
-            short folder = fe.folder;
+            int folderIndex = plan[index];
+            while (folders.size() <= folderIndex) {
+                folders.add(new FolderState(folders.size()));
+            }
+            FolderState folder = folders.get(folderIndex);
 
             CfFile cfFile = new CfFile();
             cfFile.setCbFile((int) fe.size);
-            cfFile.setiFolder(folder);
+            cfFile.setiFolder((short) folderIndex);
             cfFile.setDateTime(fe.lastModified);
             cfFile.setAttribs(fe.attribs);
-            cfFile.setSzName(name.getBytes(StandardCharsets.UTF_8));
-            int off = folderOffsets.getOrDefault((int) folder, 0);
-            cfFile.setUoffFolderStart(off);
-            folderOffsets.put((int) folder, off + (int) fe.size);
-            cfFiles.add(cfFile);
-            cfFileSectionSize += cfFile.getByteSize();
-
-            List<DataBlock> blocks = folderBlocks.computeIfAbsent((int) folder, k -> new ArrayList<>());
-
-            try (ReadableByteChannel ch = Channels.newChannel(fe.in)) {
-                long remaining = fe.size;
-                while (remaining > 0) {
-                    int chunk = (int) Math.min(remaining, chunkLimit);
-                    ByteBuffer raw = ByteBuffer.allocate(chunk);
-                    readFully(ch, raw);
-                    raw.flip();
-
-                    ByteBuffer compBuf;
-                    switch (compressionType) {
-                        case TCOMP_TYPE_MSZIP:
-                            byte[] outBytes = new byte[chunk + 256];
-                            Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-                            def.setInput(raw.array(), raw.position(), raw.remaining());
-                            def.finish();
-                            int clen = def.deflate(outBytes);
-                            def.end();
-                            ByteBuffer tmp = ByteBuffer.allocate(clen + 2);
-                            tmp.put((byte) 'C');
-                            tmp.put((byte) 'K');
-                            tmp.put(outBytes, 0, clen);
-                            tmp.flip();
-                            compBuf = tmp;
-                            break;
-                        case TCOMP_TYPE_LZX:
-                        case TCOMP_TYPE_QUANTUM:
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            try (XZOutputStream xz = new XZOutputStream(baos, new LZMA2Options())) {
-                                xz.write(raw.array(), raw.position(), raw.remaining());
-                            }
-                            compBuf = ByteBuffer.wrap(baos.toByteArray());
-                            break;
-                        case TCOMP_TYPE_NONE:
-                        default:
-                            compBuf = raw.duplicate();
-                            break;
-                    }
+            cfFile.setSzName(e.getKey().getBytes(StandardCharsets.UTF_8));
+            if (aliasOf != null && aliasOf[index] >= 0) {
+                // the original sorts first as it comes earlier in the same folder
+                cfFile.setUoffFolderStart(folderOffsets[aliasOf[index]]);
+            } else {
+                folderOffsets[index] = folder.uncompressedSize;
+                cfFile.setUoffFolderStart(folder.uncompressedSize);
+                folder.uncompressedSize += (int) fe.size;
+                folder.entries.add(fe);
+            }
+            layout.cfFiles.add(cfFile);
+            layout.cfFileSectionSize += cfFile.getByteSize();
+        }
+        if (folders.isEmpty()) {
+            folders.add(new FolderState(0));
+        }
+        return layout;
+    }
+
+    /**
+     * Returns the typeCompress value of the configured compression.
+     */
+    private short typeCompress() {
+        if (compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX) {
+            return LzxCompressor.typeCompress(lzxWindowBits);
+        } else if (compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_QUANTUM) {
+            return QuantumCompressor.typeCompress(quantumWindowBits);
+        }
+        return (short) compressionType.getValue();
+    }
+
+    /**
+     * Returns the size of the reserved area of each CFFOLDER entry, which
+     * holds the seek index reference and folder flags if enabled.
+     */
+    private int folderReserveSize() {
+        return seekIndex || independentBlocks
+                ? Math.max(folderReserve, SeekIndex.FOLDER_RESERVE_SIZE) : folderReserve;
+    }
+
+    /**
+     * Returns the {@link SeekIndex} flags of the folders written by this
+     * generator.
+     */
+    private int folderFlags() {
+        boolean independent = independentBlocks && (compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE
+                || compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        return independent ? SeekIndex.FLAG_INDEPENDENT_BLOCKS : 0;
+    }
+
+    /**
+     * Returns the size of a CFFOLDER entry including its reserved area.
+     */
+    private int folderEntrySize() {
+        return 8 + folderReserveSize();
+    }
+
+    /**
+     * Returns the size a CFDATA block adds to the seek index.
+     */
+    private int indexEntrySize() {
+        return seekIndex ? SeekIndex.ENTRY_SIZE : 0;
+    }
+
+    /**
+     * Creates a CFFOLDER entry with the compression type and reserved area of
+     * this generator.
+     *
+     * @param coffIndex cabinet offset of the folder's seek index table, or -1
+     */
+    private CfFolder newFolder(int coffIndex) {
+        CfFolder folder = new CfFolder();
+        folder.setTypeCompress(typeCompress());
+        if (folderReserveSize() > 0) {
+            byte[] reserve = new byte[folderReserveSize()];
+            if (seekIndex || independentBlocks) {
+                SeekIndex.writeReference(reserve, coffIndex, folderFlags());
+            }
+            folder.setAbReserve(reserve);
+        }
+        return folder;
+    }
+
+    private void applyReserve(CfHeader header) {
+        if (headerReserve > 0 || folderReserveSize() > 0 || dataReserve.length > 0) {
+            header.setReserve(new byte[headerReserve], folderReserveSize(), dataReserve.length);
+        }
+    }
+
+    private short nextSetId() {
+        if (cabinetSetId == null) {
+            cabinetSetId = (short) ThreadLocalRandom.current().nextInt(0x10000);
+        }
+        return cabinetSetId;
+    }
+
+    private void writeCabinet(Map<String, CabArchive.FileEntry> files, WritableByteChannel out,
+                              SeekableByteChannel seekable, boolean incrementIndex) throws IOException {
+        LOG.info("Creating cabinet of {} files", files.size());
+
+        CfHeader header = new CfHeader();
+        header.setCFiles((short) files.size());
+        header.setSetID(nextSetId());
+        header.setiCabinet(cabinetIndex);
+        applyReserve(header);
+
+        Layout layout = layout(files);
+        List<CfFile> cfFiles = layout.cfFiles;
+        List<FolderState> folders = layout.folders;
+        if (seekIndex) {
+            for (FolderState folder : folders) {
+                folder.blockIndex = new BlockIndex(0);
+            }
+        }
+
+        int folderCount = folders.size();
+        header.setCFolders((short) folderCount);
+        int coffFiles = header.getByteSize() + folderCount * folderEntrySize();
+        header.setCoffFiles(coffFiles);
+        int metadataSize = coffFiles + layout.cfFileSectionSize;
 
-                    CfData cfData = new CfData();
-                    cfData.setCbData((short) compBuf.remaining());
-                    cfData.setCbUncomp((short) chunk);
-
-                    if (enableChecksum) {
-                        ByteBuffer checksumBuffer = ByteBuffer.allocate(compBuf.remaining() + 4);
-                        checksumBuffer.order(ByteOrder.LITTLE_ENDIAN);
-                        checksumBuffer.putShort((short) compBuf.remaining());
-                        checksumBuffer.putShort((short) chunk);
-                        checksumBuffer.put(compBuf.duplicate());
-                        checksumBuffer.flip();
-                        cfData.setCsum(ChecksumHelper.cabChecksum(checksumBuffer));
+        try (BlockStore store = seekable == null ? blockStoreFactory.get() : null) {
+            BlockSink sink;
+            long cabinetStart = 0;
+            GatheringWriter writer = null;
+            if (seekable != null) {
+                cabinetStart = seekable.position();
+                writeFully(out, ByteBuffer.allocate(metadataSize));
+                GatheringWriter blockWriter = new GatheringWriter(out, writeBatchSize * 2);
+                writer = blockWriter;
+                sink = (folder, block) -> {
+                    blockWriter.add(block.header.build());
+                    blockWriter.add(block.data.duplicate());
+                };
+            } else {
+                sink = (folder, block) -> {
+                    store.append(block.header.build());
+                    store.append(block.data.duplicate());
+                };
+            }
+
+            // uncompressed data of files on disk can be copied file to file, but
+            // only behind the reserved header area, not around the block store
+            FileChannel zeroCopyTarget = seekable != null
+                    && compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE
+                    && out instanceof FileChannel ? (FileChannel) out : null;
+            writeFolderData(folders, sink, zeroCopyTarget, writer);
+            if (writer != null) {
+                writer.flush();
+            }
+
+            List<CfFolder> folderDefs = new ArrayList<>();
+            int dataOffset = metadataSize;
+            int indexOffset = metadataSize;
+            for (FolderState state : folders) {
+                indexOffset += (int) state.compressedSize;
+            }
+            for (FolderState state : folders) {
+                CfFolder folder = newFolder(state.blockIndex == null ? -1 : indexOffset);
+                folder.setcCfData((short) state.dataBlocks);
+                folder.setCoffCabStart(dataOffset);
+                dataOffset += (int) state.compressedSize;
+                folderDefs.add(folder);
+                if (state.blockIndex != null) {
+                    // the seek index tables follow the last CFDATA block
+                    ByteBuffer table = state.blockIndex.build();
+                    indexOffset += table.remaining();
+                    if (store != null) {
+                        store.append(table);
                     } else {
-                        cfData.setCsum(0);
+                        writeFully(out, table);
+                    }
+                }
+            }
+            header.setCbCabinet(indexOffset);
+
+            if (seekable != null) {
+                long end = seekable.position();
+                seekable.position(cabinetStart);
+                writeMetadata(out, metadataSize, header, folderDefs, cfFiles);
+                seekable.position(end);
+            } else {
+                writeMetadata(out, metadataSize, header, folderDefs, cfFiles);
+                store.transferTo(out, writeBatchSize * 2);
+            }
+        }
+
+        if (incrementIndex) {
+            cabinetIndex++;
+        }
+    }
+
+    /**
+     * Writes the archive as a set of cabinets that are each at most
+     * {@code maxCabinetSize} bytes large. A folder that does not fit into the
+     * remaining space of a cabinet is split between two CFDATA blocks and
+     * continues as the first folder of the next cabinet; files crossing the
+     * split are listed in both cabinets with the continuation values of
+     * {@link CfFile.IFOLDER_CONTINUED}. The headers link the cabinets through
+     * their names and carry the same set ID.
+     * <p>
+     * Each cabinet is written as soon as it is full. Its blocks are held in a
+     * {@link BlockStore} until then, so with a {@link SpillingBlockStore}
+     * only a bounded part of a single cabinet is kept in memory.
+     *
+     * @param maxCabinetSize maximum size of each cabinet in bytes; must leave
+     *                       room for at least one CFDATA block and the
+     *                       metadata of its files
+     * @param target         names and receives the cabinets
+     * @return the number of cabinets written
+     */
+    public int writeCabinetSet(long maxCabinetSize, CabinetSetTarget target) throws IOException {
+        if (maxCabinetSize <= new CfHeader().getByteSize()) {
+            throw new IllegalArgumentException("maxCabinetSize is too small");
+        }
+        Objects.requireNonNull(target, "target");
+        Map<String, CabArchive.FileEntry> files = archive.getFileEntries();
+        LOG.info("Creating cabinet set of {} files", files.size());
+
+        Layout layout = layout(files);
+        CabinetSetWriter writer = new CabinetSetWriter(layout, maxCabinetSize, target, nextSetId());
+        try {
+            writeFolderData(layout.folders, writer, null, null);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        cabinetIndex += (short) writer.cabinetCount;
+        return writer.cabinetCount;
+    }
+
+    /**
+     * Convenience method returning the cabinets of
+     * {@link #writeCabinetSet(long, CabinetSetTarget)} as buffers, named
+     * {@code 1.cab}, {@code 2.cab} and so on like makecab does by default.
+     *
+     * @param maxCabinetSize maximum size of each cabinet in bytes
+     */
+    public List<ByteBuffer> createCabinetSet(long maxCabinetSize) throws IOException {
+        return createCabinetSet(maxCabinetSize, index -> (index + 1) + ".cab");
+    }
+
+    /**
+     * Convenience method returning the cabinets of
+     * {@link #writeCabinetSet(long, CabinetSetTarget)} as buffers.
+     *
+     * @param maxCabinetSize maximum size of each cabinet in bytes
+     * @param names          file name of each cabinet, linked from its neighbours
+     */
+    public List<ByteBuffer> createCabinetSet(long maxCabinetSize, IntFunction<String> names) throws IOException {
+        List<ByteBuffer> cabinets = new ArrayList<>();
+        writeCabinetSet(maxCabinetSize, new CabinetSetTarget() {
+            @Override
+            public String getName(int index) {
+                return names.apply(index);
+            }
+
+            @Override
+            public WritableByteChannel open(int index) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream() {
+                    @Override
+                    public void close() {
+                        cabinets.add(ByteBuffer.wrap(toByteArray()));
                     }
+                };
+                return Channels.newChannel(bos);
+            }
+        });
+        return cabinets;
+    }
+
+    /**
+     * The part of a folder stored in one cabinet of a set.
+     */
+    private static final class FolderPiece {
+        final FolderState folder;
+        /** Folder offsets of the uncompressed data in this cabinet. */
+        final long start;
+        long end;
+        int dataBlocks;
+        long compressedSize;
+        /** Seek index table of this part, {@code null} unless one is written. */
+        BlockIndex blockIndex;
+        final List<CfFile> files = new ArrayList<>();
+        /**
+         * File ending right at the split that is marked as continued anyway,
+         * since readers only join folders that share a continued file.
+         */
+        CfFile bridge;
+
+        FolderPiece(FolderState folder, long start) {
+            this.folder = folder;
+            this.start = start;
+            this.end = start;
+        }
+    }
 
-                    blocks.add(new DataBlock(cfData, compBuf.duplicate()));
-                    folderCompressedSizes.put((int) folder,
-                            folderCompressedSizes.getOrDefault((int) folder, 0L)
-                                    + cfData.getByteSize() + compBuf.remaining());
-                    folderDataBlocks.put((int) folder,
-                            folderDataBlocks.getOrDefault((int) folder, 0) + 1);
+    /**
+     * Distributes the CFDATA blocks of a cabinet set over cabinets of limited
+     * size. Blocks arrive in folder order; before one is added, the cabinet
+     * size including the CFFOLDER and CFFILE entries the block brings along is
+     * checked, and a full cabinet is written out and replaced by the next.
+     * File offsets stay relative to the start of the whole folder.
+     */
+    private final class CabinetSetWriter implements BlockSink {
+        final long maxCabinetSize;
+        final CabinetSetTarget target;
+        final short setId;
+        final List<FolderState> folders;
+        /** Files of each folder ordered by their offset. */
+        final List<List<CfFile>> folderFiles = new ArrayList<>();
+        int cabinetCount;
+
+        // the cabinet being filled
+        private BlockStore store;
+        private final List<FolderPiece> pieces = new ArrayList<>();
+        /** Metadata size assuming that a next cabinet follows. */
+        private long metadataSize;
+        private long dataSize;
+
+        // the folder being written
+        private int folderIndex = -1;
+        private long position;
+        private int nextFile;
+        /** Listed files of the current folder that end behind {@link #position}. */
+        private final List<CfFile> open = new ArrayList<>();
 
-                    remaining -= chunk;
+        CabinetSetWriter(Layout layout, long maxCabinetSize, CabinetSetTarget target, short setId) {
+            // the header fields are 32 bits wide
+            this.maxCabinetSize = Math.min(maxCabinetSize, Integer.MAX_VALUE);
+            this.target = target;
+            this.setId = setId;
+            this.folders = layout.folders;
+            for (int i = 0; i < folders.size(); i++) {
+                folderFiles.add(new ArrayList<>());
+            }
+            for (CfFile f : layout.cfFiles) {
+                folderFiles.get(f.getiFolder()).add(f);
+            }
+            for (List<CfFile> list : folderFiles) {
+                list.sort(Comparator.comparingLong(f -> Integer.toUnsignedLong(f.getUoffFolderStart())));
+            }
+            startCabinet();
+        }
+
+        @Override
+        public void accept(FolderState folder, DataBlock block) throws IOException {
+            while (folderIndex < folder.index) {
+                nextFolder();
+            }
+            long end = position + Short.toUnsignedInt(block.header.getCbUncomp());
+            long blockSize = block.header.getByteSize() + block.data.remaining();
+            long cost = blockSize + indexEntrySize();
+            FolderPiece piece = currentPiece();
+            int lastFile = filesStartingBefore(end, end == folder.uncompressedSize);
+            if (!fits(piece, lastFile, cost)) {
+                nextCabinet();
+                piece = null;
+                if (!fits(null, lastFile, cost)) {
+                    throw tooSmall();
                 }
             }
+            if (piece == null) {
+                piece = addPiece(folder);
+            }
+            addFiles(piece, lastFile);
+            piece.end = end;
+            piece.dataBlocks++;
+            piece.compressedSize += blockSize;
+            if (piece.blockIndex != null) {
+                piece.blockIndex.add(blockSize, Short.toUnsignedInt(block.header.getCbUncomp()));
+            }
+            store.append(block.header.build());
+            store.append(block.data.duplicate());
+            dataSize += cost;
+            position = end;
+            open.removeIf(f -> Integer.toUnsignedLong(f.getUoffFolderStart()) + f.getCbFile() <= position);
+        }
 
-            if (folder > maxFolder) maxFolder = folder;
+        /**
+         * Writes the folders without data that follow the last block, then the
+         * last cabinet.
+         */
+        void finish() throws IOException {
+            while (folderIndex < folders.size() - 1) {
+                nextFolder();
+            }
+            if (store != null) {
+                writeCabinet(false);
+            }
         }
 
-        int folderCount = maxFolder + 1;
-        header.setCFolders((short) folderCount);
+        void close() throws IOException {
+            if (store != null) {
+                store.close();
+                store = null;
+            }
+        }
 
-        List<CfFolder> folderDefs = new ArrayList<>();
-        int coffFiles = header.getByteSize() + folderCount * new CfFolder().getByteSize();
-        header.setCoffFiles(coffFiles);
+        /**
+         * Moves on to the next folder. Folders only holding empty files have
+         * no blocks and are placed right away.
+         */
+        private void nextFolder() throws IOException {
+            folderIndex++;
+            position = 0;
+            nextFile = 0;
+            open.clear();
+            FolderState folder = folders.get(folderIndex);
+            if (folder.uncompressedSize == 0) {
+                int lastFile = folderFiles.get(folderIndex).size();
+                if (!fits(null, lastFile, 0)) {
+                    nextCabinet();
+                    if (!fits(null, lastFile, 0)) {
+                        throw tooSmall();
+                    }
+                }
+                addFiles(addPiece(folder), lastFile);
+            }
+        }
+
+        private FolderPiece currentPiece() {
+            if (pieces.isEmpty()) {
+                return null;
+            }
+            FolderPiece last = pieces.get(pieces.size() - 1);
+            return last.folder.index == folderIndex ? last : null;
+        }
+
+        /**
+         * Returns the index behind the last file of the current folder that
+         * starts before {@code end}, or at it if the folder ends there.
+         */
+        private int filesStartingBefore(long end, boolean folderEnd) {
+            List<CfFile> files = folderFiles.get(folderIndex);
+            int i = nextFile;
+            while (i < files.size()) {
+                long start = Integer.toUnsignedLong(files.get(i).getUoffFolderStart());
+                if (start > end || (start == end && !folderEnd)) {
+                    break;
+                }
+                i++;
+            }
+            return i;
+        }
 
-        int dataOffset = coffFiles + cfFileSectionSize;
-        for (int i = 0; i < folderCount; i++) {
-            long compSize = folderCompressedSizes.getOrDefault(i, 0L);
-            int blocks = folderDataBlocks.getOrDefault(i, 0);
-            CfFolder folder = new CfFolder();
-            folder.setTypeCompress(compressionType);
-            folder.setcCfData((short) blocks);
-            folder.setCoffCabStart(dataOffset);
-            dataOffset += (int) compSize;
-            folderDefs.add(folder);
+        /**
+         * Checks whether a block and the entries it brings along fit into the
+         * current cabinet. Without a piece of the current folder, the CFFOLDER
+         * entry and the files continued from the previous cabinet count too.
+         */
+        private boolean fits(FolderPiece piece, int lastFile, long blockSize) {
+            long size = metadataSize + dataSize + blockSize;
+            List<CfFile> files = folderFiles.get(folderIndex);
+            for (int i = nextFile; i < lastFile; i++) {
+                size += files.get(i).getByteSize();
+            }
+            if (piece == null) {
+                size += folderEntrySize() + indexEntrySize();
+                for (CfFile f : open) {
+                    size += f.getByteSize();
+                }
+            }
+            return size <= maxCabinetSize;
         }
-        header.setCbCabinet(dataOffset);
 
-        out.write(header.build());
+        private FolderPiece addPiece(FolderState folder) {
+            FolderPiece piece = new FolderPiece(folder, position);
+            if (seekIndex) {
+                piece.blockIndex = new BlockIndex(position);
+            }
+            pieces.add(piece);
+            // the CFFOLDER entry and the end of its seek index table
+            metadataSize += folderEntrySize() + indexEntrySize();
+            for (CfFile f : open) {
+                piece.files.add(f);
+                metadataSize += f.getByteSize();
+            }
+            return piece;
+        }
+
+        private void addFiles(FolderPiece piece, int lastFile) {
+            List<CfFile> files = folderFiles.get(folderIndex);
+            for (; nextFile < lastFile; nextFile++) {
+                CfFile f = files.get(nextFile);
+                piece.files.add(f);
+                open.add(f);
+                metadataSize += f.getByteSize();
+            }
+        }
+
+        private void startCabinet() {
+            store = blockStoreFactory.get();
+            pieces.clear();
+            dataSize = 0;
+            metadataSize = header(true).getByteSize();
+        }
+
+        private void nextCabinet() throws IOException {
+            if (pieces.isEmpty()) {
+                throw tooSmall();
+            }
+            FolderPiece piece = currentPiece();
+            if (piece != null && open.isEmpty() && position < piece.folder.uncompressedSize) {
+                // the split falls between two files; continue the one ending here
+                for (int i = piece.files.size() - 1; i >= 0; i--) {
+                    CfFile f = piece.files.get(i);
+                    if (f.getCbFile() > 0
+                            && Integer.toUnsignedLong(f.getUoffFolderStart()) + f.getCbFile() == position) {
+                        piece.bridge = f;
+                        open.add(f);
+                        break;
+                    }
+                }
+            }
+            writeCabinet(true);
+            startCabinet();
+        }
+
+        private IOException tooSmall() {
+            return new IOException("maxCabinetSize " + maxCabinetSize
+                    + " cannot hold a single CFDATA block and the entries of its files");
+        }
+
+        private CfHeader header(boolean hasNext) {
+            CfHeader header = new CfHeader();
+            header.setSetID(setId);
+            header.setiCabinet((short) (cabinetIndex + cabinetCount));
+            applyReserve(header);
+            if (cabinetCount > 0) {
+                header.setCabinetPrev(target.getName(cabinetCount - 1), "");
+            }
+            if (hasNext) {
+                header.setCabinetNext(target.getName(cabinetCount + 1), "");
+            }
+            return header;
+        }
+
+        /**
+         * Writes the current cabinet to its channel and releases its blocks.
+         */
+        private void writeCabinet(boolean hasNext) throws IOException {
+            CfHeader header = header(hasNext);
+            List<CfFile> cfFiles = new ArrayList<>();
+            int cfFileSectionSize = 0;
+            for (int p = 0; p < pieces.size(); p++) {
+                FolderPiece piece = pieces.get(p);
+                for (CfFile f : piece.files) {
+                    long start = Integer.toUnsignedLong(f.getUoffFolderStart());
+                    boolean fromPrev = start < piece.start;
+                    boolean toNext = start + f.getCbFile() > piece.end || f == piece.bridge;
+                    short iFolder;
+                    if (fromPrev && toNext) {
+                        iFolder = (short) CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_PREV_AND_NEXT.getValue();
+                    } else if (fromPrev) {
+                        iFolder = (short) CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_FROM_PREV.getValue();
+                    } else if (toNext) {
+                        iFolder = (short) CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_TO_NEXT.getValue();
+                    } else {
+                        iFolder = (short) p;
+                    }
+                    CfFile copy = new CfFile();
+                    copy.setCbFile(f.getCbFile());
+                    copy.setUoffFolderStart(f.getUoffFolderStart());
+                    copy.setiFolder(iFolder);
+                    copy.setDate(f.getDate());
+                    copy.setTime(f.getTime());
+                    copy.setAttribs(f.getAttribs());
+                    copy.setSzName(f.getSzName());
+                    cfFiles.add(copy);
+                    cfFileSectionSize += copy.getByteSize();
+                }
+            }
+            if (cfFiles.size() > CabArchive.MAX_FILES) {
+                throw new IOException("Cabinet " + target.getName(cabinetCount) + " would list "
+                        + cfFiles.size() + " files");
+            }
+            header.setCFolders((short) pieces.size());
+            header.setCFiles((short) cfFiles.size());
+            int coffFiles = header.getByteSize() + pieces.size() * folderEntrySize();
+            header.setCoffFiles(coffFiles);
+            int metadataSize = coffFiles + cfFileSectionSize;
+
+            List<CfFolder> folderDefs = new ArrayList<>();
+            int dataOffset = metadataSize;
+            int indexOffset = metadataSize;
+            for (FolderPiece piece : pieces) {
+                indexOffset += (int) piece.compressedSize;
+            }
+            List<ByteBuffer> tables = new ArrayList<>();
+            for (FolderPiece piece : pieces) {
+                CfFolder folder = newFolder(piece.blockIndex == null ? -1 : indexOffset);
+                folder.setcCfData((short) piece.dataBlocks);
+                folder.setCoffCabStart(dataOffset);
+                dataOffset += (int) piece.compressedSize;
+                folderDefs.add(folder);
+                if (piece.blockIndex != null) {
+                    ByteBuffer table = piece.blockIndex.build();
+                    indexOffset += table.remaining();
+                    tables.add(table);
+                }
+            }
+            header.setCbCabinet(indexOffset);
+
+            try (WritableByteChannel out = target.open(cabinetCount)) {
+                writeMetadata(out, metadataSize, header, folderDefs, cfFiles);
+                store.transferTo(out, writeBatchSize * 2);
+                for (ByteBuffer table : tables) {
+                    writeFully(out, table);
+                }
+            }
+            store.close();
+            store = null;
+            cabinetCount++;
+        }
+    }
+
+    /**
+     * Finds files with the same content as an earlier file. Only files that
+     * share their size with another file are read, and their content is
+     * hashed with SHA-256 while it streams through a small buffer. Files added
+     * as an {@link java.io.InputStream} can be read only once and are never
+     * deduplicated.
+     *
+     * @return for each file the index of the earlier file it duplicates or
+     * -1, or {@code null} if there are no duplicates
+     */
+    private static int[] findDuplicates(List<Map.Entry<String, CabArchive.FileEntry>> fileList)
+            throws IOException {
+        Map<Long, List<Integer>> bySize = new HashMap<>();
+        for (int i = 0; i < fileList.size(); i++) {
+            CabArchive.FileEntry fe = fileList.get(i).getValue();
+            if (fe.size > 0 && fe.in == null) {
+                bySize.computeIfAbsent(fe.size, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        int[] aliasOf = null;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (List<Integer> candidates : bySize.values()) {
+            if (candidates.size() < 2) {
+                continue;
+            }
+            Map<ByteBuffer, Integer> firstByHash = new HashMap<>();
+            for (int index : candidates) {
+                try (ReadableByteChannel ch = fileList.get(index).getValue().open()) {
+                    buf.clear();
+                    while (ch.read(buf) >= 0) {
+                        buf.flip();
+                        digest.update(buf);
+                        buf.clear();
+                    }
+                }
+                Integer first = firstByHash.putIfAbsent(ByteBuffer.wrap(digest.digest()), index);
+                if (first != null) {
+                    if (aliasOf == null) {
+                        aliasOf = new int[fileList.size()];
+                        Arrays.fill(aliasOf, -1);
+                    }
+                    aliasOf[index] = first;
+                }
+            }
+        }
+        return aliasOf;
+    }
+
+    /**
+     * Runs the folder planner and checks its result.
+     */
+    private int[] planFolders(Map<String, CabArchive.FileEntry> files) {
+        int[] plan = folderPlanner.plan(files);
+        if (plan.length != files.size()) {
+            throw new IllegalStateException("Folder planner assigned " + plan.length + " folders for "
+                    + files.size() + " files");
+        }
+        for (int folder : plan) {
+            if (folder < 0 || folder >= CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_FROM_PREV.getValue()) {
+                throw new IllegalStateException("Folder planner returned invalid folder index " + folder);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Serializes the CFHEADER, CFFOLDER and CFFILE area into one buffer and
+     * writes it with a single call. The buffer is direct, so channels can
+     * write it without another copy, and is kept for the next cabinet.
+     */
+    private void writeMetadata(WritableByteChannel out, int metadataSize, CfHeader header,
+                               List<CfFolder> folderDefs, List<CfFile> cfFiles) throws IOException {
+        if (metadataBuffer == null || metadataBuffer.capacity() < metadataSize) {
+            metadataBuffer = ByteBuffer.allocateDirect(Math.max(metadataSize, 4096));
+        }
+        ByteBuffer buf = metadataBuffer;
+        buf.clear();
+        header.writeTo(buf);
         for (CfFolder f : folderDefs) {
-            out.write(f.build());
+            f.writeTo(buf);
         }
         for (CfFile f : cfFiles) {
-            out.write(f.build());
+            f.writeTo(buf);
         }
+        buf.flip();
+        writeFully(out, buf);
+    }
+
+    /**
+     * Reads, compresses and emits the data of all folders in cabinet order.
+     * The files of a folder form one continuous stream that is cut into
+     * CFDATA blocks of the maximum size, so a block may hold the end of one
+     * file and the start of the next. When a compression executor is
+     * configured the blocks are compressed concurrently but still handed to
+     * the sink in their original order. LZX and Quantum blocks depend on the
+     * encoder state of the preceding blocks and are always compressed on the
+     * calling thread.
+     * <p>
+     * When {@code zeroCopyTarget} is given, uncompressed folders made up of
+     * files on disk skip the sink and are copied with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}; the
+     * output is the same.
+     */
+    private void writeFolderData(List<FolderState> folders, BlockSink sink, FileChannel zeroCopyTarget,
+                                 GatheringWriter writer) throws IOException {
+        int chunkLimit = compressionType == CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE ? CFDATA_MAX : 0x8000;
+        Deque<PendingBlock> pending = new ArrayDeque<>();
 
-        for (int i = 0; i < folderCount; i++) {
-            List<DataBlock> list = folderBlocks.get(i);
-            if (list == null) continue;
-            for (DataBlock db : list) {
-                out.write(db.header.build());
-                out.write(db.data.duplicate());
+        try {
+            for (FolderState folder : folders) {
+                if (zeroCopyTarget != null && folder.isFileBacked()) {
+                    while (!pending.isEmpty()) {
+                        PendingBlock p = pending.poll();
+                        emitBlock(p.folder, p.await(), sink);
+                    }
+                    writer.flush();
+                    transferStoredFolder(folder, zeroCopyTarget);
+                    continue;
+                }
+                long folderRemaining = folder.uncompressedSize;
+                ByteBuffer raw = null;
+                ByteBuffer previous = null;
+                StreamCompressor stream = createStreamCompressor();
+                for (CabArchive.FileEntry fe : folder.entries) {
+                    try (ReadableByteChannel ch = fe.open()) {
+                        long remaining = fe.size;
+                        while (remaining > 0) {
+                            if (raw == null) {
+                                raw = ByteBuffer.allocate((int) Math.min(folderRemaining, chunkLimit));
+                            }
+                            int n = (int) Math.min(raw.remaining(), remaining);
+                            ByteBuffer view = raw.duplicate();
+                            view.limit(raw.position() + n);
+                            readFully(ch, view);
+                            raw.position(view.position());
+                            remaining -= n;
+                            folderRemaining -= n;
+
+                            if (!raw.hasRemaining()) {
+                                raw.flip();
+                                submitBlock(folder, raw, mszipHistory && !independentBlocks ? previous : null, stream, sink, pending);
+                                previous = raw;
+                                raw = null;
+                            }
+                        }
+                    }
+                }
             }
+
+            while (!pending.isEmpty()) {
+                PendingBlock p = pending.poll();
+                emitBlock(p.folder, p.await(), sink);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (PendingBlock p : pending) {
+                p.task.cancel(true);
+            }
+            throw ex;
         }
+    }
 
-        if (incrementIndex) {
-            cabinetIndex++;
+    /**
+     * Part of an uncompressed CFDATA block taken from a file.
+     */
+    private static final class StoredPiece {
+        final FileChannel source;
+        final ByteBuffer mapping;
+        final long position;
+        final int length;
+
+        StoredPiece(FileChannel source, ByteBuffer mapping, long position, int length) {
+            this.source = source;
+            this.mapping = mapping;
+            this.position = position;
+            this.length = length;
         }
     }
 
+    /**
+     * Writes an uncompressed folder whose files all live on disk. The block
+     * payloads are copied from the source files to the target by the
+     * operating system where it can, and the checksums are calculated on
+     * read-only mappings of the files, so the data never passes through a
+     * heap buffer. Blocks are cut exactly as on the regular path.
+     */
+    private void transferStoredFolder(FolderState folder, FileChannel out) throws IOException {
+        List<StoredPiece> block = new ArrayList<>();
+        List<FileChannel> sources = new ArrayList<>();
+        int blockLength = 0;
+        try {
+            for (CabArchive.FileEntry fe : folder.entries) {
+                if (fe.size == 0) {
+                    continue;
+                }
+                FileChannel source = FileChannel.open(fe.path, StandardOpenOption.READ);
+                sources.add(source);
+                ByteBuffer mapping = enableChecksum ? source.map(FileChannel.MapMode.READ_ONLY, 0, fe.size) : null;
+                long pos = 0;
+                while (pos < fe.size) {
+                    int n = (int) Math.min(fe.size - pos, CFDATA_MAX - blockLength);
+                    block.add(new StoredPiece(source, mapping, pos, n));
+                    blockLength += n;
+                    pos += n;
+                    if (blockLength == CFDATA_MAX) {
+                        transferStoredBlock(folder, block, blockLength, out);
+                        block.clear();
+                        blockLength = 0;
+                        // close the files used up by this block
+                        int keep = pos < fe.size ? 1 : 0;
+                        while (sources.size() > keep) {
+                            sources.remove(0).close();
+                        }
+                    }
+                }
+            }
+            if (blockLength > 0) {
+                transferStoredBlock(folder, block, blockLength, out);
+            }
+        } finally {
+            for (FileChannel source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Writes one uncompressed CFDATA block made up of {@code block}.
+     */
+    private void transferStoredBlock(FolderState folder, List<StoredPiece> block, int length, FileChannel out)
+            throws IOException {
+        CfData cfData = new CfData();
+        cfData.setCbData((short) length);
+        cfData.setCbUncomp((short) length);
+        cfData.setAbReserve(dataReserve);
+        if (enableChecksum) {
+            CabChecksum checksum = CabChecksum.forBlock(length, length);
+            for (StoredPiece piece : block) {
+                ByteBuffer view = piece.mapping.duplicate();
+                view.position((int) piece.position).limit((int) piece.position + piece.length);
+                checksum.update(view);
+            }
+            cfData.setCsum(checksum.getValue());
+        }
+        writeFully(out, cfData.build());
+
+        for (StoredPiece piece : block) {
+            long pos = piece.position;
+            long end = pos + piece.length;
+            while (pos < end) {
+                long n = piece.source.transferTo(pos, end - pos, out);
+                if (n <= 0) {
+                    throw new IOException("Source file ended before its recorded size");
+                }
+                pos += n;
+            }
+        }
+        folder.addBlock(cfData.getByteSize() + length, length);
+    }
+
+    /**
+     * Creates the compressor carrying the stream state of one LZX or Quantum
+     * folder, or returns {@code null} for the block independent types.
+     */
+    private StreamCompressor createStreamCompressor() {
+        switch (compressionType) {
+            case TCOMP_TYPE_LZX:
+                return new LzxCompressor(lzxWindowBits, lzxMatchDepth)::compress;
+            case TCOMP_TYPE_QUANTUM:
+                return new QuantumCompressor(quantumWindowBits)::compress;
+            default:
+                return null;
+        }
+    }
+
+    private void submitBlock(FolderState folder, ByteBuffer raw, ByteBuffer dictionary, StreamCompressor stream,
+                             BlockSink sink, Deque<PendingBlock> pending) throws IOException {
+        if (compressionExecutor == null || stream != null) {
+            emitBlock(folder, createDataBlock(raw, dictionary, stream), sink);
+            return;
+        }
+        FutureTask<DataBlock> task = new FutureTask<>(() -> createDataBlock(raw, dictionary, null));
+        pending.add(new PendingBlock(folder, task));
+        compressionExecutor.execute(task);
+        while (pending.size() >= maxBlocksInFlight) {
+            PendingBlock p = pending.poll();
+            emitBlock(p.folder, p.await(), sink);
+        }
+    }
+
+    private static void emitBlock(FolderState folder, DataBlock block, BlockSink sink) throws IOException {
+        sink.accept(folder, block);
+        folder.addBlock(block.header.getByteSize() + block.data.remaining(),
+                Short.toUnsignedInt(block.header.getCbUncomp()));
+    }
+
+    /**
+     * Compresses a single chunk of raw folder data and wraps it into a CFDATA
+     * block including its checksum. Except for LZX this method is free of
+     * shared state so it may run on any thread of the compression executor.
+     *
+     * @param raw        uncompressed data of the block
+     * @param dictionary uncompressed data of the preceding block of the same
+     *                   folder when MSZIP history is enabled, otherwise
+     *                   {@code null}
+     * @param stream     LZX or Quantum compressor of the folder, {@code null}
+     *                   for other compression types
+     */
+    private DataBlock createDataBlock(ByteBuffer raw, ByteBuffer dictionary, StreamCompressor stream)
+            throws IOException {
+        int chunk = raw.remaining();
+        ByteBuffer compBuf;
+        switch (compressionType) {
+            case TCOMP_TYPE_MSZIP:
+                if (dictionary != null) {
+                    compBuf = MszipCodec.get().compress(raw.array(), raw.arrayOffset() + raw.position(), chunk,
+                            dictionary.array(), dictionary.arrayOffset() + dictionary.position(),
+                            dictionary.remaining());
+                } else {
+                    compBuf = MszipCodec.get().compress(raw.array(), raw.arrayOffset() + raw.position(), chunk);
+                }
+                break;
+            case TCOMP_TYPE_LZX:
+            case TCOMP_TYPE_QUANTUM:
+                compBuf = stream.compress(raw.array(), raw.arrayOffset() + raw.position(), chunk);
+                break;
+            case TCOMP_TYPE_NONE:
+            default:
+                compBuf = raw.duplicate();
+                break;
+        }
+
+        CfData cfData = new CfData();
+        cfData.setCbData((short) compBuf.remaining());
+        cfData.setCbUncomp((short) chunk);
+        cfData.setAbReserve(dataReserve);
+
+        if (enableChecksum) {
+            cfData.setCsum(ChecksumHelper.cfDataChecksum(compBuf.remaining(), chunk, compBuf));
+        } else {
+            cfData.setCsum(0);
+        }
+
+        return new DataBlock(cfData, compBuf.duplicate());
+    }
+
     private static void readFully(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
         while (buf.hasRemaining()) {
             if (ch.read(buf) < 0) {
@@ -229,6 +1283,12 @@ public class CabGenerator {
         }
     }
 
+    private static void writeFully(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
     /**
      * Convenience method returning the generated cabinet as a {@link ByteBuffer}.
      * The underlying input streams are consumed and the entire cabinet is kept in
@@ -274,6 +1334,315 @@ public class CabGenerator {
         this.compressionType = compressionType;
     }
 
+    /**
+     * Returns whether MSZIP blocks are compressed against the preceding block
+     * of their folder.
+     */
+    public boolean isMszipHistory() {
+        return mszipHistory;
+    }
+
+    /**
+     * Enables carrying the 32&nbsp;KB MSZIP history window across the CFDATA
+     * blocks of a folder, as makecab does. Each block is compressed with the
+     * preceding uncompressed block as preset dictionary, which improves the
+     * ratio for many small, similar files. Decoders then have to process the
+     * blocks of a folder in order. Disabled by default, which keeps every
+     * block independently decodable.
+     *
+     * @param mszipHistory {@code true} to use the folder history
+     */
+    public void setMszipHistory(boolean mszipHistory) {
+        this.mszipHistory = mszipHistory;
+    }
+
+    /**
+     * Returns whether folders declare that their blocks decode independently.
+     */
+    public boolean isIndependentBlocks() {
+        return independentBlocks;
+    }
+
+    /**
+     * Compresses every MSZIP block on its own, overriding
+     * {@link #setMszipHistory(boolean)}, and declares this in the
+     * {@link SeekIndex} flags of each folder's reserved area.
+     * {@link de.morihofi.cab4j.CabReader} then starts decoding at the block
+     * holding a file instead of at the start of its folder, and extracts a
+     * large folder on several threads. Uncompressed folders are flagged as
+     * well; LZX and Quantum folders are one stream and never are. Costs a
+     * 12 byte reserve per folder. Disabled by default.
+     *
+     * @param independentBlocks {@code true} to compress and flag blocks independently
+     */
+    public void setIndependentBlocks(boolean independentBlocks) {
+        this.independentBlocks = independentBlocks;
+    }
+
+    /**
+     * Returns the LZX window size as base 2 logarithm.
+     */
+    public int getLzxWindowBits() {
+        return lzxWindowBits;
+    }
+
+    /**
+     * Sets the LZX window size used for {@link CfFolder.COMPRESS_TYPE#TCOMP_TYPE_LZX}.
+     * Larger windows find more matches in big folders; decoders need a buffer
+     * of the window size and the compressor about six times as much. The
+     * default is 21, i.e. 2&nbsp;MB.
+     *
+     * @param lzxWindowBits base 2 logarithm of the window size, 15 to 21
+     */
+    public void setLzxWindowBits(int lzxWindowBits) {
+        if (lzxWindowBits < LzxCompressor.MIN_WINDOW_BITS || lzxWindowBits > LzxCompressor.MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("lzxWindowBits must be between " + LzxCompressor.MIN_WINDOW_BITS
+                    + " and " + LzxCompressor.MAX_WINDOW_BITS);
+        }
+        this.lzxWindowBits = lzxWindowBits;
+    }
+
+    /**
+     * Returns the number of hash chain entries the LZX match finder examines
+     * per position.
+     */
+    public int getLzxMatchDepth() {
+        return lzxMatchDepth;
+    }
+
+    /**
+     * Sets the number of hash chain entries the LZX match finder examines per
+     * position. Higher values find longer matches at the cost of throughput;
+     * values around 4 are fast, several hundred approach the best ratio.
+     *
+     * @param lzxMatchDepth match finder depth, at least 1
+     */
+    public void setLzxMatchDepth(int lzxMatchDepth) {
+        if (lzxMatchDepth < 1) {
+            throw new IllegalArgumentException("lzxMatchDepth must be at least 1");
+        }
+        this.lzxMatchDepth = lzxMatchDepth;
+    }
+
+    /**
+     * Returns the Quantum window size as base 2 logarithm.
+     */
+    public int getQuantumWindowBits() {
+        return quantumWindowBits;
+    }
+
+    /**
+     * Sets the Quantum window size used for {@link CfFolder.COMPRESS_TYPE#TCOMP_TYPE_QUANTUM}.
+     * The default is 21, i.e. 2&nbsp;MB.
+     *
+     * @param quantumWindowBits base 2 logarithm of the window size, 10 to 21
+     */
+    public void setQuantumWindowBits(int quantumWindowBits) {
+        if (quantumWindowBits < QuantumCompressor.MIN_WINDOW_BITS
+                || quantumWindowBits > QuantumCompressor.MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("quantumWindowBits must be between "
+                    + QuantumCompressor.MIN_WINDOW_BITS + " and " + QuantumCompressor.MAX_WINDOW_BITS);
+        }
+        this.quantumWindowBits = quantumWindowBits;
+    }
+
+    /**
+     * Returns whether files with identical content are stored only once.
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Stores files with identical content only once. The CFFILE entries of
+     * the copies point at the folder range of the first file, so neither
+     * their data nor its compression ends up in the cabinet. Files are
+     * compared by size and SHA-256 hash, which reads files of equal size once
+     * more before the cabinet is written. Files added as an
+     * {@link java.io.InputStream} are not deduplicated. Disabled by default.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Returns the size of the reserved area in the cabinet header.
+     */
+    public int getHeaderReserve() {
+        return headerReserve;
+    }
+
+    /**
+     * Returns the size of the reserved area behind every CFFOLDER entry.
+     */
+    public int getFolderReserve() {
+        return folderReserve;
+    }
+
+    /**
+     * Returns the size of the reserved area behind every CFDATA header.
+     */
+    public int getDataReserve() {
+        return dataReserve.length;
+    }
+
+    /**
+     * Reserves zero-filled space in the cabinet header and behind every
+     * CFFOLDER and CFDATA entry, like {@code makecab /D ReserveCFHeader=...}.
+     * Signing tools store the Authenticode signature in the header area; the
+     * other two are free for per-folder and per-block metadata. Readers that
+     * do not know the content skip it. All three default to 0, which leaves
+     * the reserve flag unset.
+     *
+     * @param cbCFHeader header reserve, 0 to {@link CfHeader#MAX_HEADER_RESERVE} bytes
+     * @param cbCFFolder reserve per CFFOLDER entry, 0 to 255 bytes
+     * @param cbCFData   reserve per CFDATA block, 0 to 255 bytes
+     */
+    public void setReserve(int cbCFHeader, int cbCFFolder, int cbCFData) {
+        if (cbCFHeader < 0 || cbCFHeader > CfHeader.MAX_HEADER_RESERVE) {
+            throw new IllegalArgumentException("cbCFHeader must be between 0 and " + CfHeader.MAX_HEADER_RESERVE);
+        }
+        if (cbCFFolder < 0 || cbCFFolder > 255 || cbCFData < 0 || cbCFData > 255) {
+            throw new IllegalArgumentException("cbCFFolder and cbCFData must be between 0 and 255");
+        }
+        this.headerReserve = cbCFHeader;
+        this.folderReserve = cbCFFolder;
+        this.dataReserve = new byte[cbCFData];
+    }
+
+    /**
+     * Returns whether a seek index is written for every folder.
+     */
+    public boolean isSeekIndex() {
+        return seekIndex;
+    }
+
+    /**
+     * Writes a {@link SeekIndex} for every folder: a table of the positions
+     * of its CFDATA blocks behind the last block, referenced from the
+     * folder's reserved area. {@link de.morihofi.cab4j.CabReader} then finds
+     * the block holding a file with one read and a binary search instead of
+     * walking all CFDATA headers in front of it. Costs 8 bytes per block and
+     * folder; other readers skip the reserved area and never reach the table.
+     * Disabled by default.
+     */
+    public void setSeekIndex(boolean seekIndex) {
+        this.seekIndex = seekIndex;
+    }
+
+    /**
+     * Returns the executor used to compress CFDATA blocks, or {@code null} if
+     * blocks are compressed on the calling thread.
+     */
+    public Executor getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    /**
+     * Sets the executor used to compress CFDATA blocks in parallel. Chunks are
+     * still read in order on the calling thread and the compressed blocks are
+     * written in their original order, so the generated cabinet is byte for
+     * byte identical to the sequential output. Pass {@code null} to compress
+     * on the calling thread (the default). LZX and Quantum are always
+     * compressed on the calling thread because every block continues the
+     * stream of the preceding one.
+     *
+     * @param compressionExecutor executor such as {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     */
+    public void setCompressionExecutor(Executor compressionExecutor) {
+        this.compressionExecutor = compressionExecutor;
+    }
+
+    /**
+     * Returns the maximum number of CFDATA blocks that may be queued on the
+     * compression executor at the same time.
+     */
+    public int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    /**
+     * Limits the number of blocks handed to the compression executor before
+     * the generator waits for the oldest one. This bounds the amount of raw
+     * data read ahead of the writer.
+     *
+     * @param maxBlocksInFlight maximum number of queued blocks, at least 1
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        if (maxBlocksInFlight < 1) {
+            throw new IllegalArgumentException("maxBlocksInFlight must be at least 1");
+        }
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /**
+     * Returns the factory creating the {@link BlockStore} used for targets
+     * that cannot seek.
+     */
+    public Supplier<BlockStore> getBlockStoreFactory() {
+        return blockStoreFactory;
+    }
+
+    /**
+     * Sets the factory creating the {@link BlockStore} that buffers CFDATA
+     * blocks while writing to a channel that cannot seek. A new store is
+     * created for every cabinet and closed once the cabinet is written. Use
+     * {@code SpillingBlockStore::new} to move large cabinets to a temporary
+     * file instead of keeping them on the heap.
+     *
+     * @param blockStoreFactory factory for block stores
+     */
+    public void setBlockStoreFactory(Supplier<BlockStore> blockStoreFactory) {
+        this.blockStoreFactory = Objects.requireNonNull(blockStoreFactory, "blockStoreFactory");
+    }
+
+    /**
+     * Returns the number of CFDATA records written per gathering write.
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * Sets how many CFDATA records, each a header and a payload buffer, are
+     * handed to a single {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}
+     * call. This applies to a {@link SeekableByteChannel} as the blocks are
+     * compressed, and to targets that cannot seek, such as a socket, when the
+     * {@link BlockStore} is copied to them behind the header. Larger batches
+     * save system calls but keep more compressed blocks in memory. Targets
+     * that cannot gather are written block by block, and blocks a
+     * {@link SpillingBlockStore} moved to disk are copied with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     *
+     * @param writeBatchSize records per write, at least 1
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        if (writeBatchSize < 1) {
+            throw new IllegalArgumentException("writeBatchSize must be at least 1");
+        }
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Returns the policy assigning files to folders.
+     */
+    public FolderPlanner getFolderPlanner() {
+        return folderPlanner;
+    }
+
+    /**
+     * Sets the policy assigning files to folders. By default the folder given
+     * to {@link CabArchive#addFile} is used. Splitting the data into several
+     * folders costs some compression ratio but allows
+     * {@link de.morihofi.cab4j.CabReader} to extract folders in parallel and
+     * to reach a file without decoding all data in front of it.
+     *
+     * @param folderPlanner planner such as {@link FolderPlanner#maxFolderSize(long)}
+     */
+    public void setFolderPlanner(FolderPlanner folderPlanner) {
+        this.folderPlanner = Objects.requireNonNull(folderPlanner, "folderPlanner");
+    }
+
     /**
      * Starts a new cabinet set by resetting the set ID and cabinet index.
      */
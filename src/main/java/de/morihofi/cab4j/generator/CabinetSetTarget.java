@@ -0,0 +1,59 @@
+package de.morihofi.cab4j.generator;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * Receives the cabinets of a set written by
+ * {@link CabGenerator#writeCabinetSet(long, CabinetSetTarget)}. Every cabinet
+ * names its neighbours in its header, so the names have to be known before
+ * the cabinets are written.
+ */
+public interface CabinetSetTarget {
+
+    /**
+     * Returns the file name of the cabinet with the given index, as stored in
+     * the szCabinetPrev and szCabinetNext fields of its neighbours.
+     *
+     * @param index position of the cabinet in the set, starting at 0
+     */
+    String getName(int index);
+
+    /**
+     * Opens the channel receiving a cabinet. Cabinets are opened one after
+     * the other, once their content is complete, and the generator closes
+     * each channel before opening the next one.
+     *
+     * @param index position of the cabinet in the set, starting at 0
+     */
+    WritableByteChannel open(int index) throws IOException;
+
+    /**
+     * Writes the cabinets as files into a directory, replacing existing
+     * files.
+     *
+     * @param directory existing directory receiving the cabinets
+     * @param names     file name of each cabinet, e.g. {@code i -> "disk" + (i + 1) + ".cab"}
+     */
+    static CabinetSetTarget directory(Path directory, IntFunction<String> names) {
+        Objects.requireNonNull(directory, "directory");
+        Objects.requireNonNull(names, "names");
+        return new CabinetSetTarget() {
+            @Override
+            public String getName(int index) {
+                return names.apply(index);
+            }
+
+            @Override
+            public WritableByteChannel open(int index) throws IOException {
+                return FileChannel.open(directory.resolve(getName(index)), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+        };
+    }
+}
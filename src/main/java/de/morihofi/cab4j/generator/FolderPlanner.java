@@ -0,0 +1,138 @@
+package de.morihofi.cab4j.generator;
+
+import de.morihofi.cab4j.archive.CabArchive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which CFFOLDER each file of a cabinet is stored in. Every folder is
+ * a separate compression stream: one large folder compresses best, while many
+ * smaller folders can be extracted in parallel and let a reader reach a file
+ * without decoding everything in front of it.
+ * <p>
+ * {@link CabGenerator} writes the folders in index order and the files of a
+ * folder in archive order.
+ */
+public interface FolderPlanner {
+
+    /**
+     * Assigns a folder to each file.
+     *
+     * @param files the files of the cabinet in archive order
+     * @return the folder index of each file, in the iteration order of
+     * {@code files}; indexes start at 0 and must stay below
+     * {@code 0xFFFD}
+     */
+    int[] plan(Map<String, CabArchive.FileEntry> files);
+
+    /**
+     * Uses the folder given for each file when it was added to the archive.
+     * This is the default.
+     */
+    static FolderPlanner explicit() {
+        return files -> {
+            int[] result = new int[files.size()];
+            int i = 0;
+            for (CabArchive.FileEntry fe : files.values()) {
+                result[i++] = Short.toUnsignedInt(fe.folder);
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Fills folders in archive order and starts a new one before a file that
+     * would push the current folder beyond {@code maxFolderSize} uncompressed
+     * bytes. A single file larger than the limit gets a folder of its own.
+     *
+     * @param maxFolderSize uncompressed bytes per folder, at least 1
+     */
+    static FolderPlanner maxFolderSize(long maxFolderSize) {
+        if (maxFolderSize < 1) {
+            throw new IllegalArgumentException("maxFolderSize must be at least 1");
+        }
+        return files -> {
+            int[] result = new int[files.size()];
+            int folder = 0;
+            long used = 0;
+            int i = 0;
+            for (CabArchive.FileEntry fe : files.values()) {
+                if (used > 0 && used + fe.size > maxFolderSize) {
+                    folder++;
+                    used = 0;
+                }
+                used += fe.size;
+                result[i++] = folder;
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Puts files with the same extension, ignoring case, into the same
+     * folder so that similar data shares a compression stream. Folders are
+     * numbered in the order their extension first appears.
+     */
+    static FolderPlanner byExtension() {
+        return files -> {
+            int[] result = new int[files.size()];
+            Map<String, Integer> folders = new HashMap<>();
+            int i = 0;
+            for (String name : files.keySet()) {
+                int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+                int dot = name.lastIndexOf('.');
+                String extension = dot > slash ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+                Integer folder = folders.get(extension);
+                if (folder == null) {
+                    folder = folders.size();
+                    folders.put(extension, folder);
+                }
+                result[i++] = folder;
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Spreads the files over {@code folderCount} folders of similar
+     * uncompressed size, so that extracting the folders in parallel keeps as
+     * many threads busy. Files are placed largest first, each into the folder
+     * holding the fewest bytes so far.
+     *
+     * @param folderCount number of folders, typically the number of threads
+     *                    extracting the cabinet, at least 1
+     */
+    static FolderPlanner balanced(int folderCount) {
+        if (folderCount < 1) {
+            throw new IllegalArgumentException("folderCount must be at least 1");
+        }
+        return files -> {
+            List<CabArchive.FileEntry> entries = new ArrayList<>(files.values());
+            Integer[] order = new Integer[entries.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(entries.get(b).size, entries.get(a).size));
+
+            int folders = Math.max(1, Math.min(folderCount, entries.size()));
+            long[] load = new long[folders];
+            int[] result = new int[entries.size()];
+            for (int index : order) {
+                int lightest = 0;
+                for (int f = 1; f < folders; f++) {
+                    if (load[f] < load[lightest]) {
+                        lightest = f;
+                    }
+                }
+                load[lightest] += entries.get(index).size;
+                result[index] = lightest;
+            }
+            return result;
+        };
+    }
+}
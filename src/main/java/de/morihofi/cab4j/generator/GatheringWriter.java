@@ -0,0 +1,72 @@
+package de.morihofi.cab4j.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Collects buffers and writes them with one {@link GatheringByteChannel#write(ByteBuffer[], int, int)}
+ * call per batch, so that the header and payload of many CFDATA records reach
+ * a file or socket with few system calls. Targets that cannot gather are
+ * written buffer by buffer. The buffers are referenced until the next
+ * {@link #flush()}, so their content must not change before.
+ */
+final class GatheringWriter {
+
+    /** Buffers per gathering write used when nothing else is configured. */
+    static final int DEFAULT_BATCH_BUFFERS = 128;
+
+    private final WritableByteChannel out;
+    private final GatheringByteChannel gathering;
+    private final ByteBuffer[] batch;
+    private int count;
+
+    /**
+     * @param out        target channel
+     * @param maxBuffers number of buffers per gathering write, at least 1
+     */
+    GatheringWriter(WritableByteChannel out, int maxBuffers) {
+        this.out = out;
+        this.gathering = out instanceof GatheringByteChannel ? (GatheringByteChannel) out : null;
+        this.batch = gathering == null ? null : new ByteBuffer[maxBuffers];
+    }
+
+    /**
+     * Queues the remaining bytes of a buffer, writing the batch once it is
+     * full.
+     */
+    void add(ByteBuffer buf) throws IOException {
+        if (gathering == null) {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            return;
+        }
+        batch[count++] = buf;
+        if (count == batch.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all queued buffers.
+     */
+    void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int first = 0;
+        while (first < count) {
+            if (batch[first].hasRemaining()) {
+                gathering.write(batch, first, count - first);
+            }
+            while (first < count && !batch[first].hasRemaining()) {
+                first++;
+            }
+        }
+        Arrays.fill(batch, 0, count, null);
+        count = 0;
+    }
+}
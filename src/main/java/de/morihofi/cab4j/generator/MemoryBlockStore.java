@@ -0,0 +1,43 @@
+package de.morihofi.cab4j.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BlockStore} keeping all blocks on the heap. The appended buffers are
+ * referenced, not copied. This is the default store of {@link CabGenerator}.
+ */
+public class MemoryBlockStore implements BlockStore {
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private long size = 0;
+
+    @Override
+    public void append(ByteBuffer src) {
+        size += src.remaining();
+        buffers.add(src.slice());
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target, int maxBuffers) throws IOException {
+        GatheringWriter writer = new GatheringWriter(target, maxBuffers);
+        for (ByteBuffer b : buffers) {
+            writer.add(b.duplicate());
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() {
+        buffers.clear();
+        size = 0;
+    }
+}
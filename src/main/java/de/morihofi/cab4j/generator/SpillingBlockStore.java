@@ -0,0 +1,139 @@
+package de.morihofi.cab4j.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BlockStore} that keeps blocks in memory until a threshold is reached
+ * and then moves everything to a temporary file. The stored data is copied to
+ * the output with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * which lets the operating system avoid user space copies where possible. The
+ * temporary file is deleted when the store is closed.
+ */
+public class SpillingBlockStore implements BlockStore {
+
+    /** Default amount of memory used before spilling to disk (64&nbsp;MiB). */
+    public static final long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+
+    private final long threshold;
+    private final Path tempDir;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private long size = 0;
+    private Path tempFile;
+    private FileChannel file;
+    private boolean spilled = false;
+
+    /**
+     * Creates a store spilling to the default temporary directory after
+     * {@link #DEFAULT_THRESHOLD} bytes.
+     */
+    public SpillingBlockStore() {
+        this(DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * Creates a new store.
+     *
+     * @param threshold number of bytes kept in memory before spilling
+     * @param tempDir   directory for the temporary file or {@code null} for the
+     *                  default temporary directory
+     */
+    public SpillingBlockStore(long threshold, Path tempDir) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.threshold = threshold;
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public void append(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (file == null && size + len > threshold) {
+            spill();
+        }
+        if (file != null) {
+            ByteBuffer dup = src.duplicate();
+            while (dup.hasRemaining()) {
+                file.write(dup);
+            }
+        } else {
+            buffers.add(src.slice());
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        tempFile = tempDir == null
+                ? Files.createTempFile("cab4j", ".blocks")
+                : Files.createTempFile(tempDir, "cab4j", ".blocks");
+        file = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        for (ByteBuffer b : buffers) {
+            while (b.hasRemaining()) {
+                file.write(b);
+            }
+        }
+        buffers.clear();
+        spilled = true;
+    }
+
+    /**
+     * Returns whether the data has been moved to a temporary file.
+     */
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target, int maxBuffers) throws IOException {
+        if (file == null) {
+            GatheringWriter writer = new GatheringWriter(target, maxBuffers);
+            for (ByteBuffer b : buffers) {
+                writer.add(b.duplicate());
+            }
+            writer.flush();
+            return;
+        }
+        long pos = 0;
+        while (pos < size) {
+            long n = file.transferTo(pos, size - pos, target);
+            if (n <= 0) {
+                // some targets accept nothing through transferTo, fall back to a plain copy
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - pos, 64 * 1024));
+                int r = file.read(buf, pos);
+                if (r < 0) {
+                    throw new IOException("Unexpected end of block store");
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    target.write(buf);
+                }
+                n = r;
+            }
+            pos += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffers.clear();
+        if (file != null) {
+            file.close();
+            Files.deleteIfExists(tempFile);
+            file = null;
+        }
+    }
+}
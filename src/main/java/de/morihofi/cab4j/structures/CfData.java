@@ -7,6 +7,7 @@ public class CfData {
     private int csum = 0; //Placeholder
     private short cbData;
     private short cbUncomp;
+    private byte[] abReserve = new byte[0];
 
     public int getCsum() {
         return csum;
@@ -32,21 +33,44 @@ public class CfData {
         this.cbUncomp = cbUncomp;
     }
 
+    public byte[] getAbReserve() {
+        return abReserve;
+    }
+
+    /**
+     * Sets the reserved area of this entry, whose size has to match the
+     * cbCFData field of the cabinet header. The checksum does not cover it.
+     */
+    public void setAbReserve(byte[] abReserve) {
+        this.abReserve = abReserve;
+    }
+
     public int getByteSize(){
-        return 8;
+        return 8 + abReserve.length;
     }
 
     public ByteBuffer build() {
+        ByteBuffer bb = writeTo(ByteBuffer.allocate(getByteSize()));
+        bb.flip(); // Reset position to start, for reading
+        return bb;
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(getByteSize());
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Serializes this structure at the position of {@code dst}, in little
+     * endian order whatever the buffer's order, and advances the position.
+     *
+     * @param dst buffer with at least {@link #getByteSize()} bytes remaining
+     * @return {@code dst}
+     */
+    public ByteBuffer writeTo(ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        ByteBuffer bb = dst.order(ByteOrder.LITTLE_ENDIAN);
 
         bb.putInt(csum); // 4 bytes
         bb.putShort(cbData); // 2 bytes
         bb.putShort(cbUncomp); // 2 bytes
+        bb.put(abReserve); // cbCFData bytes
 
-        bb.flip(); // Reset position to start, for reading
-
-        return bb;
+        return dst.order(order);
     }
 }
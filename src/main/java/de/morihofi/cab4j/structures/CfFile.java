@@ -156,9 +156,21 @@ public class CfFile {
 
 
     public ByteBuffer build() {
+        ByteBuffer bb = writeTo(ByteBuffer.allocate(getByteSize()));
+        bb.flip(); // Reset position to start, for reading
+        return bb;
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(getByteSize());
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Serializes this structure at the position of {@code dst}, in little
+     * endian order whatever the buffer's order, and advances the position.
+     *
+     * @param dst buffer with at least {@link #getByteSize()} bytes remaining
+     * @return {@code dst}
+     */
+    public ByteBuffer writeTo(ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        ByteBuffer bb = dst.order(ByteOrder.LITTLE_ENDIAN);
 
         bb.putInt(cbFile); // 4 bytes
         bb.putInt(uoffFolderStart); // 4 bytes
@@ -169,8 +181,6 @@ public class CfFile {
         bb.put(szName); // variable
         bb.put((byte) 0x0); // NULL termination byte
 
-        bb.flip(); // Reset position to start, for reading
-
-        return bb;
+        return dst.order(order);
     }
 }
@@ -7,8 +7,7 @@ public class CfFolder {
     private int coffCabStart;
     private short cCfData;
     private short typeCompress;
-
-    /* private int abReserve; optional */
+    private byte[] abReserve = new byte[0];
     public enum COMPRESS_TYPE {
         TCOMP_MASK_TYPE(0x000F), // Do not use that in your code, this is not for usage intended.
         TCOMP_TYPE_NONE(0x0000),
@@ -58,7 +57,7 @@ public class CfFolder {
     }
 
     public COMPRESS_TYPE getTypeCompressEnum() {
-        return COMPRESS_TYPE.fromValue(Short.toUnsignedInt(typeCompress));
+        return COMPRESS_TYPE.fromValue(typeCompress & COMPRESS_TYPE.TCOMP_MASK_TYPE.getValue());
     }
 
     public void setTypeCompress(short typeCompress) {
@@ -69,22 +68,45 @@ public class CfFolder {
         this.typeCompress = (short) compressType.getValue();
     }
 
+    public byte[] getAbReserve() {
+        return abReserve;
+    }
+
+    /**
+     * Sets the reserved area of this entry, whose size has to match the
+     * cbCFFolder field of the cabinet header.
+     */
+    public void setAbReserve(byte[] abReserve) {
+        this.abReserve = abReserve;
+    }
+
     public int getByteSize(){
-        return 8;
+        return 8 + abReserve.length;
     }
 
 
     public ByteBuffer build() {
-        ByteBuffer bb = ByteBuffer.allocate(getByteSize());
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer bb = writeTo(ByteBuffer.allocate(getByteSize()));
+        bb.flip(); // Reset position to start, for reading
+        return bb;
+    }
+
+    /**
+     * Serializes this structure at the position of {@code dst}, in little
+     * endian order whatever the buffer's order, and advances the position.
+     *
+     * @param dst buffer with at least {@link #getByteSize()} bytes remaining
+     * @return {@code dst}
+     */
+    public ByteBuffer writeTo(ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        ByteBuffer bb = dst.order(ByteOrder.LITTLE_ENDIAN);
 
         bb.putInt(coffCabStart); // 4 bytes
         bb.putShort(cCfData); // 2 bytes
         bb.putShort(typeCompress); // 2 bytes
-        /* bb.putInt(abReverse) */
-
-        bb.flip(); // Reset position to start, for reading
-        return bb;
+        bb.put(abReserve); // cbCFFolder bytes
 
+        return dst.order(order);
     }
 }
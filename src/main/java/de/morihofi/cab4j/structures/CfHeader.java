@@ -2,6 +2,7 @@ package de.morihofi.cab4j.structures;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 public class CfHeader {
     private static final byte[] SIGNATURE = {0x4d, 0x53, 0x43, 0x46};
@@ -11,12 +12,29 @@ public class CfHeader {
     private static final byte VERSION_MINOR = 3;
     private static final byte VERSION_MAJOR = 1;
 
+    /** The cabinet continues a previous cabinet of its set. */
+    public static final short FLAG_PREV_CABINET = 0x0001;
+    /** The cabinet is continued by a next cabinet of its set. */
+    public static final short FLAG_NEXT_CABINET = 0x0002;
+    /** The header is followed by the sizes of the reserved areas. */
+    public static final short FLAG_RESERVE_PRESENT = 0x0004;
+    /** Largest abReserve area of the header allowed by the specification. */
+    public static final int MAX_HEADER_RESERVE = 60000;
+
     private int cbCabinet = 0;
     private short cFolders = 0;
     private short cFiles = 0;
     private int coffFiles = 0;
     private short setID = 0;
     private short iCabinet = 0;
+    private short flags = 0;
+    private byte[] szCabinetPrev;
+    private byte[] szDiskPrev;
+    private byte[] szCabinetNext;
+    private byte[] szDiskNext;
+    private byte[] abReserve;
+    private int cbCFFolder;
+    private int cbCFData;
 
     public void setCbCabinet(int cbCabinet) {
         this.cbCabinet = cbCabinet;
@@ -66,13 +84,96 @@ public class CfHeader {
         this.iCabinet = iCabinet;
     }
 
+    public short getFlags() {
+        return flags;
+    }
+
+    /**
+     * Links this cabinet to the previous cabinet of its set and sets
+     * {@link #FLAG_PREV_CABINET}.
+     *
+     * @param cabinet file name of the previous cabinet
+     * @param disk    label of the disk holding it, may be empty
+     */
+    public void setCabinetPrev(String cabinet, String disk) {
+        this.szCabinetPrev = cabinet.getBytes(StandardCharsets.UTF_8);
+        this.szDiskPrev = disk.getBytes(StandardCharsets.UTF_8);
+        this.flags |= FLAG_PREV_CABINET;
+    }
+
+    /**
+     * Links this cabinet to the next cabinet of its set and sets
+     * {@link #FLAG_NEXT_CABINET}.
+     *
+     * @param cabinet file name of the next cabinet
+     * @param disk    label of the disk holding it, may be empty
+     */
+    public void setCabinetNext(String cabinet, String disk) {
+        this.szCabinetNext = cabinet.getBytes(StandardCharsets.UTF_8);
+        this.szDiskNext = disk.getBytes(StandardCharsets.UTF_8);
+        this.flags |= FLAG_NEXT_CABINET;
+    }
+
+    /**
+     * Reserves space in the header and behind every CFFOLDER and CFDATA entry
+     * and sets {@link #FLAG_RESERVE_PRESENT}. The sizes apply to all
+     * structures of the cabinet; {@link CfFolder} and {@link CfData} entries
+     * have to carry areas of exactly these sizes.
+     *
+     * @param abReserve  content of the header's reserved area, at most
+     *                   {@link #MAX_HEADER_RESERVE} bytes
+     * @param cbCFFolder size of the reserved area of each CFFOLDER entry, at most 255
+     * @param cbCFData   size of the reserved area of each CFDATA entry, at most 255
+     */
+    public void setReserve(byte[] abReserve, int cbCFFolder, int cbCFData) {
+        if (abReserve.length > MAX_HEADER_RESERVE || cbCFFolder < 0 || cbCFFolder > 255
+                || cbCFData < 0 || cbCFData > 255) {
+            throw new IllegalArgumentException("Reserved area sizes out of range");
+        }
+        this.abReserve = abReserve;
+        this.cbCFFolder = cbCFFolder;
+        this.cbCFData = cbCFData;
+        this.flags |= FLAG_RESERVE_PRESENT;
+    }
+
+    public int getCbCFFolder() {
+        return cbCFFolder;
+    }
+
+    public int getCbCFData() {
+        return cbCFData;
+    }
+
     public int getByteSize() {
-        return SIGNATURE.length + 32;
+        int size = SIGNATURE.length + 32;
+        if ((flags & FLAG_RESERVE_PRESENT) != 0) {
+            size += 4 + abReserve.length;
+        }
+        if ((flags & FLAG_PREV_CABINET) != 0) {
+            size += szCabinetPrev.length + 1 + szDiskPrev.length + 1;
+        }
+        if ((flags & FLAG_NEXT_CABINET) != 0) {
+            size += szCabinetNext.length + 1 + szDiskNext.length + 1;
+        }
+        return size;
     }
 
     public ByteBuffer build() {
-        ByteBuffer bb = ByteBuffer.allocate(getByteSize());
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer bb = writeTo(ByteBuffer.allocate(getByteSize()));
+        bb.flip(); // Reset position to start, for reading
+        return bb;
+    }
+
+    /**
+     * Serializes this structure at the position of {@code dst}, in little
+     * endian order whatever the buffer's order, and advances the position.
+     *
+     * @param dst buffer with at least {@link #getByteSize()} bytes remaining
+     * @return {@code dst}
+     */
+    public ByteBuffer writeTo(ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        ByteBuffer bb = dst.order(ByteOrder.LITTLE_ENDIAN);
 
         bb.put(SIGNATURE);
         bb.putInt(RESERVED_1);
@@ -84,14 +185,29 @@ public class CfHeader {
         bb.put(VERSION_MAJOR);
         bb.putShort(cFolders);
         bb.putShort(cFiles);
-        bb.putShort((short) 0); //Flags -> all zero
+        bb.putShort(flags);
         bb.putShort(setID); // Cabinet set ID
         bb.putShort(iCabinet); //iCabinet is sequential number of this cabinet in a multicabinet set. (zero is first)
-        // cbCFHeader, cbCFFolder, cbCFData, abReserve,
-        // szCabinetPrev, szDiskPrev, szCabinetNext, szDiskNext
-        // are ignored cause flags are 0
+        if ((flags & FLAG_RESERVE_PRESENT) != 0) {
+            bb.putShort((short) abReserve.length);
+            bb.put((byte) cbCFFolder);
+            bb.put((byte) cbCFData);
+            bb.put(abReserve);
+        }
+        if ((flags & FLAG_PREV_CABINET) != 0) {
+            putString(bb, szCabinetPrev);
+            putString(bb, szDiskPrev);
+        }
+        if ((flags & FLAG_NEXT_CABINET) != 0) {
+            putString(bb, szCabinetNext);
+            putString(bb, szDiskNext);
+        }
+
+        return dst.order(order);
+    }
 
-        bb.flip(); // Reset position to start, for reading
-        return bb;
+    private static void putString(ByteBuffer bb, byte[] value) {
+        bb.put(value);
+        bb.put((byte) 0x0); // NULL termination byte
     }
 }
@@ -0,0 +1,88 @@
+package de.morihofi.cab4j.structures;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the seek metadata cab4j can store for each folder. The seek
+ * index is a table behind the last CFDATA block of the cabinet, where signed
+ * cabinets keep their signature as well, so other readers never look at it.
+ * The folder's reserved area points to it and carries flags:
+ * <pre>
+ * CFFOLDER.abReserve: u32 magic 'c4jX', u32 cabinet offset of the table
+ *                     (0xFFFFFFFF if there is none), u32 flags
+ * table:              (cCfData + 1) entries of
+ *                     u32 offset of the CFDATA header relative to coffCabStart,
+ *                     u32 folder offset of the uncompressed block data
+ * </pre>
+ * The last entry marks the end of the folder's data in the cabinet. Folder
+ * offsets count from the start of the folder, also in the cabinets of a set
+ * that continue it. All values are little endian.
+ */
+public final class SeekIndex {
+
+    /** Bytes of the folder's reserved area used by the reference and flags. */
+    public static final int FOLDER_RESERVE_SIZE = 12;
+    /** Size of one table entry. */
+    public static final int ENTRY_SIZE = 8;
+    /**
+     * Every CFDATA block of the folder decodes without the blocks before it,
+     * i.e. MSZIP blocks do not refer to the history of the preceding block.
+     */
+    public static final int FLAG_INDEPENDENT_BLOCKS = 0x0001;
+
+    private static final int MAGIC = 'c' | '4' << 8 | 'j' << 16 | 'X' << 24;
+    private static final int NO_TABLE = -1;
+
+    private SeekIndex() {
+    }
+
+    /**
+     * Writes the reference to a table and the folder flags into the start of
+     * a folder's reserved area.
+     *
+     * @param reserve   the folder's abReserve area, at least
+     *                  {@link #FOLDER_RESERVE_SIZE} bytes
+     * @param coffIndex cabinet offset of the folder's table, or -1 if it has none
+     * @param flags     combination of the {@code FLAG_} constants
+     */
+    public static void writeReference(byte[] reserve, int coffIndex, int flags) {
+        ByteBuffer bb = ByteBuffer.wrap(reserve).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC);
+        bb.putInt(coffIndex < 0 ? NO_TABLE : coffIndex);
+        bb.putInt(flags);
+    }
+
+    /**
+     * Returns the cabinet offset of the table a folder's reserved area refers
+     * to.
+     *
+     * @param reserve the folder's abReserve area
+     * @return the offset, or -1 if the area holds no reference
+     */
+    public static long readReference(byte[] reserve) {
+        if (!hasMagic(reserve)) {
+            return -1;
+        }
+        int coffIndex = ByteBuffer.wrap(reserve).order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+        return coffIndex == NO_TABLE ? -1 : Integer.toUnsignedLong(coffIndex);
+    }
+
+    /**
+     * Returns the flags stored in a folder's reserved area.
+     *
+     * @param reserve the folder's abReserve area
+     * @return the flags, or 0 if the area holds no seek metadata
+     */
+    public static int readFlags(byte[] reserve) {
+        if (!hasMagic(reserve)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(reserve).order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+    }
+
+    private static boolean hasMagic(byte[] reserve) {
+        return reserve.length >= FOLDER_RESERVE_SIZE
+                && ByteBuffer.wrap(reserve).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC;
+    }
+}
@@ -0,0 +1,125 @@
+package de.morihofi.cab4j.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental form of the CAB checksum of {@link ChecksumHelper}. Data may be
+ * fed in slices of any length; up to three bytes of an incomplete word are
+ * carried over to the next slice, so the result equals the checksum of all
+ * slices concatenated, without copying them.
+ * <p>
+ * A CFDATA checksum covers the {@code cbData} and {@code cbUncomp} fields
+ * followed by the payload; {@link #forBlock(int, int)} seeds a checksum with
+ * those two fields.
+ */
+public final class CabChecksum {
+
+    private int csum;
+    private int carry;
+    private int carried;
+
+    /**
+     * Creates an empty checksum.
+     */
+    public CabChecksum() {
+    }
+
+    /**
+     * Creates a checksum seeded with the header fields of a CFDATA block, to
+     * be completed by feeding the block's payload.
+     *
+     * @param cbData   number of payload bytes
+     * @param cbUncomp number of uncompressed bytes
+     */
+    public static CabChecksum forBlock(int cbData, int cbUncomp) {
+        CabChecksum checksum = new CabChecksum();
+        checksum.csum = (cbData & 0xFFFF) | cbUncomp << 16;
+        return checksum;
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer. The buffer's position is not
+     * modified; heap and direct buffers are both supported.
+     *
+     * @param data next slice of data
+     * @return this checksum
+     */
+    public CabChecksum update(ByteBuffer data) {
+        int pos = data.position();
+        int limit = data.limit();
+        while (carried > 0 && pos < limit) {
+            pos = carry(data.get(pos), pos);
+        }
+        int whole = (limit - pos) & ~3;
+        if (whole > 0) {
+            ByteBuffer words = data.duplicate();
+            words.position(pos).limit(pos + whole);
+            csum ^= ChecksumHelper.cabChecksum(words);
+            pos += whole;
+        }
+        while (pos < limit) {
+            pos = carry(data.get(pos), pos);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a range of a byte array.
+     *
+     * @param data array holding the data
+     * @param off  offset of the first byte
+     * @param len  number of bytes
+     * @return this checksum
+     */
+    public CabChecksum update(byte[] data, int off, int len) {
+        int pos = off;
+        int limit = off + len;
+        while (carried > 0 && pos < limit) {
+            pos = carry(data[pos], pos);
+        }
+        int whole = (limit - pos) & ~3;
+        if (whole > 0) {
+            csum ^= ChecksumHelper.cabChecksum(data, pos, whole);
+            pos += whole;
+        }
+        while (pos < limit) {
+            pos = carry(data[pos], pos);
+        }
+        return this;
+    }
+
+    /**
+     * Collects one byte of an incomplete little endian word.
+     */
+    private int carry(byte b, int pos) {
+        carry |= (b & 0xFF) << (carried * 8);
+        if (++carried == 4) {
+            csum ^= carry;
+            carry = 0;
+            carried = 0;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Returns the checksum of all data added so far. The 1&ndash;3 bytes of
+     * a trailing incomplete word enter in reverse order, as the MS-CAB
+     * specification demands. The checksum may be updated further afterwards.
+     */
+    public int getValue() {
+        int word = 0;
+        for (int i = 0; i < carried; i++) {
+            word = word << 8 | (carry >>> (i * 8)) & 0xFF;
+        }
+        return csum ^ word;
+    }
+
+    /**
+     * Clears the checksum so the instance can be reused.
+     */
+    public void reset() {
+        csum = 0;
+        carry = 0;
+        carried = 0;
+    }
+}
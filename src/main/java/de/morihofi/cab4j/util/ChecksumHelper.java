@@ -17,29 +17,85 @@ public class ChecksumHelper {
      * specification. The checksum is computed by XOR-ing all 32&nbsp;bit little
      * endian words of the data. Remaining bytes (1&ndash;3) are appended in
      * reverse order and padded with zeroes.
+     * <p>
+     * Since XOR is associative, the words are folded eight bytes at a time:
+     * the low and high halves of the XOR of all 64&nbsp;bit little endian
+     * words give the XOR of the 32&nbsp;bit words.
      *
-     * @param data data over which the checksum should be calculated
+     * @param data data over which the checksum should be calculated; its
+     *             position, limit and byte order are not modified
      * @return checksum value
      */
     public static int cabChecksum(ByteBuffer data) {
+        if (data.hasArray()) {
+            return cabChecksum(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
         ByteBuffer buf = data.duplicate();
         buf.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = buf.position();
+        int limit = buf.limit();
 
-        int csum = 0;
-        while (buf.remaining() >= 4) {
-            csum ^= buf.getInt();
+        long acc = 0;
+        for (int end = limit - 7; pos < end; pos += 8) {
+            acc ^= buf.getLong(pos);
+        }
+        int csum = (int) acc ^ (int) (acc >>> 32);
+        if (limit - pos >= 4) {
+            csum ^= buf.getInt(pos);
+            pos += 4;
         }
 
-        if (buf.remaining() > 0) {
-            int word = 0;
-            int shift = 0;
-            for (int i = buf.limit() - 1; i >= buf.position(); i--) {
-                word |= (buf.get(i) & 0xFF) << shift;
-                shift += 8;
-            }
-            csum ^= word;
+        int word = 0;
+        for (int i = limit - 1, shift = 0; i >= pos; i--, shift += 8) {
+            word |= (buf.get(i) & 0xFF) << shift;
+        }
+        return csum ^ word;
+    }
+
+    /**
+     * Calculates the checksum stored in a CFDATA header, which covers the
+     * {@code cbData} and {@code cbUncomp} fields followed by the payload. The
+     * two fields form exactly one 32&nbsp;bit word, so they are folded in
+     * directly instead of being copied in front of the payload.
+     *
+     * @param cbData   number of payload bytes
+     * @param cbUncomp number of uncompressed bytes
+     * @param payload  the block's payload; its position is not modified
+     * @return checksum value
+     * @see CabChecksum
+     */
+    public static int cfDataChecksum(int cbData, int cbUncomp, ByteBuffer payload) {
+        return ((cbData & 0xFFFF) | cbUncomp << 16) ^ cabChecksum(payload);
+    }
+
+    /**
+     * Calculates the CAB checksum of a range of a byte array, see
+     * {@link #cabChecksum(ByteBuffer)}.
+     *
+     * @param data array holding the data
+     * @param off  offset of the first byte
+     * @param len  number of bytes
+     * @return checksum value
+     */
+    public static int cabChecksum(byte[] data, int off, int len) {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int pos = off;
+        int limit = off + len;
+
+        long acc = 0;
+        for (int end = limit - 7; pos < end; pos += 8) {
+            acc ^= buf.getLong(pos);
+        }
+        int csum = (int) acc ^ (int) (acc >>> 32);
+        if (limit - pos >= 4) {
+            csum ^= buf.getInt(pos);
+            pos += 4;
         }
 
-        return csum;
+        int word = 0;
+        for (int i = limit - 1, shift = 0; i >= pos; i--, shift += 8) {
+            word |= (data[i] & 0xFF) << shift;
+        }
+        return csum ^ word;
     }
 }
@@ -2,14 +2,17 @@ package de.morihofi.cab4j;
 
 import de.morihofi.cab4j.archive.CabArchive;
 import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfData;
 import de.morihofi.cab4j.structures.CfFile;
 import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.CfHeader;
 import de.morihofi.cab4j.util.ChecksumHelper;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -219,4 +222,41 @@ public class CabAdvancedTest {
         assertEquals(0, pc.files[0].uoffFolderStart);
         assertEquals(pc.files[0].size, pc.files[1].uoffFolderStart);
     }
+
+    @Test
+    public void writeToMatchesBuild() {
+        CfHeader header = new CfHeader();
+        header.setCbCabinet(1234);
+        header.setCFiles((short) 1);
+        header.setSetID((short) 0x4242);
+        CfFolder folder = new CfFolder();
+        folder.setCoffCabStart(0x56);
+        folder.setTypeCompress(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        CfFile file = new CfFile();
+        file.setCbFile(99);
+        file.setSzName("dir/file.txt".getBytes());
+        CfData data = new CfData();
+        data.setCsum(0x12345678);
+        data.setCbData((short) 0x8001);
+
+        // a big endian buffer with data in front must not change the result
+        ByteBuffer dst = ByteBuffer.allocate(200);
+        dst.put((byte) 7);
+        header.writeTo(dst);
+        folder.writeTo(dst);
+        file.writeTo(dst);
+        data.writeTo(dst);
+        assertEquals(ByteOrder.BIG_ENDIAN, dst.order());
+        dst.flip();
+        dst.get();
+
+        for (ByteBuffer built : new ByteBuffer[]{header.build(), folder.build(), file.build(), data.build()}) {
+            byte[] expected = new byte[built.remaining()];
+            built.get(expected);
+            byte[] actual = new byte[expected.length];
+            dst.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(0, dst.remaining());
+    }
 }
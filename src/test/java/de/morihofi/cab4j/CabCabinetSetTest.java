@@ -0,0 +1,278 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.compression.FolderDecompressor;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.generator.CabinetSetTarget;
+import de.morihofi.cab4j.generator.FolderPlanner;
+import de.morihofi.cab4j.structures.CfFile;
+import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.CfHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabCabinetSetTest {
+
+    private static final int FROM_PREV = CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_FROM_PREV.getValue();
+    private static final int TO_NEXT = CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_TO_NEXT.getValue();
+    private static final int PREV_AND_NEXT = CfFile.IFOLDER_CONTINUED.IFOLD_CONTINUED_PREV_AND_NEXT.getValue();
+
+    /**
+     * A parsed cabinet of a set, with the uncompressed data of its folders
+     * decoded by a decompressor carried over from the previous cabinet.
+     */
+    private static final class Volume {
+        int flags;
+        short setId;
+        int iCabinet;
+        String prev;
+        String next;
+        final List<ByteArrayOutputStream> folders = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<Integer> iFolders = new ArrayList<>();
+        final List<int[]> ranges = new ArrayList<>();
+    }
+
+    private static String string(ByteBuffer bb) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte b;
+        while ((b = bb.get()) != 0) {
+            out.write(b);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the cabinets and returns the content of every file, checking
+     * the continuation markers on the way.
+     */
+    private static Map<String, byte[]> readSet(List<ByteBuffer> cabinets, List<Volume> volumes) throws IOException {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        List<ByteArrayOutputStream> merged = new ArrayList<>();
+        FolderDecompressor carried = null;
+        ByteArrayOutputStream carriedData = null;
+        for (ByteBuffer cab : cabinets) {
+            ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            Volume v = new Volume();
+            bb.position(16);
+            int coffFiles = bb.getInt();
+            bb.position(26);
+            int cFolders = Short.toUnsignedInt(bb.getShort());
+            int cFiles = Short.toUnsignedInt(bb.getShort());
+            v.flags = bb.getShort();
+            v.setId = bb.getShort();
+            v.iCabinet = bb.getShort();
+            if ((v.flags & CfHeader.FLAG_PREV_CABINET) != 0) {
+                v.prev = string(bb);
+                string(bb);
+            }
+            if ((v.flags & CfHeader.FLAG_NEXT_CABINET) != 0) {
+                v.next = string(bb);
+                string(bb);
+            }
+            int[] coffCabStart = new int[cFolders];
+            int[] cCfData = new int[cFolders];
+            short[] typeCompress = new short[cFolders];
+            for (int f = 0; f < cFolders; f++) {
+                coffCabStart[f] = bb.getInt();
+                cCfData[f] = Short.toUnsignedInt(bb.getShort());
+                typeCompress[f] = bb.getShort();
+            }
+            assertEquals(coffFiles, bb.position());
+            for (int i = 0; i < cFiles; i++) {
+                int size = bb.getInt();
+                int uoff = bb.getInt();
+                v.iFolders.add(Short.toUnsignedInt(bb.getShort()));
+                bb.position(bb.position() + 6);
+                v.names.add(string(bb));
+                v.ranges.add(new int[]{uoff, size});
+            }
+
+            boolean continues = v.iFolders.contains(FROM_PREV) || v.iFolders.contains(PREV_AND_NEXT);
+            assertEquals(carried != null, continues, "continuation of cabinet " + v.iCabinet);
+            for (int f = 0; f < cFolders; f++) {
+                FolderDecompressor decompressor;
+                ByteArrayOutputStream data;
+                if (f == 0 && carried != null) {
+                    decompressor = carried;
+                    data = carriedData;
+                } else {
+                    decompressor = FolderDecompressor.create(typeCompress[f]);
+                    data = new ByteArrayOutputStream();
+                    merged.add(data);
+                }
+                bb.position(coffCabStart[f]);
+                byte[] out = new byte[0x10000];
+                for (int b = 0; b < cCfData[f]; b++) {
+                    bb.getInt();
+                    int cbData = Short.toUnsignedInt(bb.getShort());
+                    int cbUncomp = Short.toUnsignedInt(bb.getShort());
+                    ByteBuffer payload = bb.slice();
+                    payload.limit(cbData);
+                    int n = decompressor.decompress(payload, out, 0, cbUncomp);
+                    data.write(out, 0, n);
+                    bb.position(bb.position() + cbData);
+                }
+                v.folders.add(data);
+                carried = decompressor;
+                carriedData = data;
+            }
+            if (!v.iFolders.contains(TO_NEXT) && !v.iFolders.contains(PREV_AND_NEXT)) {
+                carried = null;
+            }
+            assertEquals(bb.limit(), bb.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(8));
+            volumes.add(v);
+        }
+
+        for (Volume v : volumes) {
+            for (int i = 0; i < v.names.size(); i++) {
+                int iFolder = v.iFolders.get(i);
+                ByteArrayOutputStream data;
+                if (iFolder == FROM_PREV || iFolder == PREV_AND_NEXT) {
+                    data = v.folders.get(0);
+                } else if (iFolder == TO_NEXT) {
+                    data = v.folders.get(v.folders.size() - 1);
+                } else {
+                    data = v.folders.get(iFolder);
+                }
+                int[] range = v.ranges.get(i);
+                byte[] all = data.toByteArray();
+                byte[] content = new byte[range[1]];
+                System.arraycopy(all, range[0], content, 0, range[1]);
+                byte[] previous = result.put(v.names.get(i), content);
+                if (previous != null) {
+                    assertArrayEquals(previous, content, v.names.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, byte[]> files() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        Random random = new Random(11);
+        int[] sizes = {100_000, 30_000, 0, 250_000, 5, 70_000};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            if (i % 2 == 0) {
+                random.nextBytes(data);
+            } else {
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) ("setup " + i).charAt(j % 7);
+                }
+            }
+            files.put("file" + i + ".bin", data);
+        }
+        return files;
+    }
+
+    private static CabGenerator generator(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabArchive archive = new CabArchive();
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            archive.addFile(e.getKey(), e.getValue());
+        }
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(type);
+        return generator;
+    }
+
+    @Test
+    public void foldersContinueAcrossCabinets() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP,
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            Map<String, byte[]> files = files();
+            CabGenerator generator = generator(files, type);
+            generator.setFolderPlanner(FolderPlanner.maxFolderSize(200_000));
+            List<ByteBuffer> cabinets = generator.createCabinetSet(100_000, i -> "disk" + (i + 1) + ".cab");
+            assertTrue(cabinets.size() > 1, type + " " + cabinets.size());
+
+            List<Volume> volumes = new ArrayList<>();
+            Map<String, byte[]> extracted = readSet(cabinets, volumes);
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), extracted.get(e.getKey()), type + " " + e.getKey());
+            }
+            for (int i = 0; i < volumes.size(); i++) {
+                Volume v = volumes.get(i);
+                assertTrue(cabinets.get(i).remaining() <= 100_000, type + " " + cabinets.get(i).remaining());
+                assertEquals(volumes.get(0).setId, v.setId);
+                assertEquals(i, v.iCabinet);
+                assertEquals(i == 0 ? null : "disk" + i + ".cab", v.prev);
+                assertEquals(i == volumes.size() - 1 ? null : "disk" + (i + 2) + ".cab", v.next);
+            }
+        }
+    }
+
+    @Test
+    public void splitBetweenFilesStillContinuesTheFolder() throws IOException {
+        // every split falls on a block boundary that is also a file boundary
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 6; i++) {
+            byte[] data = new byte[0xFFFF];
+            new Random(i).nextBytes(data);
+            files.put("block" + i + ".bin", data);
+        }
+        CabGenerator generator = generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        List<ByteBuffer> cabinets = generator.createCabinetSet(0xFFFF * 2 + 200);
+        assertEquals(3, cabinets.size());
+
+        List<Volume> volumes = new ArrayList<>();
+        Map<String, byte[]> extracted = readSet(cabinets, volumes);
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), extracted.get(e.getKey()), e.getKey());
+        }
+        assertEquals(TO_NEXT, (int) volumes.get(0).iFolders.get(1));
+        assertEquals(FROM_PREV, (int) volumes.get(1).iFolders.get(0));
+        assertEquals("1.cab", volumes.get(1).prev);
+    }
+
+    @Test
+    public void writesEachCabinetToItsOwnFile(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        CabGenerator generator = generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        int count = generator.writeCabinetSet(150_000,
+                CabinetSetTarget.directory(dir, i -> "part" + (i + 1) + ".cab"));
+
+        List<ByteBuffer> cabinets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cabinets.add(ByteBuffer.wrap(Files.readAllBytes(dir.resolve("part" + (i + 1) + ".cab"))));
+        }
+        Map<String, byte[]> extracted = readSet(cabinets, new ArrayList<>());
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), extracted.get(e.getKey()), e.getKey());
+        }
+    }
+
+    @Test
+    public void singleCabinetHasNoLinks() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("hello.c", TestData.HELLO_C);
+        List<ByteBuffer> cabinets = generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP)
+                .createCabinetSet(1_000_000);
+        assertEquals(1, cabinets.size());
+        assertArrayEquals(TestData.HELLO_C, TestData.toArray(CabExtractor.extract(cabinets.get(0)).get("hello.c")));
+    }
+
+    @Test
+    public void rejectsTooSmallCabinets() {
+        CabGenerator generator = generator(files(), CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        assertThrows(IOException.class, () -> generator.createCabinetSet(10_000));
+        assertThrows(IllegalArgumentException.class, () -> generator.createCabinetSet(20));
+    }
+}
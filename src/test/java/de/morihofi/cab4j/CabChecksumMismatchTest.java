@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class CabChecksumMismatchTest {
@@ -51,4 +52,18 @@ public class CabChecksumMismatchTest {
 
         assertThrows(IllegalStateException.class, () -> CabExtractor.extract(corrupt));
     }
+
+    @Test
+    public void zeroChecksumIsNotVerified() throws IOException {
+        CabArchive archive = new CabArchive();
+        archive.addFile("hello.c", ByteBuffer.wrap(TestData.HELLO_C));
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setEnableChecksum(false);
+
+        ByteBuffer buf = generator.createCabinet();
+        assertArrayEquals(TestData.HELLO_C, TestData.toArray(CabExtractor.extract(buf).get("hello.c")));
+        try (CabReader reader = CabReader.open(buf)) {
+            assertArrayEquals(TestData.HELLO_C, TestData.toArray(reader.read("hello.c")));
+        }
+    }
 }
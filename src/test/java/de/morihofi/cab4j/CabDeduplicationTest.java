@@ -0,0 +1,178 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabDeduplicationTest {
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static Map<String, byte[]> files() {
+        byte[] dll = randomBytes(100_000, 1);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("x86/driver.dll", dll);
+        files.put("x86/driver.inf", TestData.HELLO_C);
+        files.put("amd64/driver.dll", dll);
+        files.put("other.bin", randomBytes(100_000, 2));
+        files.put("arm64/driver.dll", dll);
+        files.put("amd64/driver.inf", TestData.HELLO_C);
+        return files;
+    }
+
+    private static CabGenerator generator(Map<String, byte[]> files, boolean deduplicate) {
+        CabArchive archive = new CabArchive();
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            archive.addFile(e.getKey(), e.getValue());
+        }
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        generator.setDeduplicate(deduplicate);
+        return generator;
+    }
+
+    @Test
+    public void duplicatesShareTheirFolderRange() throws IOException {
+        Map<String, byte[]> files = files();
+        ByteBuffer plain = generator(files, false).createCabinet();
+        ByteBuffer deduplicated = generator(files, true).createCabinet();
+        assertTrue(deduplicated.remaining() < plain.remaining() - 150_000,
+                deduplicated.remaining() + " vs " + plain.remaining());
+
+        try (CabReader reader = CabReader.open(deduplicated)) {
+            CabReader.Entry first = reader.getEntry("x86/driver.dll");
+            for (String copy : new String[]{"amd64/driver.dll", "arm64/driver.dll"}) {
+                assertEquals(first.getFolderOffset(), reader.getEntry(copy).getFolderOffset());
+                assertEquals(first.getFolder(), reader.getEntry(copy).getFolder());
+            }
+            assertEquals(reader.getEntry("x86/driver.inf").getFolderOffset(),
+                    reader.getEntry("amd64/driver.inf").getFolderOffset());
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(deduplicated);
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey())), e.getKey());
+        }
+    }
+
+    @Test
+    public void extractsCopiesToDirectory(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        Path cab = dir.resolve("dedup.cab");
+        Files.write(cab, TestData.toArray(generator(files, true).createCabinet()));
+
+        Path streamed = dir.resolve("streamed");
+        try (FileChannel in = FileChannel.open(cab)) {
+            CabExtractor.extractToDirectory(in, streamed);
+        }
+        Path random = dir.resolve("random");
+        try (CabReader reader = CabReader.open(cab)) {
+            reader.extractToDirectory(random);
+        }
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), Files.readAllBytes(streamed.resolve(e.getKey())), e.getKey());
+            assertArrayEquals(e.getValue(), Files.readAllBytes(random.resolve(e.getKey())), e.getKey());
+        }
+    }
+
+    @Test
+    public void entryStreamDecodesLzxFolderOnce() throws IOException {
+        Map<String, byte[]> files = files();
+        CabGenerator generator = generator(files, true);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX);
+        ByteBuffer cab = generator.createCabinet();
+        int coffCabStart = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(36);
+
+        try (CabReader reader = CabReader.open(cab)) {
+            CabReader.EntryStream entries = reader.entryStream();
+            CabReader.Entry entry;
+            int read = 0;
+            while ((entry = entries.getNextEntry()) != null) {
+                byte[] expected = files.get(entry.getName());
+                if (entry.getName().equals("x86/driver.dll")) {
+                    // leave most of the file unread; its copies still get all of it
+                    ByteBuffer head = ByteBuffer.allocate(10);
+                    entries.channel().read(head);
+                    assertArrayEquals(Arrays.copyOf(expected, 10), head.array());
+                } else {
+                    ByteBuffer data = ByteBuffer.allocate(entry.getSize());
+                    while (data.hasRemaining() && entries.channel().read(data) >= 0) {
+                        // fill the buffer
+                    }
+                    assertArrayEquals(expected, data.array(), entry.getName());
+                }
+                if (entry.getName().equals("x86/driver.inf")) {
+                    // decoding the folder from the start again would now fail
+                    cab.put(coffCabStart + 8 + 10, (byte) (cab.get(coffCabStart + 8 + 10) ^ 0x55));
+                }
+                read++;
+            }
+            assertEquals(files.size(), read);
+        }
+    }
+
+    @Test
+    public void filesOnDiskAreDeduplicated(@TempDir Path dir) throws IOException {
+        byte[] data = randomBytes(70_000, 3);
+        Path src = Files.createDirectories(dir.resolve("src"));
+        Files.write(src.resolve("a.bin"), data);
+        Files.write(src.resolve("b.bin"), data);
+        Files.write(src.resolve("c.bin"), randomBytes(70_000, 4));
+
+        CabArchive archive = new CabArchive();
+        archive.addDirectory(src);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setDeduplicate(true);
+        try (CabReader reader = CabReader.open(generator.createCabinet())) {
+            assertEquals(reader.getEntry("a.bin").getFolderOffset(), reader.getEntry("b.bin").getFolderOffset());
+            assertNotEquals(reader.getEntry("a.bin").getFolderOffset(), reader.getEntry("c.bin").getFolderOffset());
+            assertArrayEquals(data, TestData.toArray(reader.read("b.bin")));
+        }
+    }
+
+    @Test
+    public void streamsAreNotDeduplicated() throws IOException {
+        byte[] data = randomBytes(10_000, 5);
+        CabArchive archive = new CabArchive();
+        archive.addFile("a.bin", data);
+        archive.addFile("b.bin", new ByteArrayInputStream(data), data.length, (short) 0, (short) 0,
+                LocalDateTime.now());
+        archive.addFile("c.bin", () -> Channels.newChannel(new ByteArrayInputStream(data)), data.length,
+                (short) 0, (short) 0, LocalDateTime.now());
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setDeduplicate(true);
+        try (CabReader reader = CabReader.open(generator.createCabinet())) {
+            assertEquals(0, reader.getEntry("a.bin").getFolderOffset());
+            assertEquals(data.length, reader.getEntry("b.bin").getFolderOffset());
+            assertEquals(0, reader.getEntry("c.bin").getFolderOffset());
+            for (String name : new String[]{"a.bin", "b.bin", "c.bin"}) {
+                assertArrayEquals(data, TestData.toArray(reader.read(name)), name);
+            }
+        }
+    }
+}
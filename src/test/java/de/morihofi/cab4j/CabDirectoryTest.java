@@ -6,14 +6,21 @@ import de.morihofi.cab4j.archive.CabArchive;
 import de.morihofi.cab4j.generator.CabGenerator;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -43,6 +50,80 @@ public class CabDirectoryTest {
         }
     }
 
+    @Test
+    public void symbolicLinksToFilesAreFollowed() throws Exception {
+        try (FileSystem fs = Jimfs.newFileSystem(Configuration.unix())) {
+            Path temp = Files.createDirectory(fs.getPath("cabdir"));
+            Path outside = Files.createDirectory(fs.getPath("outside"));
+            Files.write(outside.resolve("welcome.c"), TestData.WELCOME_C);
+            Files.write(temp.resolve("hello.c"), TestData.HELLO_C);
+            Files.createSymbolicLink(temp.resolve("link.c"), outside.resolve("welcome.c").toAbsolutePath());
+            Files.createSymbolicLink(temp.resolve("dangling.c"), outside.resolve("missing.c").toAbsolutePath());
+
+            CabArchive archive = new CabArchive();
+            archive.addDirectory(temp);
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(new CabGenerator(archive).createCabinet());
+            assertEquals(2, extracted.size());
+            assertArrayEquals(TestData.HELLO_C, TestData.toArray(extracted.get("hello.c")));
+            assertArrayEquals(TestData.WELCOME_C, TestData.toArray(extracted.get("link.c")));
+        }
+    }
+
+    @Test
+    public void filesAreOpenedWhenGenerating() throws Exception {
+        try (FileSystem fs = Jimfs.newFileSystem(Configuration.unix())) {
+            Path temp = Files.createDirectory(fs.getPath("cabdir"));
+            Path file = temp.resolve("data.txt");
+            Files.write(file, "before".getBytes(StandardCharsets.US_ASCII));
+
+            CabArchive archive = new CabArchive();
+            archive.addDirectory(temp);
+            // the content is read when the cabinet is generated, not when the file is added
+            Files.write(file, "after!".getBytes(StandardCharsets.US_ASCII));
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(new CabGenerator(archive).createCabinet());
+            assertArrayEquals("after!".getBytes(StandardCharsets.US_ASCII),
+                    TestData.toArray(extracted.get("data.txt")));
+        }
+    }
+
+    @Test
+    public void dataSourcesAreClosedBeforeTheNextIsOpened() throws Exception {
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+        CabArchive archive = new CabArchive();
+        for (int i = 0; i < 50; i++) {
+            byte[] data = ("file " + i).getBytes(StandardCharsets.US_ASCII);
+            archive.addFile("f" + i + ".txt", () -> {
+                maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+                ReadableByteChannel ch = Channels.newChannel(new ByteArrayInputStream(data));
+                return new ReadableByteChannel() {
+                    @Override
+                    public int read(ByteBuffer dst) throws IOException {
+                        return ch.read(dst);
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return ch.isOpen();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        open.decrementAndGet();
+                        ch.close();
+                    }
+                };
+            }, data.length, (short) 0, (short) 0, LocalDateTime.now());
+        }
+        assertEquals(0, maxOpen.get());
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(new CabGenerator(archive).createCabinet());
+        assertEquals(50, extracted.size());
+        assertArrayEquals("file 7".getBytes(StandardCharsets.US_ASCII), TestData.toArray(extracted.get("f7.txt")));
+        assertEquals(0, open.get());
+        assertEquals(1, maxOpen.get());
+    }
+
     @Test
     public void missingDirectoryThrowsIOException() throws Exception {
         Path temp = Files.createTempDirectory("cabdir");
@@ -131,4 +131,21 @@ public class CabExtractorTest {
         assertArrayEquals(helloArr, extractedHello);
         assertArrayEquals(welcomeArr, extractedWelcome);
     }
+
+    @Test
+    public void extractReferenceCabinet() throws Exception {
+        // sample cabinet from the MS-CAB specification, both files share one CFDATA block
+        ByteBuffer cab = ByteBuffer.wrap(Files.readAllBytes(Paths.get("test/test.cab")));
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+
+        // the sources inside the sample cabinet use CRLF line endings
+        assertArrayEquals(crlf(Paths.get("test/hello.c")), TestData.toArray(extracted.get("hello.c")));
+        assertArrayEquals(crlf(Paths.get("test/welcome.c")), TestData.toArray(extracted.get("welcome.c")));
+    }
+
+    private static byte[] crlf(java.nio.file.Path path) throws Exception {
+        String text = new String(Files.readAllBytes(path), java.nio.charset.StandardCharsets.US_ASCII);
+        return text.replace("\n", "\r\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    }
 }
@@ -0,0 +1,101 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.generator.FolderPlanner;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabFolderPlannerTest {
+
+    private static final int[] SIZES = {50_000, 10_000, 70_000, 20_000, 30_000, 5_000};
+    private static final String[] NAMES = {"a.dll", "a.inf", "b.dll", "b.inf", "c.DLL", "readme"};
+
+    private static Map<String, byte[]> files() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < SIZES.length; i++) {
+            byte[] data = new byte[SIZES[i]];
+            random.nextBytes(data);
+            files.put(NAMES[i], data);
+        }
+        return files;
+    }
+
+    private static CabArchive archive(Map<String, byte[]> files) {
+        CabArchive archive = new CabArchive();
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            archive.addFile(e.getKey(), ByteBuffer.wrap(e.getValue()), (short) 0, (short) 0);
+        }
+        return archive;
+    }
+
+    private static int[] folders(CabReader reader) {
+        int[] result = new int[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            result[i] = reader.getEntry(NAMES[i]).getFolder();
+        }
+        return result;
+    }
+
+    private static CabReader build(Map<String, byte[]> files, FolderPlanner planner) throws IOException {
+        CabGenerator generator = new CabGenerator(archive(files));
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        if (planner != null) {
+            generator.setFolderPlanner(planner);
+        }
+        CabReader reader = CabReader.open(generator.createCabinet());
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+        }
+        return reader;
+    }
+
+    @Test
+    public void explicitByDefault() throws IOException {
+        try (CabReader reader = build(files(), null)) {
+            assertEquals(1, reader.getFolderCount());
+        }
+    }
+
+    @Test
+    public void maxFolderSizeStartsNewFolders() throws IOException {
+        try (CabReader reader = build(files(), FolderPlanner.maxFolderSize(60_000))) {
+            assertEquals(3, reader.getFolderCount());
+            assertArrayEquals(new int[]{0, 0, 1, 2, 2, 2}, folders(reader));
+        }
+    }
+
+    @Test
+    public void byExtensionGroupsFiles() throws IOException {
+        try (CabReader reader = build(files(), FolderPlanner.byExtension())) {
+            assertEquals(3, reader.getFolderCount());
+            assertArrayEquals(new int[]{0, 1, 0, 1, 0, 2}, folders(reader));
+            // CFFILE entries are grouped by folder
+            assertEquals(Arrays.asList("a.dll", "b.dll", "c.DLL", "a.inf", "b.inf", "readme"),
+                    Arrays.asList(reader.getEntries().stream().map(CabReader.Entry::getName).toArray()));
+        }
+    }
+
+    @Test
+    public void balancedSpreadsBytes() throws IOException {
+        try (CabReader reader = build(files(), FolderPlanner.balanced(3))) {
+            assertEquals(3, reader.getFolderCount());
+            long[] load = new long[3];
+            for (CabReader.Entry entry : reader.getEntries()) {
+                load[entry.getFolder()] += entry.getSize();
+            }
+            // 70000 | 50000 + 10000 | 30000 + 20000 + 5000
+            assertArrayEquals(new long[]{70_000, 60_000, 55_000}, load);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.SeekIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabIndependentBlocksTest {
+
+    private static Map<String, byte[]> files() {
+        Map<String, byte[]> files = TestData.files(24, 1_500_000, 0, 700_000, 3_000_000, 17);
+        files.put("copy/file3.bin", files.get("dir/file3.bin"));
+        return files;
+    }
+
+    private static CabGenerator independent(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabGenerator generator = TestData.generator(files, type);
+        generator.setDeduplicate(true);
+        generator.setIndependentBlocks(true);
+        return generator;
+    }
+
+    @Test
+    public void foldersDeclareIndependentBlocks() throws IOException {
+        Map<String, byte[]> files = files();
+        CabGenerator generator = independent(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        generator.setMszipHistory(true);
+        ByteBuffer cab = generator.createCabinet();
+        byte[] reserve = TestData.folderReserve(cab);
+        assertEquals(SeekIndex.FLAG_INDEPENDENT_BLOCKS, SeekIndex.readFlags(reserve));
+        assertEquals(-1, SeekIndex.readReference(reserve));
+
+        try (CabReader reader = CabReader.open(cab)) {
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey())), e.getKey());
+        }
+
+        ByteBuffer lzx = independent(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX).createCabinet();
+        assertEquals(0, SeekIndex.readFlags(TestData.folderReserve(lzx)));
+    }
+
+    @Test
+    public void readsStartAtTheBlockHoldingTheFile() throws IOException {
+        Map<String, byte[]> files = files();
+        CabGenerator flagged = independent(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        flagged.setSeekIndex(true);
+        CabGenerator plain = independent(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        plain.setIndependentBlocks(false);
+
+        ByteBuffer[] cabs = {flagged.createCabinet(), plain.createCabinet()};
+        for (ByteBuffer cab : cabs) {
+            // break the first block, which only decoding from the folder start needs
+            ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int cbCFHeader = (bb.getShort(30) & 4) != 0 ? Short.toUnsignedInt(bb.getShort(36)) + 4 : 0;
+            int coffCabStart = bb.getInt(36 + cbCFHeader);
+            bb.put(coffCabStart + 8 + 10, (byte) (bb.get(coffCabStart + 8 + 10) ^ 0x55));
+        }
+        try (CabReader reader = CabReader.open(cabs[0])) {
+            assertArrayEquals(files.get("dir/file3.bin"), TestData.toArray(reader.read("dir/file3.bin")));
+        }
+        try (CabReader reader = CabReader.open(cabs[1])) {
+            assertThrows(IOException.class, () -> reader.read("dir/file3.bin"));
+        }
+    }
+
+    @Test
+    public void largeFolderIsExtractedInSlices(@TempDir Path dir) throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP}) {
+            Map<String, byte[]> files = files();
+            ByteBuffer cab = independent(files, type).createCabinet();
+
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            AtomicInteger tasks = new AtomicInteger();
+            Path out = dir.resolve(type.name());
+            try (CabReader reader = CabReader.open(cab)) {
+                assertEquals(1, reader.folders.length);
+                reader.extractToDirectory(out, task -> {
+                    tasks.incrementAndGet();
+                    pool.execute(task);
+                });
+            } finally {
+                pool.shutdown();
+            }
+            assertTrue(tasks.get() > 4, String.valueOf(tasks.get()));
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), Files.readAllBytes(out.resolve(e.getKey())), type + " " + e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void cabinetSetsAreExtractedInSlices(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        List<ByteBuffer> cabinets = independent(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP)
+                .createCabinetSet(1_000_000);
+        assertTrue(cabinets.size() > 1, String.valueOf(cabinets.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+            assertArrayEquals(files.get("dir/file3.bin"), TestData.toArray(reader.read("dir/file3.bin")));
+            reader.extractToDirectory(dir, pool);
+        } finally {
+            pool.shutdown();
+        }
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), Files.readAllBytes(dir.resolve(e.getKey())), e.getKey());
+        }
+    }
+}
@@ -7,9 +7,14 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CabLzxTest {
     @Test
@@ -25,4 +30,309 @@ public class CabLzxTest {
 
         assertArrayEquals(TestData.HELLO_C, TestData.toArray(extracted.get("hello.c")));
     }
+
+    private static byte[] text(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = {"cabinet", "folder", "window", "0x8000", "CFDATA", "frame", "match", "offset",
+                "literal", "\r\n", "  ", "HKLM\\Software\\cab4j", "="};
+        StringBuilder sb = new StringBuilder(size + 32);
+        while (sb.length() < size) {
+            sb.append(words[random.nextInt(words.length)]).append(random.nextInt(100)).append(' ');
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void multiFrameFoldersRoundtrip() throws IOException {
+        byte[] large = text(300_000, 1);
+        byte[] noise = randomBytes(70_001, 2);
+        byte[] repeated = new byte[100_000];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) "abcabd".charAt(i % 6);
+        }
+        byte[] second = text(50_000, 3);
+
+        CabArchive archive = new CabArchive();
+        archive.addFile("large.txt", ByteBuffer.wrap(large), (short) 0, (short) 0);
+        archive.addFile("noise.bin", ByteBuffer.wrap(noise), (short) 0, (short) 0);
+        archive.addFile("repeated.txt", ByteBuffer.wrap(repeated), (short) 0, (short) 0);
+        archive.addFile("second.txt", ByteBuffer.wrap(second), (short) 0, (short) 1);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX);
+        generator.setLzxWindowBits(16);
+
+        ByteBuffer cab = generator.createCabinet();
+        ByteBuffer header = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x1003, header.getShort(36 + 6));
+        assertEquals(0x1003, header.getShort(36 + 8 + 6));
+        assertTrue(cab.remaining() < large.length / 2 + noise.length + 20_000, "size " + cab.remaining());
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+        assertArrayEquals(large, TestData.toArray(extracted.get("large.txt")));
+        assertArrayEquals(noise, TestData.toArray(extracted.get("noise.bin")));
+        assertArrayEquals(repeated, TestData.toArray(extracted.get("repeated.txt")));
+        assertArrayEquals(second, TestData.toArray(extracted.get("second.txt")));
+    }
+
+    @Test
+    public void matchDepthTradesRatio() throws IOException {
+        byte[] data = text(200_000, 4);
+        int previous = Integer.MAX_VALUE;
+        for (int depth : new int[]{1, 256}) {
+            CabArchive archive = new CabArchive();
+            archive.addFile("data.txt", data);
+            CabGenerator generator = new CabGenerator(archive);
+            generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX);
+            generator.setLzxMatchDepth(depth);
+
+            ByteBuffer cab = generator.createCabinet();
+            assertTrue(cab.remaining() < previous, "depth " + depth + " produced " + cab.remaining());
+            previous = cab.remaining();
+            assertArrayEquals(data, TestData.toArray(CabExtractor.extract(cab).get("data.txt")));
+        }
+    }
+
+    /**
+     * The uncompressed block example of [MS-PATCH] section 3, without the
+     * chunk size word that only LZX DELTA streams carry.
+     */
+    @Test
+    public void decodesSpecificationExample() throws IOException {
+        byte[] payload = {0x00, 0x30, 0x30, 0x00, 0x01, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00,
+                0x01, 0x00, 0x00, 0x00, 0x61, 0x62, 0x63, 0x00};
+        ByteBuffer cab = TestData.rawCabinet(0x1003, "abc.txt", new byte[][]{payload}, new int[]{3});
+        assertArrayEquals("abc".getBytes(StandardCharsets.US_ASCII),
+                TestData.toArray(CabExtractor.extract(cab).get("abc.txt")));
+        try (CabReader reader = CabReader.open(cab)) {
+            assertArrayEquals("abc".getBytes(StandardCharsets.US_ASCII), TestData.toArray(reader.read("abc.txt")));
+        }
+    }
+
+    /**
+     * Decodes an aligned offset block followed by a verbatim block, assembled
+     * bit by bit from the layout in [MS-PATCH] 2.3 rather than by
+     * {@code LzxCompressor}, for a 2^17 byte window.
+     */
+    @Test
+    public void decodesHandAssembledBlocks() throws IOException {
+        int mainElements = 256 + 34 * 8;
+        LzxBits out = new LzxBits();
+        Expected expected = new Expected();
+        out.bits(0, 1); // no E8 translation
+
+        // aligned offset block
+        byte[] text = "The quick brown fox jumps over the lazy ".getBytes(StandardCharsets.US_ASCII);
+        int[] main = new int[mainElements];
+        int[] lengths = new int[249];
+        int matchA = 256 + 10 * 8 + 7; // slot 10, length 40 continues in the length tree
+        int matchB = 256 + 3; // repeated offset R0, length 5
+        int matchC = 256 + 8 * 8 + 2; // slot 8, length 4
+        int matchD = 256 + 8 + 1; // repeated offset R1, length 3
+        int[] mainUsed = distinct(text, '!', matchA, matchB, matchC, matchD);
+        huffmanLengths(main, mainUsed);
+        huffmanLengths(lengths, 31, 0);
+        int[] mainCodes = canonicalCodes(main);
+        int[] lengthCodes = canonicalCodes(lengths);
+
+        out.bits(2, 3);
+        int alignedSize = text.length + 40 + 5 + 1 + 4 + 3;
+        out.bits(alignedSize >>> 8, 16);
+        out.bits(alignedSize & 0xFF, 8);
+        for (int i = 0; i < 8; i++) {
+            out.bits(3, 3); // aligned tree with equal lengths, the code is the symbol
+        }
+        int[] none = new int[mainElements];
+        writeLengths(out, main, none, 0, 256);
+        writeLengths(out, main, none, 256, mainElements);
+        writeLengths(out, lengths, new int[249], 0, 249);
+
+        for (byte b : text) {
+            out.symbol(b & 0xFF, mainCodes, main);
+            expected.literal(b);
+        }
+        // offset 40 is formatted offset 42 = 32 + 0b1010: one verbatim bit, aligned symbol 2
+        out.symbol(matchA, mainCodes, main);
+        out.symbol(31, lengthCodes, lengths);
+        out.bits(1, 1);
+        out.bits(2, 3);
+        expected.match(40, 40);
+        out.symbol(matchB, mainCodes, main);
+        expected.match(40, 5);
+        out.symbol('!', mainCodes, main);
+        expected.literal((byte) '!');
+        // offset 20 is formatted offset 22 = 16 + 6: aligned symbol 6 only
+        out.symbol(matchC, mainCodes, main);
+        out.bits(6, 3);
+        expected.match(20, 4);
+        out.symbol(matchD, mainCodes, main);
+        expected.match(40, 3);
+
+        // verbatim block, code lengths as deltas to the aligned block
+        byte[] tail = "lazy dog.".getBytes(StandardCharsets.US_ASCII);
+        int matchE = 256 + 11 * 8 + 4; // slot 11, length 6
+        int[] main2 = new int[mainElements];
+        int[] lengths2 = new int[249];
+        huffmanLengths(main2, distinct(tail, 'x', matchE));
+        huffmanLengths(lengths2, 0, 1);
+        int[] main2Codes = canonicalCodes(main2);
+
+        out.bits(1, 3);
+        int verbatimSize = tail.length + 6;
+        out.bits(verbatimSize >>> 8, 16);
+        out.bits(verbatimSize & 0xFF, 8);
+        writeLengths(out, main2, main, 0, 256);
+        writeLengths(out, main2, main, 256, mainElements);
+        writeLengths(out, lengths2, lengths, 0, 249);
+        for (byte b : tail) {
+            out.symbol(b & 0xFF, main2Codes, main2);
+            expected.literal(b);
+        }
+        // offset 60 is formatted offset 62 = 48 + 14 in four verbatim bits
+        out.symbol(matchE, main2Codes, main2);
+        out.bits(14, 4);
+        expected.match(60, 6);
+
+        byte[] data = expected.toArray();
+        ByteBuffer cab = TestData.rawCabinet(0x1103, "fox.txt", new byte[][]{out.toArray()}, new int[]{data.length});
+        assertArrayEquals(data, TestData.toArray(CabExtractor.extract(cab).get("fox.txt")));
+        try (CabReader reader = CabReader.open(cab)) {
+            assertArrayEquals(data, TestData.toArray(reader.read("fox.txt")));
+        }
+    }
+
+    private static int[] distinct(byte[] literals, int... more) {
+        java.util.TreeSet<Integer> used = new java.util.TreeSet<>();
+        for (byte b : literals) {
+            used.add(b & 0xFF);
+        }
+        for (int m : more) {
+            used.add(m);
+        }
+        return used.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Gives the used symbols lengths of a complete prefix code: with n
+     * symbols and L = ceil(log2 n), the first 2^L - n get L - 1 bits.
+     */
+    private static void huffmanLengths(int[] lengths, int... used) {
+        int bits = 32 - Integer.numberOfLeadingZeros(used.length - 1);
+        int shorter = (1 << bits) - used.length;
+        for (int i = 0; i < used.length; i++) {
+            lengths[used[i]] = i < shorter ? bits - 1 : bits;
+        }
+    }
+
+    /** Assigns canonical codes, shorter codes first and by symbol within a length. */
+    private static int[] canonicalCodes(int[] lengths) {
+        int[] codes = new int[lengths.length];
+        int code = 0;
+        for (int len = 1; len <= 16; len++) {
+            for (int sym = 0; sym < lengths.length; sym++) {
+                if (lengths[sym] == len) {
+                    codes[sym] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+
+    /**
+     * Writes code lengths as pretree symbols: (previous - length) mod 17 for
+     * single lengths and symbol 18 for runs of 20 to 51 zeros.
+     */
+    private static void writeLengths(LzxBits out, int[] lengths, int[] previous, int from, int to) {
+        java.util.List<int[]> tokens = new java.util.ArrayList<>();
+        int x = from;
+        while (x < to) {
+            int run = 0;
+            while (x + run < to && lengths[x + run] == 0 && run < 51) {
+                run++;
+            }
+            if (run >= 20) {
+                tokens.add(new int[]{18, run - 20});
+                x += run;
+            } else {
+                tokens.add(new int[]{(previous[x] - lengths[x] + 17) % 17, -1});
+                x++;
+            }
+        }
+        java.util.TreeSet<Integer> used = new java.util.TreeSet<>();
+        for (int[] t : tokens) {
+            used.add(t[0]);
+        }
+        if (used.size() == 1) {
+            used.add(used.first() == 0 ? 1 : 0);
+        }
+        int[] pretree = new int[20];
+        huffmanLengths(pretree, used.stream().mapToInt(Integer::intValue).toArray());
+        int[] codes = canonicalCodes(pretree);
+        for (int len : pretree) {
+            out.bits(len, 4);
+        }
+        for (int[] t : tokens) {
+            out.symbol(t[0], codes, pretree);
+            if (t[0] == 18) {
+                out.bits(t[1], 5);
+            }
+        }
+    }
+
+    /** LZX bit writer: 16 bit little endian words, filled from the most significant bit. */
+    private static final class LzxBits {
+        private final java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        private int word;
+        private int count;
+
+        void bits(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                word = word << 1 | (value >>> i & 1);
+                if (++count == 16) {
+                    bytes.write(word & 0xFF);
+                    bytes.write(word >>> 8 & 0xFF);
+                    word = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void symbol(int symbol, int[] codes, int[] lengths) {
+            assertTrue(lengths[symbol] > 0, "symbol " + symbol + " has no code");
+            bits(codes[symbol], lengths[symbol]);
+        }
+
+        byte[] toArray() {
+            if (count > 0) {
+                bits(0, 16 - count);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /** Expands literals and matches the plain way, as the expected output. */
+    private static final class Expected {
+        private byte[] data = new byte[0];
+
+        void literal(byte b) {
+            data = java.util.Arrays.copyOf(data, data.length + 1);
+            data[data.length - 1] = b;
+        }
+
+        void match(int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                literal(data[data.length - offset]);
+            }
+        }
+
+        byte[] toArray() {
+            return data;
+        }
+    }
 }
@@ -0,0 +1,67 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CabMszipHistoryTest {
+
+    private static byte[] fileContent(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[Version]\r\nSignature=\"$Windows NT$\"\r\nClass=Net\r\n");
+        for (int j = 0; j < 40; j++) {
+            sb.append("HKR,Ndi\\Params\\Param").append(j).append(",Default,0,\"").append(j * 7).append("\"\r\n");
+        }
+        sb.append("; driver ").append(i).append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static CabGenerator generator(boolean history) {
+        CabArchive archive = new CabArchive();
+        for (int i = 0; i < 60; i++) {
+            archive.addFile("drv" + i + ".inf", ByteBuffer.wrap(fileContent(i)), (short) 0, (short) 0,
+                    LocalDateTime.of(2024, 1, 1, 12, 0, 0));
+        }
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        generator.setMszipHistory(history);
+        return generator;
+    }
+
+    @Test
+    public void historyImprovesRatioAndRoundtrips() throws Exception {
+        ByteBuffer independent = generator(false).createCabinet();
+        ByteBuffer withHistory = generator(true).createCabinet();
+        assertTrue(withHistory.remaining() < independent.remaining(),
+                withHistory.remaining() + " >= " + independent.remaining());
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(withHistory);
+        assertEquals(60, extracted.size());
+        for (int i = 0; i < 60; i++) {
+            assertArrayEquals(fileContent(i), TestData.toArray(extracted.get("drv" + i + ".inf")));
+        }
+    }
+
+    @Test
+    public void parallelHistoryOutputIsIdentical() throws Exception {
+        CabGenerator sequential = generator(true);
+        CabGenerator parallel = generator(true);
+        parallel.setCompressionExecutor(ForkJoinPool.commonPool());
+        byte[] a = TestData.toArray(sequential.createCabinet());
+        byte[] b = TestData.toArray(parallel.createCabinet());
+        a[0x20] = b[0x20];
+        a[0x21] = b[0x21];
+        assertArrayEquals(a, b);
+    }
+}
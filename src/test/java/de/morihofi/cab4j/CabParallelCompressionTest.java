@@ -0,0 +1,71 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CabParallelCompressionTest {
+
+    private static final LocalDateTime TS = LocalDateTime.of(2024, 5, 6, 7, 8, 10);
+
+    private static CabArchive createArchive() {
+        Random rnd = new Random(42);
+        CabArchive archive = new CabArchive();
+        for (int i = 0; i < 6; i++) {
+            byte[] data = new byte[70_000 + i * 1_000];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (rnd.nextInt(8) + 'a');
+            }
+            archive.addFile("file" + i + ".txt", ByteBuffer.wrap(data), (short) 0, (short) (i % 2), TS);
+        }
+        return archive;
+    }
+
+    private static ByteBuffer generate(CfFolder.COMPRESS_TYPE type, java.util.concurrent.Executor executor,
+                                       int inFlight) throws Exception {
+        CabGenerator generator = new CabGenerator(createArchive());
+        generator.setCompressionType(type);
+        generator.setCompressionExecutor(executor);
+        generator.setMaxBlocksInFlight(inFlight);
+        ByteBuffer cab = generator.createCabinet();
+        // the set ID is random, zero it so outputs can be compared
+        cab.putShort(0x20, (short) 0);
+        return cab;
+    }
+
+    @Test
+    public void parallelOutputIsIdenticalToSequential() throws Exception {
+        ByteBuffer sequential = generate(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP, null, 1);
+        ByteBuffer parallel = generate(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP, ForkJoinPool.commonPool(), 8);
+        assertArrayEquals(TestData.toArray(sequential), TestData.toArray(parallel));
+    }
+
+    @Test
+    public void parallelRoundtripWithSmallWindow() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            ByteBuffer cab = generate(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP, pool, 2);
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+            assertEquals(6, extracted.size());
+            ByteBuffer sequential = generate(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, null, 1);
+            Map<String, ByteBuffer> expected = CabExtractor.extract(sequential);
+            for (Map.Entry<String, ByteBuffer> e : expected.entrySet()) {
+                assertArrayEquals(TestData.toArray(e.getValue()), TestData.toArray(extracted.get(e.getKey())));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.generator.FolderPlanner;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabParallelExtractionTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    private final AtomicInteger tasks = new AtomicInteger();
+    private final Executor counting = task -> {
+        tasks.incrementAndGet();
+        pool.execute(task);
+    };
+
+    @AfterEach
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static Map<String, byte[]> files() {
+        return TestData.files(25, 2_500_000, 0, 40_000, 1_800_000, 3);
+    }
+
+    private static void assertExtracted(Map<String, byte[]> files, Map<String, ByteBuffer> extracted, String message) {
+        assertEquals(files.keySet(), extracted.keySet());
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey())), message + " " + e.getKey());
+        }
+    }
+
+    @Test
+    public void singleFolderIsDecodedInRuns() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP}) {
+            Map<String, byte[]> files = files();
+            CabGenerator generator = TestData.generator(files, type);
+            generator.setIndependentBlocks(true);
+            ByteBuffer cab = generator.createCabinet();
+            tasks.set(0);
+            assertExtracted(files, CabExtractor.extract(cab, counting), type.name());
+            // 4.3 MB in runs of about 1 MB
+            assertTrue(tasks.get() >= 4, type + " " + tasks.get());
+        }
+    }
+
+    @Test
+    public void mszipWithoutIndependenceFlagIsDecodedInOrder() throws IOException {
+        for (boolean history : new boolean[]{false, true}) {
+            Map<String, byte[]> files = files();
+            CabGenerator generator = TestData.generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+            generator.setMszipHistory(history);
+            ByteBuffer cab = generator.createCabinet();
+            tasks.set(0);
+            assertExtracted(files, CabExtractor.extract(cab, counting), "history " + history);
+            assertEquals(1, tasks.get(), "history " + history);
+        }
+    }
+
+    @Test
+    public void otherCodecsDecodeOneTaskPerFolder() throws IOException {
+        Map<String, byte[]> files = files();
+        CabGenerator generator = TestData.generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX);
+        generator.setFolderPlanner(FolderPlanner.maxFolderSize(2_000_000));
+        ByteBuffer cab = generator.createCabinet();
+        int folders = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN).getShort(26);
+        assertTrue(folders > 1, String.valueOf(folders));
+        tasks.set(0);
+        Map<String, CabExtractor.ExtractedFile> extracted = CabExtractor.extractWithAttributes(cab, counting);
+        assertEquals(folders, tasks.get());
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey()).data), e.getKey());
+        }
+    }
+
+    @Test
+    public void checksumMismatchFailsExtraction() throws IOException {
+        Map<String, byte[]> files = files();
+        ByteBuffer cab = TestData.generator(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP).createCabinet();
+        ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int coffCabStart = bb.getInt(36);
+        // corrupt a byte in the payload of the first block
+        bb.put(coffCabStart + 20, (byte) (bb.get(coffCabStart + 20) ^ 0x55));
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> CabExtractor.extract(cab, pool));
+        assertTrue(e.getMessage().contains("checksum"), e.getMessage());
+    }
+}
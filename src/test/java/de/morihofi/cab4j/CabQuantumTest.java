@@ -5,10 +5,21 @@ import de.morihofi.cab4j.generator.CabGenerator;
 import de.morihofi.cab4j.structures.CfFolder;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CabQuantumTest {
     @Test
@@ -24,4 +35,286 @@ public class CabQuantumTest {
 
         assertArrayEquals(TestData.HELLO_C, TestData.toArray(extracted.get("hello.c")));
     }
+
+    @Test
+    public void multiFrameRoundtripForAllWindowSizes() throws Exception {
+        byte[] corpus = Files.readAllBytes(Paths.get("test", "hello.c"));
+        byte[] source = new byte[150_000];
+        Random random = new Random(5);
+        for (int i = 0; i < source.length; ) {
+            int n = Math.min(source.length - i, 1 + random.nextInt(corpus.length));
+            System.arraycopy(corpus, random.nextInt(corpus.length - n + 1), source, i, n);
+            i += n;
+            if (i < source.length && random.nextInt(4) == 0) {
+                source[i++] = (byte) random.nextInt();
+            }
+        }
+        byte[] noise = new byte[40_000];
+        random.nextBytes(noise);
+
+        for (int windowBits : new int[]{10, 15, 21}) {
+            CabArchive archive = new CabArchive();
+            archive.addFile("source.c", source);
+            archive.addFile("noise.bin", noise);
+            CabGenerator generator = new CabGenerator(archive);
+            generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_QUANTUM);
+            generator.setQuantumWindowBits(windowBits);
+
+            ByteBuffer cab = generator.createCabinet();
+            assertEquals(0x0002 | windowBits << 8, cab.duplicate().order(ByteOrder.LITTLE_ENDIAN).getShort(36 + 6));
+            assertTrue(cab.remaining() < source.length / 2 + noise.length + 1024, "size " + cab.remaining());
+
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+            assertArrayEquals(source, TestData.toArray(extracted.get("source.c")));
+            assertArrayEquals(noise, TestData.toArray(extracted.get("noise.bin")));
+        }
+    }
+
+    /** Position slots of [MS-CAB] / libmspack, up to the 32 slots of a 64 KB window. */
+    private static final int[] REF_POSITION_BASE = {0, 1, 2, 3, 4, 6, 8, 12, 16, 24, 32, 48, 64, 96, 128,
+            192, 256, 384, 512, 768, 1024, 1536, 2048, 3072, 4096, 6144, 8192, 12288, 16384, 24576,
+            32768, 49152, 65536};
+    private static final int[] REF_POSITION_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7,
+            8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13, 14, 14};
+    private static final int[] REF_LENGTH_BASE = {0, 1, 2, 3, 4, 5, 6, 8, 10, 12, 14, 18, 22, 26, 30, 38,
+            46, 54, 62, 78, 94, 110, 126, 158, 190, 222, 254};
+    private static final int[] REF_LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3,
+            4, 4, 4, 4, 5, 5, 5, 5, 0};
+
+    /**
+     * Decodes frames written by a reference encoder in this test rather than
+     * by {@code QuantumCompressor}: a plain CACM arithmetic coder with raw
+     * extra bits placed sixteen bits behind it, all seven selectors, and
+     * enough symbols per model to go through rescaling and re-sorting.
+     */
+    @Test
+    public void decodesFramesFromReferenceEncoder() throws IOException {
+        int windowBits = 16;
+        int[] cbUncomp = {32768, 32768, 9000};
+        byte[][] payloads = new byte[cbUncomp.length][];
+        byte[] expected = new byte[32768 + 32768 + 9000];
+        int produced = 0;
+        RefEncoder encoder = new RefEncoder(windowBits);
+        Random random = new Random(7);
+        byte[] text = "Quantum arithmetic coding, frame by frame. ".getBytes(StandardCharsets.US_ASCII);
+
+        for (int frame = 0; frame < cbUncomp.length; frame++) {
+            encoder.startFrame();
+            int end = produced + cbUncomp[frame];
+            while (produced < end) {
+                int selector = 4 + random.nextInt(3);
+                int length = selector == 4 ? 3 : selector == 5 ? 4
+                        : 5 + (random.nextInt(4) == 0 ? random.nextInt(255) : random.nextInt(30));
+                if (produced < 8 || random.nextInt(5) < 2 || length > end - produced) {
+                    int b = random.nextInt(8) == 0 ? random.nextInt(256) : text[random.nextInt(text.length)];
+                    encoder.literal(b);
+                    expected[produced++] = (byte) b;
+                    continue;
+                }
+                int limit = Math.min(produced, selector == 4 ? 4096 : 1 << windowBits);
+                int offset = 1 + random.nextInt(random.nextBoolean() ? Math.min(limit, 64) : limit);
+                encoder.match(selector, length, offset);
+                for (int i = 0; i < length; i++, produced++) {
+                    expected[produced] = expected[produced - offset];
+                }
+            }
+            payloads[frame] = encoder.finishFrame();
+        }
+        assertTrue(encoder.selectorModel.rebuilt, "selector model was never re-sorted");
+
+        ByteBuffer cab = TestData.rawCabinet(0x0002 | windowBits << 8, "frames.bin", payloads, cbUncomp);
+        assertArrayEquals(expected, TestData.toArray(CabExtractor.extract(cab).get("frames.bin")));
+        try (CabReader reader = CabReader.open(cab)) {
+            assertArrayEquals(expected, TestData.toArray(reader.read("frames.bin")));
+        }
+    }
+
+    /** Frequency model following the update rules of the libmspack decoder. */
+    private static final class RefModel {
+        private final int[] symbols;
+        private final int[] cumfreq;
+        private int shiftsLeft = 4;
+        private boolean rebuilt;
+
+        RefModel(int start, int entries) {
+            symbols = new int[entries];
+            cumfreq = new int[entries + 1];
+            for (int i = 0; i < entries; i++) {
+                symbols[i] = start + i;
+                cumfreq[i] = entries - i;
+            }
+        }
+
+        int indexOf(int symbol) {
+            for (int i = 0; i < symbols.length; i++) {
+                if (symbols[i] == symbol) {
+                    return i;
+                }
+            }
+            throw new AssertionError("symbol " + symbol + " is not in the model");
+        }
+
+        void update(int index) {
+            for (int i = 0; i <= index; i++) {
+                cumfreq[i] += 8;
+            }
+            if (cumfreq[0] <= 3800) {
+                return;
+            }
+            int n = symbols.length;
+            if (--shiftsLeft > 0) {
+                for (int i = n - 1; i >= 0; i--) {
+                    cumfreq[i] = Math.max(cumfreq[i] >> 1, cumfreq[i + 1] + 1);
+                }
+                return;
+            }
+            shiftsLeft = 50;
+            rebuilt = true;
+            int[] freq = new int[n];
+            for (int i = 0; i < n; i++) {
+                freq[i] = (cumfreq[i] - cumfreq[i + 1] + 1) >> 1;
+            }
+            for (int i = 0; i < n - 1; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    if (freq[i] < freq[j]) {
+                        int f = freq[i];
+                        freq[i] = freq[j];
+                        freq[j] = f;
+                        int s = symbols[i];
+                        symbols[i] = symbols[j];
+                        symbols[j] = s;
+                    }
+                }
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                cumfreq[i] = cumfreq[i + 1] + freq[i];
+            }
+        }
+    }
+
+    /**
+     * Arithmetic encoder for one frame at a time. Coder output is collected as
+     * a bit string and raw extra bits are spliced in afterwards at the point
+     * where the decoder, sixteen bits ahead, consumes them.
+     */
+    private static final class RefEncoder {
+        private final RefModel[] literalModels = new RefModel[4];
+        private final RefModel shortModel;
+        private final RefModel mediumModel;
+        private final RefModel longModel;
+        private final RefModel lengthModel = new RefModel(0, 27);
+        private final RefModel selectorModel = new RefModel(0, 7);
+
+        private final StringBuilder coded = new StringBuilder();
+        private final List<int[]> raw = new ArrayList<>();
+        private int low;
+        private int high;
+        private int pending;
+        private int shifts;
+
+        RefEncoder(int windowBits) {
+            for (int i = 0; i < 4; i++) {
+                literalModels[i] = new RefModel(i * 64, 64);
+            }
+            shortModel = new RefModel(0, Math.min(windowBits * 2, 24));
+            mediumModel = new RefModel(0, Math.min(windowBits * 2, 36));
+            longModel = new RefModel(0, windowBits * 2);
+        }
+
+        void startFrame() {
+            coded.setLength(0);
+            raw.clear();
+            low = 0;
+            high = 0xFFFF;
+            pending = 0;
+            shifts = 0;
+        }
+
+        void literal(int b) {
+            symbol(selectorModel, b >> 6);
+            symbol(literalModels[b >> 6], b);
+        }
+
+        void match(int selector, int length, int offset) {
+            symbol(selectorModel, selector);
+            if (selector == 6) {
+                int slot = slot(REF_LENGTH_BASE, length - 5);
+                symbol(lengthModel, slot);
+                raw(length - 5 - REF_LENGTH_BASE[slot], REF_LENGTH_EXTRA[slot]);
+            }
+            int slot = slot(REF_POSITION_BASE, offset - 1);
+            symbol(selector == 4 ? shortModel : selector == 5 ? mediumModel : longModel, slot);
+            raw(offset - 1 - REF_POSITION_BASE[slot], REF_POSITION_EXTRA[slot]);
+        }
+
+        private static int slot(int[] base, int value) {
+            int slot = 0;
+            while (slot + 1 < base.length && base[slot + 1] <= value) {
+                slot++;
+            }
+            return slot;
+        }
+
+        private void symbol(RefModel model, int symbol) {
+            int index = model.indexOf(symbol);
+            int range = high - low + 1;
+            int total = model.cumfreq[0];
+            high = low + model.cumfreq[index] * range / total - 1;
+            low = low + model.cumfreq[index + 1] * range / total;
+            model.update(index);
+            while (true) {
+                if ((low & 0x8000) == (high & 0x8000)) {
+                    emit(high >>> 15);
+                } else if ((low & 0x4000) != 0 && (high & 0x4000) == 0) {
+                    pending++;
+                    low &= 0x3FFF;
+                    high |= 0x4000;
+                } else {
+                    break;
+                }
+                low = (low << 1) & 0xFFFF;
+                high = ((high << 1) | 1) & 0xFFFF;
+                shifts++;
+            }
+        }
+
+        private void emit(int bit) {
+            coded.append(bit);
+            for (; pending > 0; pending--) {
+                coded.append(1 - bit);
+            }
+        }
+
+        private void raw(int value, int n) {
+            if (n > 0) {
+                raw.add(new int[]{shifts + 16, value, n});
+            }
+        }
+
+        byte[] finishFrame() {
+            pending++;
+            emit(low < 0x4000 ? 0 : 1);
+            StringBuilder bits = new StringBuilder();
+            int next = 0;
+            for (int[] r : raw) {
+                for (; next < r[0]; next++) {
+                    bits.append(next < coded.length() ? coded.charAt(next) : '0');
+                }
+                for (int i = r[2] - 1; i >= 0; i--) {
+                    bits.append(r[1] >>> i & 1);
+                }
+            }
+            if (next < coded.length()) {
+                bits.append(coded, next, coded.length());
+            }
+            while (bits.length() % 8 != 0) {
+                bits.append('0');
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < bits.length(); i += 8) {
+                out.write(Integer.parseInt(bits.substring(i, i + 8), 2));
+            }
+            return out.toByteArray();
+        }
+    }
 }
@@ -0,0 +1,211 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabReaderTest {
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static CabArchive multiFolderArchive() {
+        CabArchive archive = new CabArchive();
+        archive.addFile("hello.c", ByteBuffer.wrap(TestData.HELLO_C), (short) 0, (short) 0);
+        archive.addFile("big.bin", ByteBuffer.wrap(randomBytes(100_000, 1)), (short) 0, (short) 0);
+        archive.addFile("setup.inf", ByteBuffer.wrap(TestData.WELCOME_C), (short) 0, (short) 0);
+        archive.addFile("empty.txt", ByteBuffer.allocate(0), (short) 0, (short) 1);
+        archive.addFile("second.bin", ByteBuffer.wrap(randomBytes(40_000, 2)), (short) 0, (short) 1);
+        return archive;
+    }
+
+    @Test
+    public void readsEveryFileOfEveryCodec() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP,
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_QUANTUM, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            CabGenerator generator = new CabGenerator(multiFolderArchive());
+            generator.setCompressionType(type);
+            ByteBuffer cab = generator.createCabinet();
+            Map<String, ByteBuffer> expected = CabExtractor.extract(cab);
+
+            try (CabReader reader = CabReader.open(cab)) {
+                assertEquals(2, reader.getFolderCount());
+                assertEquals(expected.size(), reader.getEntries().size());
+                // read in reverse order so that no block state leaks between calls
+                for (int i = reader.getEntries().size() - 1; i >= 0; i--) {
+                    CabReader.Entry entry = reader.getEntries().get(i);
+                    assertArrayEquals(TestData.toArray(expected.get(entry.getName())),
+                            TestData.toArray(reader.read(entry)), type + " " + entry.getName());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsFromFile(@TempDir Path dir) throws IOException {
+        CabGenerator generator = new CabGenerator(multiFolderArchive());
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        Path file = dir.resolve("test.cab");
+        Files.write(file, TestData.toArray(generator.createCabinet()));
+
+        try (CabReader reader = CabReader.open(file)) {
+            CabReader.Entry inf = reader.getEntry("setup.inf");
+            assertEquals(TestData.WELCOME_C.length, inf.getSize());
+            assertEquals(0, inf.getFolder());
+            assertArrayEquals(TestData.WELCOME_C, TestData.toArray(reader.read("setup.inf")));
+            assertArrayEquals(randomBytes(100_000, 1), TestData.toArray(reader.read("big.bin")));
+            assertEquals(0, reader.read("empty.txt").remaining());
+            assertNull(reader.getEntry("missing.txt"));
+            assertThrows(FileNotFoundException.class, () -> reader.read("missing.txt"));
+        }
+    }
+
+    @Test
+    public void mappedStoredFilesAreViews(@TempDir Path dir) throws IOException {
+        CabGenerator generator = new CabGenerator(multiFolderArchive());
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        Path file = dir.resolve("test.cab");
+        Files.write(file, TestData.toArray(generator.createCabinet()));
+
+        try (CabReader reader = CabReader.map(file)) {
+            ByteBuffer inf = reader.read("setup.inf");
+            assertTrue(inf.isReadOnly());
+            assertTrue(inf.isDirect());
+            assertArrayEquals(TestData.WELCOME_C, TestData.toArray(inf));
+
+            // spans four blocks and is gathered into a new buffer
+            ByteBuffer big = reader.read("big.bin");
+            assertFalse(big.isReadOnly());
+            assertArrayEquals(randomBytes(100_000, 1), TestData.toArray(big));
+            assertArrayEquals(randomBytes(40_000, 2), TestData.toArray(reader.read("second.bin")));
+        }
+    }
+
+    private static byte[] drain(ReadableByteChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(1000);
+        while (channel.read(buf) >= 0) {
+            buf.flip();
+            out.write(buf.array(), 0, buf.limit());
+            buf.clear();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void streamsEntriesInFolderOrder() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            CabGenerator generator = new CabGenerator(multiFolderArchive());
+            generator.setCompressionType(type);
+            ByteBuffer cab = generator.createCabinet();
+            Map<String, ByteBuffer> expected = CabExtractor.extract(cab);
+
+            try (CabReader reader = CabReader.open(cab)) {
+                CabReader.EntryStream stream = reader.entryStream();
+                List<String> names = new ArrayList<>();
+                CabReader.Entry entry;
+                while ((entry = stream.getNextEntry()) != null) {
+                    names.add(entry.getName());
+                    if (entry.getName().equals("hello.c")) {
+                        continue; // skipped entries must not disturb the next one
+                    }
+                    assertArrayEquals(TestData.toArray(expected.get(entry.getName())),
+                            drain(stream.channel()), type + " " + entry.getName());
+                }
+                assertEquals(Arrays.asList("hello.c", "big.bin", "setup.inf", "empty.txt", "second.bin"), names);
+                assertThrows(IllegalStateException.class, stream::channel);
+            }
+        }
+    }
+
+    @Test
+    public void channelDecodesOnDemand() throws IOException {
+        CabGenerator generator = new CabGenerator(multiFolderArchive());
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        ByteBuffer cab = generator.createCabinet();
+
+        try (CabReader reader = CabReader.open(cab)) {
+            ReadableByteChannel channel = reader.newChannel(reader.getEntry("big.bin"));
+            ByteBuffer head = ByteBuffer.allocate(16);
+            assertEquals(16, channel.read(head));
+            assertArrayEquals(Arrays.copyOf(randomBytes(100_000, 1), 16), head.array());
+            channel.close();
+            assertThrows(ClosedChannelException.class, () -> channel.read(head));
+
+            assertArrayEquals(TestData.WELCOME_C, drain(reader.newChannel(reader.getEntry("setup.inf"))));
+        }
+    }
+
+    @Test
+    public void extractsFoldersInParallel(@TempDir Path dir) throws Exception {
+        CabArchive archive = new CabArchive();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int folder = 0; folder < 4; folder++) {
+            for (int i = 0; i < 3; i++) {
+                String name = "f" + folder + "/file" + i + ".bin";
+                byte[] data = randomBytes(30_000 + i * 17_000, folder * 10 + i);
+                files.put(name, data);
+                archive.addFile(name, ByteBuffer.wrap(data), (short) 0, (short) folder);
+            }
+        }
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+        Path cab = dir.resolve("parallel.cab");
+        Files.write(cab, TestData.toArray(generator.createCabinet()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (CabReader reader = CabReader.open(cab)) {
+            assertEquals(4, reader.getFolderCount());
+            Path out = dir.resolve("out");
+            reader.extractToDirectory(out, executor);
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), Files.readAllBytes(out.resolve(e.getKey())), e.getKey());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void detectsCorruptBlocks(@TempDir Path dir) throws IOException {
+        CabGenerator generator = new CabGenerator(multiFolderArchive());
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        ByteBuffer cab = generator.createCabinet();
+        // flip a payload byte near the end of the cabinet, in the second folder
+        int pos = cab.limit() - 10;
+        cab.put(pos, (byte) (cab.get(pos) ^ 0x55));
+
+        try (CabReader reader = CabReader.open(cab)) {
+            assertArrayEquals(TestData.HELLO_C, TestData.toArray(reader.read("hello.c")));
+            assertThrows(IOException.class, () -> reader.read("second.bin"));
+            assertThrows(IOException.class, () -> reader.extractToDirectory(dir, ForkJoinPool.commonPool()));
+        }
+    }
+}
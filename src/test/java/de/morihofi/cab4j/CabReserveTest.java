@@ -0,0 +1,129 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.CfHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabReserveTest {
+
+    private static Map<String, byte[]> files() {
+        return TestData.files(22, 150_000, 90_000, 80);
+    }
+
+    private static CabGenerator reserved(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabGenerator generator = TestData.generator(files, type);
+        generator.setReserve(6144, 5, 7);
+        return generator;
+    }
+
+    @Test
+    public void reservedAreasAreSkipped(@TempDir Path dir) throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP,
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            Map<String, byte[]> files = files();
+            ByteBuffer cab = reserved(files, type).createCabinet().order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(CfHeader.FLAG_RESERVE_PRESENT, cab.getShort(30) & CfHeader.FLAG_RESERVE_PRESENT);
+            assertEquals(6144, cab.getShort(36));
+            assertEquals(5, cab.get(38));
+            assertEquals(7, cab.get(39));
+
+            try (CabReader reader = CabReader.open(cab)) {
+                assertEquals(6144, reader.getHeaderReserve().remaining());
+                for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                    assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), type + " " + e.getKey());
+                }
+            }
+
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+            Path out = dir.resolve(type.name());
+            CabExtractor.extractToDirectory(Channels.newChannel(
+                    new ByteArrayInputStream(TestData.toArray(cab.duplicate()))), out);
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey())), type + " " + e.getKey());
+                assertArrayEquals(e.getValue(), Files.readAllBytes(out.resolve(e.getKey())), type + " " + e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void headerReserveIsExposed() throws IOException {
+        Map<String, byte[]> files = files();
+        ByteBuffer cab = reserved(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP).createCabinet();
+        // what a signing tool would do
+        byte[] signature = new byte[6144];
+        new Random(1).nextBytes(signature);
+        ByteBuffer signed = cab.duplicate();
+        signed.position(40);
+        signed.put(signature);
+
+        try (CabReader reader = CabReader.open(cab)) {
+            assertArrayEquals(signature, TestData.toArray(reader.getHeaderReserve()));
+            assertArrayEquals(files.get("dir/file1.bin"), TestData.toArray(reader.read("dir/file1.bin")));
+        }
+    }
+
+    @Test
+    public void storedFilesOnDiskCarryTheReserve(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        Path src = Files.createDirectories(dir.resolve("src"));
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            Path file = src.resolve(e.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, e.getValue());
+        }
+        CabArchive archive = new CabArchive();
+        archive.addDirectory(src);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setReserve(0, 0, 16);
+
+        Path cab = dir.resolve("stored.cab");
+        try (FileChannel out = FileChannel.open(cab, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            generator.writeCabinet(out);
+        }
+        try (CabReader reader = CabReader.map(cab)) {
+            assertEquals(0, reader.getHeaderReserve().remaining());
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void cabinetSetsCarryTheReserve() throws IOException {
+        Map<String, byte[]> files = files();
+        List<ByteBuffer> cabinets = reserved(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP).createCabinetSet(100_000);
+        assertTrue(cabinets.size() > 1);
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOversizedReserve() {
+        CabGenerator generator = new CabGenerator(new CabArchive());
+        assertThrows(IllegalArgumentException.class, () -> generator.setReserve(60_001, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> generator.setReserve(0, 256, 0));
+        assertThrows(IllegalArgumentException.class, () -> generator.setReserve(0, 0, -1));
+    }
+}
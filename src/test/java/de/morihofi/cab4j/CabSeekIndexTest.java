@@ -0,0 +1,129 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+import de.morihofi.cab4j.structures.SeekIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabSeekIndexTest {
+
+    private static Map<String, byte[]> files() {
+        return TestData.files(23, 40_000, 47_000, 54_000, 61_000, 68_000, 75_000, 82_000, 89_000);
+    }
+
+    private static CabGenerator indexed(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabGenerator generator = TestData.generator(files, type);
+        generator.setSeekIndex(true);
+        return generator;
+    }
+
+    @Test
+    public void indexedCabinetsReadEverywhere() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP,
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            Map<String, byte[]> files = files();
+            ByteBuffer cab = indexed(files, type).createCabinet();
+            long coffIndex = SeekIndex.readReference(TestData.folderReserve(cab));
+            assertTrue(coffIndex > 0, type.name());
+            assertEquals(cab.remaining(), cab.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(8));
+
+            try (CabReader reader = CabReader.open(cab)) {
+                for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                    assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), type + " " + e.getKey());
+                }
+            }
+            // readers unaware of the index ignore it
+            Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(extracted.get(e.getKey())), type + " " + e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void indexReplacesWalkingTheBlocks() throws IOException {
+        Map<String, byte[]> files = files();
+        ByteBuffer indexed = indexed(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE).createCabinet();
+        CabGenerator plain = indexed(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+        plain.setSeekIndex(false);
+        ByteBuffer walked = plain.createCabinet();
+
+        for (ByteBuffer cab : new ByteBuffer[]{indexed, walked}) {
+            // break the size of the first block, which only walking the headers needs
+            ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int cbCFHeader = (bb.getShort(30) & 4) != 0 ? Short.toUnsignedInt(bb.getShort(36)) + 4 : 0;
+            int coffCabStart = bb.getInt(36 + cbCFHeader);
+            bb.putShort(coffCabStart + 4, (short) 1);
+        }
+        try (CabReader reader = CabReader.open(indexed)) {
+            assertArrayEquals(files.get("dir/file7.bin"), TestData.toArray(reader.read("dir/file7.bin")));
+        }
+        try (CabReader reader = CabReader.open(walked)) {
+            assertThrows(IOException.class, () -> reader.read("dir/file7.bin"));
+        }
+    }
+
+    @Test
+    public void corruptIndexIsDetected() throws IOException {
+        Map<String, byte[]> files = files();
+        ByteBuffer cab = indexed(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP).createCabinet();
+        int coffIndex = (int) SeekIndex.readReference(TestData.folderReserve(cab));
+        ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        // claim that the second block starts one byte later
+        bb.putInt(coffIndex + SeekIndex.ENTRY_SIZE + 4, bb.getInt(coffIndex + SeekIndex.ENTRY_SIZE + 4) + 1);
+        try (CabReader reader = CabReader.open(cab)) {
+            assertThrows(IOException.class, () -> reader.read("dir/file7.bin"));
+        }
+    }
+
+    @Test
+    public void cabinetSetsAndFileTargetsAreIndexed(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        List<ByteBuffer> cabinets = indexed(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP).createCabinetSet(120_000);
+        assertTrue(cabinets.size() > 1);
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+        for (ByteBuffer cab : cabinets) {
+            assertTrue(cab.remaining() <= 120_000, String.valueOf(cab.remaining()));
+        }
+
+        // uncompressed files on disk take the zero-copy path
+        Path src = Files.createDirectories(dir.resolve("src"));
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            Path file = src.resolve(e.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, e.getValue());
+        }
+        CabArchive archive = new CabArchive();
+        archive.addDirectory(src);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setSeekIndex(true);
+        Path cab = dir.resolve("indexed.cab");
+        try (FileChannel out = FileChannel.open(cab, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            generator.writeCabinet(out);
+        }
+        try (CabReader reader = CabReader.open(cab)) {
+            for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), e.getKey());
+            }
+        }
+    }
+}
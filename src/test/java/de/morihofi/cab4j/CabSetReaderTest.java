@@ -0,0 +1,191 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.generator.CabinetSetTarget;
+import de.morihofi.cab4j.generator.FolderPlanner;
+import de.morihofi.cab4j.structures.CfFolder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CabSetReaderTest {
+
+    private static Map<String, byte[]> files() {
+        return TestData.files(21, 100_000, 30_000, 0, 250_000, 5, 70_000);
+    }
+
+    private static CabGenerator split(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabGenerator generator = TestData.generator(files, type);
+        generator.setFolderPlanner(FolderPlanner.maxFolderSize(200_000));
+        return generator;
+    }
+
+    private static List<Path> write(Path dir, CabGenerator generator, long maxSize) throws IOException {
+        int count = generator.writeCabinetSet(maxSize, CabinetSetTarget.directory(dir, i -> "disk" + (i + 1) + ".cab"));
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            paths.add(dir.resolve("disk" + (i + 1) + ".cab"));
+        }
+        return paths;
+    }
+
+    @Test
+    public void readsFilesSpanningCabinets() throws IOException {
+        for (CfFolder.COMPRESS_TYPE type : new CfFolder.COMPRESS_TYPE[]{
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP,
+                CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX}) {
+            Map<String, byte[]> files = files();
+            List<ByteBuffer> cabinets = split(files, type).createCabinetSet(100_000);
+            assertTrue(cabinets.size() > 1, type + " " + cabinets.size());
+
+            try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+                assertEquals(cabinets.size(), reader.getVolumeCount());
+                List<CabReader.Entry> entries = reader.getEntries();
+                assertEquals(files.size(), entries.size());
+                for (Map.Entry<String, byte[]> e : files.entrySet()) {
+                    assertArrayEquals(e.getValue(), TestData.toArray(reader.read(e.getKey())), type + " " + e.getKey());
+                }
+                // backwards, so compressed folders restart at their first cabinet
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    CabReader.Entry entry = entries.get(i);
+                    try (ReadableByteChannel channel = reader.newChannel(entry)) {
+                        byte[] content = new byte[entry.getSize()];
+                        ByteBuffer dst = ByteBuffer.wrap(content);
+                        while (dst.hasRemaining() && channel.read(dst) >= 0) {
+                            // keep reading
+                        }
+                        assertArrayEquals(files.get(entry.getName()), content, type + " " + entry.getName());
+                    }
+                }
+                CabReader.EntryStream stream = reader.entryStream();
+                CabReader.Entry entry;
+                while ((entry = stream.getNextEntry()) != null) {
+                    byte[] content = TestData.toArray(readAll(stream.channel(), entry.getSize()));
+                    assertArrayEquals(files.get(entry.getName()), content, type + " " + entry.getName());
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer readAll(ReadableByteChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void extractsSetToDirectory(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        Path cabs = Files.createDirectories(dir.resolve("cabs"));
+        List<Path> paths = write(cabs, split(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP), 60_000);
+        assertTrue(paths.size() > 1, String.valueOf(paths.size()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (CabSetReader reader = CabSetReader.open(paths)) {
+            reader.extractToDirectory(dir.resolve("serial"));
+            reader.extractToDirectory(dir.resolve("parallel"), executor);
+        } finally {
+            executor.shutdown();
+        }
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertArrayEquals(e.getValue(), Files.readAllBytes(dir.resolve("serial").resolve(e.getKey())), e.getKey());
+            assertArrayEquals(e.getValue(), Files.readAllBytes(dir.resolve("parallel").resolve(e.getKey())), e.getKey());
+        }
+    }
+
+    @Test
+    public void opensCabinetsOnlyWhenNeeded(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        List<Path> paths = write(dir, split(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE), 100_000);
+        assertTrue(paths.size() > 2, String.valueOf(paths.size()));
+        // cabinets that are never parsed may be missing
+        Path last = paths.get(paths.size() - 1);
+        byte[] lastCab = Files.readAllBytes(last);
+        Files.delete(last);
+
+        try (CabSetReader reader = CabSetReader.open(paths)) {
+            assertArrayEquals(files.get("dir/file1.bin"), TestData.toArray(reader.read("dir/file1.bin")));
+            assertThrows(IOException.class, reader::getEntries);
+            Files.write(last, lastCab);
+            assertArrayEquals(files.get("dir/file5.bin"), TestData.toArray(reader.read("dir/file5.bin")));
+        }
+    }
+
+    @Test
+    public void readsFromChannels(@TempDir Path dir) throws IOException {
+        Map<String, byte[]> files = files();
+        List<Path> paths = write(dir, split(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_LZX), 100_000);
+        List<FileChannel> channels = new ArrayList<>();
+        for (Path path : paths) {
+            channels.add(FileChannel.open(path));
+        }
+        try (CabSetReader reader = CabSetReader.openChannels(channels)) {
+            assertArrayEquals(files.get("dir/file0.bin"), TestData.toArray(reader.read("dir/file0.bin")));
+        }
+        for (FileChannel channel : channels) {
+            assertFalse(channel.isOpen());
+        }
+    }
+
+    @Test
+    public void rejectsCabinetsOfAnotherSet() throws IOException {
+        Map<String, byte[]> files = files();
+        List<ByteBuffer> cabinets = new ArrayList<>(split(files, CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE)
+                .createCabinetSet(100_000));
+        ByteBuffer second = ByteBuffer.allocate(cabinets.get(1).remaining()).put(cabinets.get(1).duplicate());
+        second.flip();
+        second.order(ByteOrder.LITTLE_ENDIAN).putShort(32, (short) (second.getShort(32) + 1));
+        cabinets.set(1, second);
+
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+            IOException e = assertThrows(IOException.class, reader::getEntries);
+            assertTrue(e.getMessage().contains("belongs to set"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsIncompleteSets() throws IOException {
+        List<ByteBuffer> cabinets = split(files(), CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE)
+                .createCabinetSet(100_000);
+        assertThrows(IOException.class, () -> CabSetReader.openBuffers(cabinets.subList(1, cabinets.size())));
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets.subList(0, cabinets.size() - 1))) {
+            assertThrows(IOException.class, reader::getEntries);
+        }
+    }
+
+    @Test
+    public void singleCabinetIsASet() throws IOException {
+        CabArchive archive = new CabArchive();
+        archive.addFile("hello.c", TestData.HELLO_C);
+        ByteBuffer cab = new CabGenerator(archive).createCabinet();
+        List<ByteBuffer> cabinets = new ArrayList<>();
+        cabinets.add(cab);
+        try (CabSetReader reader = CabSetReader.openBuffers(cabinets)) {
+            assertArrayEquals(TestData.HELLO_C, TestData.toArray(reader.read("hello.c")));
+            assertNull(reader.getEntry("missing"));
+        }
+        try (CabReader reader = CabReader.open(cab)) {
+            assertNull(reader.getPreviousCabinet());
+            assertNull(reader.getNextCabinet());
+            assertEquals(0, reader.getCabinetIndex());
+        }
+    }
+}
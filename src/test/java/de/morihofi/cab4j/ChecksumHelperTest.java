@@ -0,0 +1,106 @@
+package de.morihofi.cab4j;
+
+import de.morihofi.cab4j.util.CabChecksum;
+import de.morihofi.cab4j.util.ChecksumHelper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ChecksumHelperTest {
+
+    /**
+     * The original word-at-a-time routine the optimized one has to match.
+     */
+    private static int referenceChecksum(ByteBuffer data) {
+        ByteBuffer buf = data.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        int csum = 0;
+        while (buf.remaining() >= 4) {
+            csum ^= buf.getInt();
+        }
+
+        if (buf.remaining() > 0) {
+            int word = 0;
+            int shift = 0;
+            for (int i = buf.limit() - 1; i >= buf.position(); i--) {
+                word |= (buf.get(i) & 0xFF) << shift;
+                shift += 8;
+            }
+            csum ^= word;
+        }
+
+        return csum;
+    }
+
+    @Test
+    public void matchesReferenceBitForBit() {
+        Random random = new Random(3);
+        byte[] data = new byte[70_000];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).clear();
+
+        int[] lengths = new int[400];
+        for (int i = 0; i < 300; i++) {
+            lengths[i] = i;
+        }
+        for (int i = 300; i < lengths.length; i++) {
+            lengths[i] = random.nextInt(0x10000);
+        }
+        for (int len : lengths) {
+            for (int off = 0; off < 9; off++) {
+                ByteBuffer heap = ByteBuffer.wrap(data, off, len);
+                int expected = referenceChecksum(heap);
+                assertEquals(expected, ChecksumHelper.cabChecksum(heap), "heap " + off + "+" + len);
+                assertEquals(expected, ChecksumHelper.cabChecksum(heap.slice()), "slice " + off + "+" + len);
+                assertEquals(expected, ChecksumHelper.cabChecksum(data, off, len), "array " + off + "+" + len);
+
+                ByteBuffer view = direct.duplicate();
+                view.position(off).limit(off + len);
+                assertEquals(expected, ChecksumHelper.cabChecksum(view), "direct " + off + "+" + len);
+                assertEquals(off, view.position());
+                assertEquals(ByteOrder.BIG_ENDIAN, view.order());
+            }
+        }
+    }
+
+    @Test
+    public void incrementalMatchesOneShot() {
+        Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            byte[] payload = new byte[random.nextInt(5000)];
+            random.nextBytes(payload);
+            int cbUncomp = random.nextInt(0x8001);
+
+            ByteBuffer whole = ByteBuffer.allocate(payload.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+            whole.putShort((short) payload.length).putShort((short) cbUncomp).put(payload).flip();
+            int expected = referenceChecksum(whole);
+
+            assertEquals(expected, ChecksumHelper.cfDataChecksum(payload.length, cbUncomp, ByteBuffer.wrap(payload)));
+
+            // feed random slices alternately from heap arrays and direct buffers
+            CabChecksum checksum = CabChecksum.forBlock(payload.length, cbUncomp);
+            int pos = 0;
+            while (pos < payload.length) {
+                int n = Math.min(payload.length - pos, random.nextInt(11));
+                if (random.nextBoolean()) {
+                    checksum.update(payload, pos, n);
+                } else {
+                    ByteBuffer direct = ByteBuffer.allocateDirect(n + 3);
+                    direct.position(3);
+                    direct.put(payload, pos, n);
+                    direct.position(3);
+                    checksum.update(direct);
+                    assertEquals(3, direct.position());
+                }
+                pos += n;
+            }
+            assertEquals(expected, checksum.getValue(), "round " + round);
+        }
+    }
+}
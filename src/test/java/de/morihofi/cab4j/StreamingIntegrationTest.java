@@ -2,18 +2,31 @@ package de.morihofi.cab4j;
 
 import de.morihofi.cab4j.archive.CabArchive;
 import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.generator.SpillingBlockStore;
+import de.morihofi.cab4j.structures.CfFolder;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class StreamingIntegrationTest {
 
@@ -55,6 +68,271 @@ public class StreamingIntegrationTest {
         assertArrayEquals(original, extracted);
     }
 
+    @Test
+    public void seekableOutputMatchesBufferedOutput() throws Exception {
+        Path tempDir = Files.createTempDirectory("cabtest");
+        byte[] data = new byte[150_000];
+        new java.util.Random(99).nextBytes(data);
+        LocalDateTime ts = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+
+        CabArchive archive = new CabArchive();
+        archive.addFile("a.bin", new ByteArrayInputStream(data), data.length, (short) 0, (short) 0, ts);
+        archive.addFile("b.c", new ByteArrayInputStream(TestData.HELLO_C), TestData.HELLO_C.length,
+                (short) 0, (short) 1, ts);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_MSZIP);
+
+        Path cabPath = tempDir.resolve("seek.cab");
+        try (FileChannel out = FileChannel.open(cabPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // the cabinet does not have to start at offset zero
+            out.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            generator.writeCabinet(out);
+        }
+        byte[] written = Files.readAllBytes(cabPath);
+        ByteBuffer cab = ByteBuffer.wrap(written, 3, written.length - 3).slice();
+
+        Map<String, ByteBuffer> extracted = CabExtractor.extract(cab);
+        assertArrayEquals(data, TestData.toArray(extracted.get("a.bin")));
+        assertArrayEquals(TestData.HELLO_C, TestData.toArray(extracted.get("b.c")));
+        assertEquals(cab.remaining(), cab.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(8));
+    }
+
+    @Test
+    public void spillingBlockStoreMatchesMemoryStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("cabtest");
+        byte[] data = new byte[200_000];
+        new java.util.Random(7).nextBytes(data);
+        LocalDateTime ts = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+
+        byte[][] results = new byte[2][];
+        SpillingBlockStore[] spilling = new SpillingBlockStore[1];
+        for (int i = 0; i < 2; i++) {
+            CabArchive archive = new CabArchive();
+            archive.addFile("a.bin", new ByteArrayInputStream(data), data.length, (short) 0, (short) 0, ts);
+            CabGenerator generator = new CabGenerator(archive);
+            if (i == 1) {
+                generator.setBlockStoreFactory(() -> spilling[0] = new SpillingBlockStore(10_000, tempDir));
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (WritableByteChannel ch = Channels.newChannel(bos)) {
+                generator.writeCabinet(ch);
+            }
+            results[i] = bos.toByteArray();
+            // set IDs are random
+            results[i][0x20] = 0;
+            results[i][0x21] = 0;
+        }
+
+        assertTrue(spilling[0].isSpilled());
+        assertArrayEquals(results[0], results[1]);
+        try (java.util.stream.Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    /**
+     * File channel counting the write calls made on it.
+     */
+    private static final class CountingChannel implements SeekableByteChannel, GatheringByteChannel {
+        final FileChannel file;
+        int writes;
+        int gatheringWrites;
+
+        CountingChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            writes++;
+            return file.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            gatheringWrites++;
+            return file.write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    @Test
+    public void blocksAreWrittenInGatheringBatches() throws Exception {
+        Path tempDir = Files.createTempDirectory("cabtest");
+        byte[] data = new byte[40 * 0xFFFF];
+        new java.util.Random(9).nextBytes(data);
+        CabArchive archive = new CabArchive();
+        archive.addFile("a.bin", new ByteArrayInputStream(data), data.length, (short) 0, (short) 0,
+                LocalDateTime.now());
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setWriteBatchSize(16);
+
+        Path cabPath = tempDir.resolve("test.cab");
+        CountingChannel out = new CountingChannel(FileChannel.open(cabPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE));
+        try {
+            generator.writeCabinet(out);
+        } finally {
+            out.close();
+        }
+
+        // 40 blocks in batches of 16; the metadata placeholder and the patched header
+        assertEquals(3, out.gatheringWrites);
+        assertEquals(2, out.writes);
+        try (CabReader reader = CabReader.open(cabPath)) {
+            assertArrayEquals(data, TestData.toArray(reader.read("a.bin")));
+        }
+    }
+
+    @Test
+    public void blockStoreIsWrittenInGatheringBatches() throws Exception {
+        byte[] data = new byte[40 * 0xFFFF];
+        new java.util.Random(16).nextBytes(data);
+        CabArchive archive = new CabArchive();
+        archive.addFile("a.bin", data);
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setWriteBatchSize(16);
+
+        GatheringSink out = new GatheringSink();
+        generator.writeCabinet(out);
+
+        // 40 blocks copied from the block store in batches of 16
+        assertEquals(3, out.gatheringWrites);
+        try (CabReader reader = CabReader.open(ByteBuffer.wrap(out.bytes.toByteArray()))) {
+            assertArrayEquals(data, TestData.toArray(reader.read("a.bin")));
+        }
+    }
+
+    /**
+     * Gathering target that cannot seek, like a socket, counting its gathering writes.
+     */
+    private static final class GatheringSink implements GatheringByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int gatheringWrites;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                bytes.write(src.get());
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            gatheringWrites++;
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += write(srcs[i]);
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void storedFilesAreCopiedFromDisk() throws Exception {
+        Path tempDir = Files.createTempDirectory("cabtest");
+        int[] sizes = {100_000, 0, 30_000, 0xFFFF - 30_000, 70_000};
+        byte[][] contents = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            contents[i] = new byte[sizes[i]];
+            new java.util.Random(i).nextBytes(contents[i]);
+            Files.write(tempDir.resolve("in" + i + ".bin"), contents[i]);
+        }
+
+        byte[][] results = new byte[3][];
+        for (int run = 0; run < 3; run++) {
+            CabArchive archive = new CabArchive();
+            for (int i = 0; i < sizes.length; i++) {
+                archive.addFile("in" + i + ".bin", tempDir.resolve("in" + i + ".bin"));
+            }
+            CabGenerator generator = new CabGenerator(archive);
+            generator.setCompressionType(CfFolder.COMPRESS_TYPE.TCOMP_TYPE_NONE);
+            if (run == 0) {
+                results[run] = TestData.toArray(generator.createCabinet());
+            } else {
+                Path cabPath = tempDir.resolve("copied" + run + ".cab");
+                try (FileChannel out = FileChannel.open(cabPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    if (run == 1) {
+                        generator.writeCabinet(out);
+                    } else {
+                        // a file passed as plain channel goes through the block store
+                        generator.writeCabinet((WritableByteChannel) out);
+                    }
+                }
+                results[run] = Files.readAllBytes(cabPath);
+            }
+            // set IDs are random
+            results[run][0x20] = 0;
+            results[run][0x21] = 0;
+        }
+
+        assertArrayEquals(results[0], results[1]);
+        assertArrayEquals(results[0], results[2]);
+        try (CabReader reader = CabReader.open(tempDir.resolve("copied1.cab"))) {
+            for (int i = 0; i < sizes.length; i++) {
+                assertArrayEquals(contents[i], TestData.toArray(reader.read("in" + i + ".bin")), "in" + i);
+            }
+        }
+    }
+
     private static byte[] digest(Path file) throws Exception {
         MessageDigest md = MessageDigest.getInstance("SHA-256");
         try (InputStream in = Files.newInputStream(file)) {
@@ -1,7 +1,15 @@
 package de.morihofi.cab4j;
 
+import de.morihofi.cab4j.archive.CabArchive;
+import de.morihofi.cab4j.generator.CabGenerator;
+import de.morihofi.cab4j.structures.CfFolder;
+
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
 
 public final class TestData {
     public static final byte[] HELLO_C = (
@@ -29,4 +37,106 @@ public final class TestData {
         buffer.duplicate().get(arr);
         return arr;
     }
+
+    /**
+     * Returns files named {@code dir/file<i>.bin} of the given sizes. Files at
+     * even positions hold random bytes, the others a repeated text.
+     */
+    public static Map<String, byte[]> files(long seed, int... sizes) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        Random random = new Random(seed);
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            if (i % 2 == 0) {
+                random.nextBytes(data);
+            } else {
+                String text = "file " + i + " ";
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) text.charAt(j % text.length());
+                }
+            }
+            files.put("dir/file" + i + ".bin", data);
+        }
+        return files;
+    }
+
+    /**
+     * Returns a generator for the files, in their order, using the given
+     * compression.
+     */
+    public static CabGenerator generator(Map<String, byte[]> files, CfFolder.COMPRESS_TYPE type) {
+        CabArchive archive = new CabArchive();
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            archive.addFile(e.getKey(), e.getValue());
+        }
+        CabGenerator generator = new CabGenerator(archive);
+        generator.setCompressionType(type);
+        return generator;
+    }
+
+    /** Returns the reserved area of the first CFFOLDER of a cabinet without prev/next names. */
+    public static byte[] folderReserve(ByteBuffer cab) {
+        ByteBuffer bb = cab.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int cbCFHeader = Short.toUnsignedInt(bb.getShort(36));
+        byte[] reserve = new byte[bb.get(38)];
+        bb.position(40 + cbCFHeader + 8);
+        bb.get(reserve);
+        return reserve;
+    }
+
+    /**
+     * Assembles a cabinet holding one file in one folder byte by byte as laid
+     * out in [MS-CAB], independent of the generator. The CFDATA blocks carry
+     * no checksum.
+     *
+     * @param typeCompress the folder's typeCompress field
+     * @param name         name of the file
+     * @param payloads     the compressed payload of each CFDATA block
+     * @param cbUncomp     the uncompressed size of each block
+     */
+    public static ByteBuffer rawCabinet(int typeCompress, String name, byte[][] payloads, int[] cbUncomp) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        int coffFiles = 36 + 8;
+        int coffCabStart = coffFiles + 16 + nameBytes.length + 1;
+        int cbCabinet = coffCabStart;
+        int cbFile = 0;
+        for (int i = 0; i < payloads.length; i++) {
+            cbCabinet += 8 + payloads[i].length;
+            cbFile += cbUncomp[i];
+        }
+        ByteBuffer cab = ByteBuffer.allocate(cbCabinet).order(ByteOrder.LITTLE_ENDIAN);
+        cab.put(new byte[]{'M', 'S', 'C', 'F'});
+        cab.putInt(0); // reserved1
+        cab.putInt(cbCabinet);
+        cab.putInt(0); // reserved2
+        cab.putInt(coffFiles);
+        cab.putInt(0); // reserved3
+        cab.put((byte) 3).put((byte) 1); // version 1.3
+        cab.putShort((short) 1); // cFolders
+        cab.putShort((short) 1); // cFiles
+        cab.putShort((short) 0); // flags
+        cab.putShort((short) 0); // setID
+        cab.putShort((short) 0); // iCabinet
+
+        cab.putInt(coffCabStart);
+        cab.putShort((short) payloads.length);
+        cab.putShort((short) typeCompress);
+
+        cab.putInt(cbFile);
+        cab.putInt(0); // uoffFolderStart
+        cab.putShort((short) 0); // iFolder
+        cab.putShort((short) ((2024 - 1980) << 9 | 1 << 5 | 1));
+        cab.putShort((short) 0); // time
+        cab.putShort((short) 0x20); // archive attribute
+        cab.put(nameBytes).put((byte) 0);
+
+        for (int i = 0; i < payloads.length; i++) {
+            cab.putInt(0); // no checksum
+            cab.putShort((short) payloads[i].length);
+            cab.putShort((short) cbUncomp[i]);
+            cab.put(payloads[i]);
+        }
+        cab.flip();
+        return cab;
+    }
 }
@@ -0,0 +1,96 @@
+package de.morihofi.cab4j.benchmark;
+
+import de.morihofi.cab4j.util.ChecksumHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the word-at-a-time CAB checksum the library used to have against
+ * {@link ChecksumHelper#cabChecksum(ByteBuffer)} on heap and direct buffers.
+ * Scores are nanoseconds per block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"1", "7", "64", "1024", "32768", "65535"})
+    public int blockSize;
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() {
+        byte[] data = new byte[blockSize];
+        new Random(1).nextBytes(data);
+        heap = ByteBuffer.wrap(data);
+        direct = ByteBuffer.allocateDirect(blockSize);
+        direct.put(data).flip();
+    }
+
+    private static int wordAtATime(ByteBuffer data) {
+        ByteBuffer buf = data.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int csum = 0;
+        while (buf.remaining() >= 4) {
+            csum ^= buf.getInt();
+        }
+        if (buf.remaining() > 0) {
+            int word = 0;
+            int shift = 0;
+            for (int i = buf.limit() - 1; i >= buf.position(); i--) {
+                word |= (buf.get(i) & 0xFF) << shift;
+                shift += 8;
+            }
+            csum ^= word;
+        }
+        return csum;
+    }
+
+    @Benchmark
+    public int heapWordAtATime() {
+        return wordAtATime(heap);
+    }
+
+    @Benchmark
+    public int heapFolded() {
+        return ChecksumHelper.cabChecksum(heap);
+    }
+
+    @Benchmark
+    public int directWordAtATime() {
+        return wordAtATime(direct);
+    }
+
+    @Benchmark
+    public int directFolded() {
+        return ChecksumHelper.cabChecksum(direct);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ChecksumBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,97 @@
+package de.morihofi.cab4j.benchmark;
+
+import de.morihofi.cab4j.compression.MszipCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compares creating a new {@link Deflater}/{@link Inflater} for every CFDATA
+ * block against the reused per-thread {@link MszipCodec} context. Scores are
+ * blocks per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MszipCodecBenchmark {
+
+    private byte[] block;
+    private ByteBuffer compressed;
+    private byte[] out;
+
+    @Setup
+    public void setup() {
+        block = new byte[MszipCodec.MAX_BLOCK_SIZE];
+        Random rnd = new Random(1);
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) ('a' + rnd.nextInt(12));
+        }
+        compressed = MszipCodec.get().compress(block, 0, block.length);
+        out = new byte[block.length];
+    }
+
+    @Benchmark
+    public int compressNewDeflater() {
+        byte[] outBytes = new byte[block.length + 256];
+        Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        def.setInput(block, 0, block.length);
+        def.finish();
+        int clen = def.deflate(outBytes);
+        def.end();
+        ByteBuffer tmp = ByteBuffer.allocate(clen + 2);
+        tmp.put((byte) 'C').put((byte) 'K').put(outBytes, 0, clen);
+        return tmp.position();
+    }
+
+    @Benchmark
+    public int compressReusedCodec() {
+        return MszipCodec.get().compress(block, 0, block.length).remaining();
+    }
+
+    @Benchmark
+    public int decompressNewInflater() throws DataFormatException {
+        ByteBuffer in = compressed.duplicate();
+        in.position(2);
+        byte[] compBytes = new byte[in.remaining()];
+        in.get(compBytes);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compBytes);
+            byte[] result = new byte[block.length];
+            return inflater.inflate(result);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Benchmark
+    public int decompressReusedCodec() throws DataFormatException {
+        return MszipCodec.get().decompress(compressed.duplicate(), out, 0, out.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MszipCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
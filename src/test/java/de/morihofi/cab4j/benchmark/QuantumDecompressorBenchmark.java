@@ -0,0 +1,94 @@
+package de.morihofi.cab4j.benchmark;
+
+import de.morihofi.cab4j.compression.FolderDecompressor;
+import de.morihofi.cab4j.compression.QuantumCompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Quantum decoding of a folder built from the files in the
+ * {@code test/} fixture directory, repeated to {@code corpusSize} bytes. Run
+ * from the project root. Scores are decoded folders per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantumDecompressorBenchmark {
+
+    @Param({"21"})
+    public int windowBits;
+
+    @Param({"1048576"})
+    public int corpusSize;
+
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private byte[] out;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream fixtures = new ByteArrayOutputStream();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("test"))) {
+            for (Path p : dir) {
+                if (Files.isRegularFile(p)) {
+                    fixtures.write(Files.readAllBytes(p));
+                }
+            }
+        }
+        byte[] corpus = fixtures.toByteArray();
+        byte[] data = new byte[corpusSize];
+        for (int i = 0; i < data.length; i += corpus.length) {
+            System.arraycopy(corpus, 0, data, i, Math.min(corpus.length, data.length - i));
+        }
+
+        QuantumCompressor compressor = new QuantumCompressor(windowBits);
+        for (int off = 0; off < data.length; off += QuantumCompressor.FRAME_SIZE) {
+            int len = Math.min(QuantumCompressor.FRAME_SIZE, data.length - off);
+            blocks.add(compressor.compress(data, off, len));
+            sizes.add(len);
+        }
+        out = new byte[QuantumCompressor.FRAME_SIZE];
+    }
+
+    @Benchmark
+    public int decompressFolder() throws IOException {
+        FolderDecompressor decompressor = FolderDecompressor.create(QuantumCompressor.typeCompress(windowBits));
+        int total = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            total += decompressor.decompress(blocks.get(i).duplicate(), out, 0, sizes.get(i));
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(QuantumDecompressorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}